@@ -0,0 +1,124 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.List;
+
+
+/**
+ * <P>The outcome of an <CODE>ImageBatch</CODE>, once every file it found has been processed.</P>
+ * @see ImageBatch#start()
+ */
+public final class BatchSummary {
+    //VARIABLES
+    /** Files found and submitted. */
+    private final int total;
+
+    /** Files processed successfully. */
+    private final int succeeded;
+
+    /** Files that failed (error, timeout, expired or rejected). */
+    private final int failed;
+
+    /** Files not processed because the batch was cancelled. */
+    private final int cancelled;
+
+    /** Time (ms) from start to the last file. */
+    private final long elapsed;
+
+    /** The first failures, one "file: message" line each. */
+    private final List<String> failures;
+
+    /** Why the directory could not be read completely, null if it was. */
+    private final String error;
+
+
+    /**
+     * Creates a new summary.
+     * @param total files found and submitted
+     * @param succeeded files processed successfully
+     * @param failed files that failed
+     * @param cancelled files not processed because the batch was cancelled
+     * @param elapsed time in ms
+     * @param failures the first failures
+     * @param error why the directory could not be read completely, null if it was
+     */
+    public BatchSummary(
+            final int total,
+            final int succeeded,
+            final int failed,
+            final int cancelled,
+            final long elapsed,
+            final List<String> failures,
+            final String error) {
+
+        this.total = total;
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.cancelled = cancelled;
+        this.elapsed = elapsed;
+        this.failures = failures == null ? List.of() : List.copyOf(failures);
+        this.error = error;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public int getCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Get the time the batch took.
+     * @return time in ms
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Get the first failures (up to ImageBatch.MAX_FAILURES), so a batch of bad files does not
+     * hold every message in memory.
+     * @return one "file: message" line per failure
+     */
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Get why the directory could not be read completely. Files found before the problem were
+     * still processed.
+     * @return error message, null if the whole directory was read
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Did every file succeed.
+     * @return true if nothing failed or was cancelled and the directory was read completely
+     */
+    public boolean isSuccessful() {
+        return succeeded == total && error == null;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchSummary{" +
+                "total=" + total +
+                ", succeeded=" + succeeded +
+                ", failed=" + failed +
+                ", cancelled=" + cancelled +
+                ", elapsed=" + elapsed +
+                (error == null ? "" : ", error='" + error + '\'') +
+                '}';
+    }
+
+}
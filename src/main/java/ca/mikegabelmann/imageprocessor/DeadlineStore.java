@@ -0,0 +1,78 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+
+
+/**
+ * A single lock-free lane ordered earliest deadline first. Events with the same deadline (including
+ * all events without one) are ordered by priority and then FIFO.
+ * @see QueueMode#DEADLINE
+ */
+final class DeadlineStore implements EventStore {
+    /** Entries waiting, in the order they are handed out. */
+    private final ConcurrentSkipListMap<Key, QueueEntry> entries;
+
+    /** Sequence for entries added at the back, counts up. */
+    private final AtomicLong last;
+
+    /** Sequence for entries put back at the front, counts down. */
+    private final AtomicLong first;
+
+
+    /** Creates a new instance of DeadlineStore. */
+    DeadlineStore() {
+        this.entries = new ConcurrentSkipListMap<>();
+        this.last = new AtomicLong();
+        this.first = new AtomicLong();
+    }
+
+    @Override
+    public void offerLast(final QueueEntry entry) {
+        entries.put(new Key(entry, last.incrementAndGet()), entry);
+    }
+
+    @Override
+    public void offerFirst(final QueueEntry entry) {
+        entries.put(new Key(entry, first.decrementAndGet()), entry);
+    }
+
+    @Override
+    public QueueEntry poll() {
+        Map.Entry<Key, QueueEntry> next = entries.pollFirstEntry();
+        return next == null ? null : next.getValue();
+    }
+
+    @Override
+    public Iterable<QueueEntry> entries(final ImageProcessEventType priority) {
+        return () -> entries.values().stream()
+                .filter(entry -> entry.getPriority() == priority)
+                .iterator();
+    }
+
+
+    /**
+     * Sort key of an entry: deadline, then priority (highest first), then arrival.
+     */
+    private record Key(long deadline, int rank, long sequence) implements Comparable<Key> {
+
+        Key(final QueueEntry entry, final long sequence) {
+            this(entry.getDeadline(), -entry.getPriority().ordinal(), sequence);
+        }
+
+        @Override
+        public int compareTo(final Key other) {
+            int c = Long.compare(deadline, other.deadline);
+
+            if (c == 0) {
+                c = Integer.compare(rank, other.rank);
+            }
+
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package ca.mikegabelmann.imageprocessor;
+
+
+/**
+ * What an asynchronous <code>MessageDispatcher</code> does with a message for a listener whose
+ * buffer is already full.
+ * @see MessageDispatcher#addEventListener(ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener, DeliveryPolicy)
+ */
+public enum DeliveryPolicy {
+    /** wait for the listener to catch up, this slows the processor down */
+    BLOCK,
+
+    /** drop the new message */
+    DROP_NEWEST,
+
+    /** drop the oldest message waiting for the listener to make room */
+    DROP_OLDEST,
+
+}
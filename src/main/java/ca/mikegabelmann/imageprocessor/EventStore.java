@@ -0,0 +1,52 @@
+package ca.mikegabelmann.imageprocessor;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+
+
+/**
+ * Holds the entries waiting in a <code>Queue</code> and decides the order they are handed out in.
+ * Admission, capacity and blocking are all handled by the Queue, a store only has to be safe for
+ * many producers and consumers working on it at the same time.
+ */
+interface EventStore {
+    /** Order in which priorities are handed out. */
+    ImageProcessEventType[] DISPATCH_ORDER = {
+            ImageProcessEventType.PRIORITY_HIGH,
+            ImageProcessEventType.PRIORITY_MEDIUM,
+            ImageProcessEventType.PRIORITY_LOW,
+    };
+
+    /**
+     * Add a new entry behind the others of the same priority.
+     * @param entry entry to add
+     */
+    void offerLast(QueueEntry entry);
+
+    /**
+     * Put an entry back in front of the others of the same priority.
+     * @param entry entry to add
+     */
+    void offerFirst(QueueEntry entry);
+
+    /**
+     * Remove the next entry to hand out.
+     * @return entry or null if none could be found
+     */
+    QueueEntry poll();
+
+    /**
+     * The waiting entries of one priority, oldest first. The view is weakly consistent and may
+     * include entries that have already been claimed.
+     * @param priority priority to look at
+     * @return entries
+     */
+    Iterable<QueueEntry> entries(ImageProcessEventType priority);
+
+    /**
+     * The current thread will not take any more work. Stores that keep state for each consumer
+     * drop it here.
+     */
+    default void leave() {
+    }
+
+}
@@ -0,0 +1,19 @@
+package ca.mikegabelmann.imageprocessor;
+
+
+/**
+ * How an <code>ImageProcessor</code> runs the events it takes from its queue.
+ * @see ImageProcessor#ImageProcessor(Queue, ExecutionMode)
+ */
+public enum ExecutionMode {
+    /** events are processed one at a time on the processor's own thread */
+    PLATFORM,
+
+    /**
+     * every event runs on its own virtual thread, so events that wait on disk do not hold an OS
+     * thread. CPU bound tasks are limited to one per core. Falls back to a small pool of platform
+     * threads (four per core) when the JVM has no virtual threads, other events wait their turn.
+     */
+    VIRTUAL,
+
+}
@@ -0,0 +1,230 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+
+
+/**
+ * <P>Weighted fair queuing across sources (stride scheduling). Every source has its own priority
+ * lanes and a pass value that advances by 1/weight each time one of its events is handed out.
+ * The source with the lowest pass goes next, so over time every source gets a share of the
+ * processors proportional to its weight, no matter how much work it submits or at what
+ * priority. A source that goes idle rejoins at the current pass, it cannot bank credit.</P>
+ *
+ * <P>To bound tail latency a source that has been waiting longer than the maximum wait is
+ * served next regardless of its pass (aging).</P>
+ * @see QueueMode#FAIR_SHARE
+ */
+final class FairShareStore implements EventStore {
+    //CONSTANTS
+    /** Pass added for a source with weight 1. */
+    private static final long STRIDE = 1L << 20;
+
+    /** Default time (ms) a source can wait before it is served regardless of its share. */
+    static final long DEFAULT_MAX_WAIT = 1000L;
+
+    //VARIABLES
+    /** Guards the sources and their ordering. */
+    private final ReentrantLock lock;
+
+    /** Sources that have entries waiting. */
+    private final Map<Object, Source> sources;
+
+    /** Waiting sources, lowest pass first. */
+    private final TreeSet<Source> byPass;
+
+    /** Waiting sources, longest waiting first. */
+    private final TreeSet<Source> byWait;
+
+    /** Weight of each source, 1 if not set. */
+    private final Map<Object, Integer> weights;
+
+    /** Pass of the last source served. */
+    private long globalPass;
+
+    /** Tie breaker for sources with the same pass or wait. */
+    private long nextId;
+
+    /** Time (ms) a source can wait before it is served regardless of its share. */
+    private volatile long maxWait = DEFAULT_MAX_WAIT;
+
+
+    /** Creates a new instance of FairShareStore. */
+    FairShareStore() {
+        this.lock = new ReentrantLock();
+        this.sources = new HashMap<>();
+        this.byPass = new TreeSet<>(Comparator.comparingLong((Source s) -> s.pass).thenComparingLong(s -> s.id));
+        this.byWait = new TreeSet<>(Comparator.comparingLong((Source s) -> s.waitingSince).thenComparingLong(s -> s.id));
+        this.weights = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void offerLast(final QueueEntry entry) {
+        this.offer(entry, false);
+    }
+
+    @Override
+    public void offerFirst(final QueueEntry entry) {
+        this.offer(entry, true);
+    }
+
+    @Override
+    public QueueEntry poll() {
+        lock.lock();
+
+        try {
+            if (byPass.isEmpty()) {
+                return null;
+            }
+
+            Source oldest = byWait.first();
+            long now = System.nanoTime();
+            Source next = now - oldest.waitingSince >= TimeUnit.MILLISECONDS.toNanos(maxWait) ? oldest : byPass.first();
+
+            byPass.remove(next);
+            byWait.remove(next);
+
+            QueueEntry entry = next.lanes.poll();
+            next.size--;
+            globalPass = Math.max(globalPass, next.pass);
+
+            if (next.size == 0) {
+                sources.remove(next.key);
+
+            } else {
+                next.pass += STRIDE / weights.getOrDefault(next.key, 1);
+                next.waitingSince = now;
+                byPass.add(next);
+                byWait.add(next);
+            }
+
+            return entry;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterable<QueueEntry> entries(final ImageProcessEventType priority) {
+        List<PriorityStore> snapshot = new ArrayList<>();
+        lock.lock();
+
+        try {
+            for (Source source : sources.values()) {
+                snapshot.add(source.lanes);
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+        return () -> snapshot.stream().flatMap(lanes -> lanes.stream(priority)).iterator();
+    }
+
+    /**
+     * Set the share of a source relative to the others.
+     * @param source source of events
+     * @param weight weight, 1 is the default
+     */
+    void setWeight(final Object source, final int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be greater than 0");
+        }
+
+        weights.put(source, weight);
+    }
+
+    /**
+     * Get the share of a source relative to the others.
+     * @param source source of events
+     * @return weight
+     */
+    int getWeight(final Object source) {
+        return weights.getOrDefault(source, 1);
+    }
+
+    long getMaxWait() {
+        return maxWait;
+    }
+
+    void setMaxWait(final long maxWait) {
+        this.maxWait = Math.max(0L, maxWait);
+    }
+
+    /**
+     * Add an entry to the lanes of its source, making the source eligible if it was idle.
+     * @param entry entry to add
+     * @param first put it in front of the other entries of the same priority
+     */
+    private void offer(final QueueEntry entry, final boolean first) {
+        lock.lock();
+
+        try {
+            Source source = sources.get(entry.getSource());
+
+            if (source == null) {
+                source = new Source(entry.getSource(), nextId++);
+                source.pass = globalPass;
+                source.waitingSince = System.nanoTime();
+                sources.put(source.key, source);
+                byPass.add(source);
+                byWait.add(source);
+            }
+
+            if (first) {
+                source.lanes.offerFirst(entry);
+
+            } else {
+                source.lanes.offerLast(entry);
+            }
+
+            source.size++;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * A source with entries waiting. Only changed while holding the lock, and never while it is
+     * in one of the sorted sets.
+     */
+    private static final class Source {
+        /** The source of the events. */
+        private final Object key;
+
+        /** Tie breaker. */
+        private final long id;
+
+        /** Entries waiting for this source. */
+        private final PriorityStore lanes;
+
+        /** Number of entries waiting. */
+        private int size;
+
+        /** Position in the schedule, lowest goes next. */
+        private long pass;
+
+        /** When (System.nanoTime()) this source was last served, or became eligible. */
+        private long waitingSince;
+
+
+        Source(final Object key, final long id) {
+            this.key = key;
+            this.id = id;
+            this.lanes = new PriorityStore();
+        }
+    }
+
+}
@@ -0,0 +1,443 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import ca.mikegabelmann.imageprocessor.events.CancellationToken;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <P>Processes every file in a directory that matches a glob. A template creates the tasks for
+ * each file, and each file becomes an event on the queue, so the processors (or a pool) sharing
+ * the queue work on the files in parallel.</P>
+ *
+ * <P>The directory is read lazily while the batch runs and only a window of files is on the queue
+ * at once, so the whole list of files is never held in memory and other work on the queue is not
+ * crowded out. Progress can be read at any time, and the result is completed with one summary
+ * once the last file is done.</P>
+ *
+ * <PRE>
+ *     ImageBatch batch = new ImageBatch(pool.getQueue(), new File("/photos"), "**.jpg", file -> List.of(
+ *         new ImageFileTask(ImageFileTaskType.PROCESS_GET_IMAGE, file, null),
+ *         new ImageResizeTask(new Dimension(640, 480)),
+ *         new ImageFileTask(ImageFileTaskType.PROCESS_WRITE_IMAGE, null, new File("/thumbs", file.getName()))));
+ *     BatchSummary summary = batch.start().get();
+ * </PRE>
+ */
+public final class ImageBatch {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageBatch.class);
+
+    //CONSTANTS
+    /** Default number of files on the queue at once. */
+    public static final int DEFAULT_WINDOW = 256;
+
+    /** Most failures kept for the summary. */
+    public static final int MAX_FAILURES = 100;
+
+    /** Thread name counter. */
+    private static final AtomicInteger currentId = new AtomicInteger();
+
+    //VARIABLES
+    /** Queue the files are processed from. */
+    private final Queue queue;
+
+    /** Directory to read. */
+    private final Path directory;
+
+    /** Glob the paths (relative to the directory) must match. */
+    private final String glob;
+
+    /** Creates the tasks for each file. */
+    private final Template template;
+
+    /** Cancels the files that are still waiting. */
+    private final CancellationToken token;
+
+    /** Number of files submitted. */
+    private final AtomicInteger submitted;
+
+    /** Number of files processed successfully. */
+    private final AtomicInteger succeeded;
+
+    /** Number of files that failed. */
+    private final AtomicInteger failed;
+
+    /** Number of files cancelled. */
+    private final AtomicInteger cancelled;
+
+    /** The first failures. */
+    private final List<String> failures;
+
+    /** Completed with the summary once every file is done. */
+    private final CompletableFuture<BatchSummary> result;
+
+    /** Priority of the events. */
+    private volatile ImageProcessEventType priority = ImageProcessEventType.PRIORITY_LOW;
+
+    /** Number of files on the queue at once. */
+    private volatile int window = DEFAULT_WINDOW;
+
+    /** Gets the message of each file, may be null. */
+    private volatile ImageMessageEventListener listener;
+
+    /** Room for more files on the queue. */
+    private volatile Semaphore room;
+
+    /** Reads the directory, null until started. */
+    private volatile Thread expander;
+
+    /** Every matching file has been submitted. */
+    private volatile boolean expanded = false;
+
+    /** Why the directory could not be read completely, null if it was. */
+    private volatile String error;
+
+    /** Time (ns) the batch was started. */
+    private volatile long started;
+
+
+    /**
+     * Creates a new batch.
+     * @param queue queue to process the files from
+     * @param directory directory to read
+     * @param glob pattern the file paths, relative to the directory, must match (for example
+     *             "*.jpg" for the directory itself, "**.jpg" to include subdirectories)
+     * @param template creates the tasks for each file
+     */
+    public ImageBatch(final Queue queue, final File directory, final String glob, final Template template) {
+        if (queue == null) {
+            throw new IllegalArgumentException("queue cannot be null");
+
+        } else if (directory == null || ! directory.isDirectory()) {
+            throw new IllegalArgumentException("directory must be an existing directory");
+
+        } else if (glob == null || glob.isEmpty()) {
+            throw new IllegalArgumentException("glob cannot be empty");
+
+        } else if (template == null) {
+            throw new IllegalArgumentException("template cannot be null");
+        }
+
+        this.queue = queue;
+        this.directory = directory.toPath();
+        this.glob = glob;
+        this.template = template;
+        this.token = new CancellationToken();
+        this.submitted = new AtomicInteger();
+        this.succeeded = new AtomicInteger();
+        this.failed = new AtomicInteger();
+        this.cancelled = new AtomicInteger();
+        this.failures = new ArrayList<>();
+        this.result = new CompletableFuture<>();
+    }
+
+    /**
+     * Start reading the directory and submitting files.
+     * @return result, completed with the summary once every file is done
+     * @throws IllegalStateException if already started
+     */
+    public synchronized CompletableFuture<BatchSummary> start() {
+        if (expander != null) {
+            throw new IllegalStateException("batch already started");
+        }
+
+        this.started = System.nanoTime();
+        this.room = new Semaphore(window);
+
+        expander = new Thread(this::expand, "ImageBatch-" + currentId.incrementAndGet());
+        expander.setDaemon(true);
+        expander.start();
+
+        LOGGER.info("{} : started", this);
+        return result;
+    }
+
+    /**
+     * Stop submitting files and cancel the ones still waiting. Files already being processed
+     * stop at their next task.
+     */
+    public void cancel() {
+        token.cancel();
+
+        Thread t = expander;
+
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Get the result of the batch.
+     * @return completed with the summary once every file is done
+     */
+    public CompletableFuture<BatchSummary> getResult() {
+        return result;
+    }
+
+    public ImageProcessEventType getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set the priority of the events, PRIORITY_LOW by default so a batch does not hold up
+     * interactive work. Set before starting.
+     * @param priority priority
+     */
+    public void setPriority(final ImageProcessEventType priority) {
+        this.priority = priority == null ? ImageProcessEventType.PRIORITY_LOW : priority;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Set how many files may be on the queue at once. Set before starting.
+     * @param window number of files, at least 1
+     */
+    public void setWindow(final int window) {
+        this.window = Math.max(1, window);
+    }
+
+    public ImageMessageEventListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Set a listener to get the message of each file as it is done.
+     * @param listener listener or null
+     */
+    public void setListener(final ImageMessageEventListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the number of files submitted so far.
+     * @return number of files
+     */
+    public int getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * Get the number of files done so far, whatever the outcome.
+     * @return number of files
+     */
+    public int getCompleted() {
+        return succeeded.get() + failed.get() + cancelled.get();
+    }
+
+    public int getSucceeded() {
+        return succeeded.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Has every matching file been found. Until then the number submitted is still growing.
+     * @return true if the directory has been read
+     */
+    public boolean isExpanded() {
+        return expanded;
+    }
+
+    /**
+     * Is every file done.
+     * @return true if the result is complete
+     */
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageBatch{" +
+                "directory=" + directory +
+                ", glob='" + glob + '\'' +
+                ", submitted=" + submitted.get() +
+                ", completed=" + this.getCompleted() +
+                '}';
+    }
+
+    /**
+     * Read the directory and submit each matching file, waiting for room on the queue.
+     */
+    private void expand() {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+
+        //only walk into subdirectories if the glob can match something in them
+        int depth = glob.contains("**") || glob.contains("/") ? Integer.MAX_VALUE : 1;
+
+        try (Stream<Path> paths = Files.walk(directory, depth)) {
+            Iterator<Path> it = paths
+                    .filter(p -> matcher.matches(directory.relativize(p)))
+                    .filter(Files::isRegularFile)
+                    .iterator();
+
+            while (it.hasNext() && ! token.isCancelled()) {
+                room.acquire();
+                this.submit(it.next().toFile());
+            }
+
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn("{} : could not read the directory", this, e);
+            this.error = e.getMessage();
+
+        } catch (InterruptedException ie) {
+            LOGGER.debug("{} : interrupted", this);
+
+        } finally {
+            this.expanded = true;
+            this.checkDone();
+        }
+    }
+
+    /**
+     * Submit one file.
+     * @param file file
+     */
+    private void submit(final File file) {
+        submitted.incrementAndGet();
+
+        //each file is done once, by its message or by its result failing without one
+        AtomicBoolean answered = new AtomicBoolean();
+        ImageMessageEventListener source = ime -> {
+            if (answered.compareAndSet(false, true)) {
+                this.done(file, ime);
+            }
+        };
+
+        List<AbstractImageTask> tasks;
+
+        try {
+            tasks = template.tasksFor(file);
+
+        } catch (ImageTaskException | RuntimeException e) {
+            this.done(file, ImageMessageEvent.createErrorEvent(source, e.getMessage()));
+            return;
+        }
+
+        ImageProcessEvent ipe = new ImageProcessEvent(priority, source, null, tasks.toArray(new AbstractImageTask[0]));
+        ipe.setCancellationToken(token);
+
+        //flushed (cancelled) or failed without a message, free its room all the same
+        ipe.getResult().whenComplete((ime, t) -> {
+            if (t != null) {
+                source.eventPerformed(ImageMessageEvent.createErrorEvent(source, "no result - " + t));
+            }
+        });
+
+        queue.offer(ipe);
+    }
+
+    /**
+     * A file is done.
+     * @param file file
+     * @param ime message for the file
+     */
+    private void done(final File file, final ImageMessageEvent ime) {
+        ImageMessageEventType status = ime.getStatus();
+
+        if (status == ImageMessageEventType.OK) {
+            succeeded.incrementAndGet();
+
+        } else if (status == ImageMessageEventType.CANCELLED) {
+            cancelled.incrementAndGet();
+
+        } else {
+            failed.incrementAndGet();
+
+            synchronized (failures) {
+                if (failures.size() < MAX_FAILURES) {
+                    failures.add(file + ": " + ime.getMessage());
+                }
+            }
+        }
+
+        room.release();
+
+        ImageMessageEventListener l = listener;
+
+        if (l != null) {
+            try {
+                l.eventPerformed(ime);
+
+            } catch (RuntimeException re) {
+                LOGGER.error("{} : listener failed", this, re);
+            }
+        }
+
+        this.checkDone();
+    }
+
+    /**
+     * Complete the result if every file has been found and is done.
+     */
+    private void checkDone() {
+        if (! expanded || this.getCompleted() < submitted.get() || result.isDone()) {
+            return;
+        }
+
+        List<String> first;
+
+        synchronized (failures) {
+            first = new ArrayList<>(failures);
+        }
+
+        BatchSummary summary = new BatchSummary(
+                submitted.get(),
+                succeeded.get(),
+                failed.get(),
+                cancelled.get(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                first,
+                error);
+
+        if (result.complete(summary)) {
+            LOGGER.info("{} : done {}", this, summary);
+        }
+    }
+
+
+    /**
+     * <P>Creates the tasks for one file of a batch.</P>
+     */
+    @FunctionalInterface
+    public interface Template {
+
+        /**
+         * Create the tasks for a file.
+         * @param file file found in the directory
+         * @return tasks to perform, in order
+         * @throws ImageTaskException if the tasks cannot be created, the file counts as failed
+         */
+        List<AbstractImageTask> tasksFor(File file) throws ImageTaskException;
+
+    }
+
+}
@@ -0,0 +1,519 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
+import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
+import ca.mikegabelmann.imageprocessor.tasks.ExitTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageCropTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageFileTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageFileTaskType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <P>Processes events from a <CODE>Queue</CODE> in three stages, each with its own threads:
+ * decode (reading images), transform (CPU bound tasks such as resize and kernel) and encode
+ * (writing, copying, moving or deleting files). While one event is being written the next can
+ * be resized and the one after that read, so disk and CPU work overlap.</P>
+ *
+ * <P>The tasks of an event keep their order. Each task runs in the stage it belongs to, or the
+ * stage of the task before it if that is later, tasks that belong to no stage run wherever the
+ * event is. Stages an event has no tasks for are skipped.</P>
+ *
+ * <P>Stages hand events on through bounded queues. When a stage falls behind the stage before
+ * it waits, and in the end events are left waiting in the Queue, where they can still be
+ * flushed or reordered.</P>
+ *
+ * <PRE>
+ *     ImagePipeline pipeline = new ImagePipeline(queue);
+ *     new Thread(pipeline).start();
+ * </PRE>
+ */
+public final class ImagePipeline implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImagePipeline.class);
+
+    //CONSTANTS
+    /** Default number of events each stage holds waiting for a thread. */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /** Default number of decode and of encode threads. */
+    public static final int DEFAULT_IO_THREADS = 2;
+
+    //VARIABLES
+    /** Queue of stuff to process. */
+    private final Queue queue;
+
+    /** Threads of each stage. */
+    private final Map<Stage, ThreadPoolExecutor> stages;
+
+    /** Sends our messages to the event sources and the listeners that are waiting for them. */
+    private volatile MessageDispatcher dispatcher;
+
+    /** Is this class processing images. */
+    private volatile boolean running = false;
+
+    /** Thread taking work from the queue, null when not running. */
+    private volatile Thread runner;
+
+
+    /**
+     * Creates a new pipeline with 2 decode threads, one transform thread per core and 2 encode
+     * threads.
+     * @param queue queue to take work from
+     */
+    public ImagePipeline(final Queue queue) {
+        this(queue, DEFAULT_IO_THREADS, Runtime.getRuntime().availableProcessors(), DEFAULT_IO_THREADS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new pipeline.
+     * @param queue queue to take work from
+     * @param decodeThreads number of threads reading images
+     * @param transformThreads number of threads running CPU bound tasks
+     * @param encodeThreads number of threads writing images
+     * @param capacity number of events each stage holds waiting for a thread
+     */
+    public ImagePipeline(
+            final Queue queue,
+            final int decodeThreads,
+            final int transformThreads,
+            final int encodeThreads,
+            final int capacity) {
+
+        if (queue == null) {
+            throw new IllegalArgumentException("queue cannot be null");
+
+        } else if (decodeThreads < 1 || transformThreads < 1 || encodeThreads < 1 || capacity < 1) {
+            throw new IllegalArgumentException("threads and capacity must be at least 1");
+        }
+
+        this.queue = queue;
+        this.dispatcher = new MessageDispatcher();
+        this.stages = new EnumMap<>(Stage.class);
+        this.stages.put(Stage.DECODE, newStage(Stage.DECODE, decodeThreads, capacity));
+        this.stages.put(Stage.TRANSFORM, newStage(Stage.TRANSFORM, transformThreads, capacity));
+        this.stages.put(Stage.ENCODE, newStage(Stage.ENCODE, encodeThreads, capacity));
+    }
+
+    @Override
+    public void run() {
+        this.running = true;
+        this.runner = Thread.currentThread();
+        queue.enter();
+
+        LOGGER.info("{} : starting", this);
+
+        List<ImageProcessEvent> batch = new ArrayList<>(1);
+
+        try {
+            while (running) {
+                queue.drainTo(batch, 1);
+
+                //NOTE: BLOCKS HERE UNTIL THERE IS WORK TO DO OR WE ARE INTERRUPTED
+
+                if (batch.isEmpty()) {
+                    continue;
+
+                } else if (! running) {
+                    queue.returnWork(batch);
+
+                } else {
+                    this.start(batch.get(0));
+                }
+
+                batch.clear();
+            }
+
+        } finally {
+            this.running = false;
+            this.runner = null;
+            queue.leave();
+
+            //let every event already in a stage finish, a stage can only be shut down once the
+            //stages before it have stopped handing events to it
+            for (Stage stage : Stage.values()) {
+                this.shutdown(stages.get(stage));
+            }
+
+            LOGGER.info("{} : exiting", this);
+        }
+    }
+
+    /**
+     * Stop taking events from the queue. Events already in the pipeline are finished, after
+     * that the stage threads are gone, so a pipeline can only be run once.
+     */
+    public void stopRunning() {
+        this.running = false;
+
+        Thread t = runner;
+
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Returns whether this object is processing images.
+     * @return whether this object is running or not
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    public Queue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Get the number of threads in a stage.
+     * @param stage stage
+     * @return number of threads
+     */
+    public int getThreads(final Stage stage) {
+        return stages.get(stage).getCorePoolSize();
+    }
+
+    /**
+     * Get the number of events in a stage, running or waiting for a thread.
+     * @param stage stage
+     * @return number of events
+     */
+    public int getEvents(final Stage stage) {
+        ThreadPoolExecutor executor = stages.get(stage);
+        return executor.getActiveCount() + executor.getQueue().size();
+    }
+
+    /**
+     * Set an event listener. Anyone who registers with us will be informed of
+     * any event that we process.
+     * @param pil who to send events to
+     * @return true if registered
+     */
+    public boolean addEventListener(final ImageMessageEventListener pil) {
+        return dispatcher.addEventListener(pil);
+    }
+
+    /**
+     * Remove an event listener.
+     * @param pil object that does not want to receive ProcessMessageEvents
+     * @return true if it was registered
+     */
+    public boolean removeEventListener(final ImageMessageEventListener pil) {
+        return dispatcher.removeEventListener(pil);
+    }
+
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Set how our messages are sent. By default they are sent on the stage thread that finished
+     * the event. The listeners registered with this object are moved to the new dispatcher.
+     * @param dispatcher dispatcher to use
+     */
+    public synchronized void setDispatcher(final MessageDispatcher dispatcher) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("dispatcher cannot be null");
+        }
+
+        MessageDispatcher old = this.dispatcher;
+        old.getProgressListeners().forEach(dispatcher::addProgressListener);
+        old.getEventListeners().forEach(dispatcher::addEventListener);
+
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public String toString() {
+        return "ImagePipeline{" +
+                "decode=" + getThreads(Stage.DECODE) +
+                ", transform=" + getThreads(Stage.TRANSFORM) +
+                ", encode=" + getThreads(Stage.ENCODE) +
+                '}';
+    }
+
+    /**
+     * Get the stage a task belongs in.
+     * @param task task
+     * @return stage, or null if the task can run in any stage
+     */
+    static Stage stageOf(final AbstractImageTask task) {
+        if (task instanceof ImageFileTask file) {
+            return switch (file.getFiletype()) {
+                case PROCESS_GET_IMAGE -> Stage.DECODE;
+                case PROCESS_DO_NOTHING -> null;
+                default -> Stage.ENCODE;
+            };
+
+        } else if (task != null && task.isCpuBound()) {
+            return Stage.TRANSFORM;
+        }
+
+        return null;
+    }
+
+    /**
+     * Count the tasks of an event that run in each stage. A crop straight after a read is not
+     * counted, the read does it.
+     * @param ipe event
+     * @return number of tasks per stage, by stage ordinal
+     */
+    static int[] plan(final ImageProcessEvent ipe) {
+        int[] counts = new int[Stage.values().length];
+        Stage current = Stage.DECODE;
+        AbstractImageTask previous = null;
+
+        for (AbstractImageTask task : ipe.getTasks()) {
+            boolean read = previous instanceof ImageFileTask file && file.getFiletype() == ImageFileTaskType.PROCESS_GET_IMAGE;
+            previous = task == null ? previous : task;
+
+            if (read && task instanceof ImageCropTask) {
+                continue;
+            }
+
+            Stage stage = stageOf(task);
+
+            if (stage != null && stage.compareTo(current) > 0) {
+                current = stage;
+            }
+
+            counts[current.ordinal()]++;
+        }
+
+        return counts;
+    }
+
+    /**
+     * Hand a new event to the first stage it has tasks for.
+     * @param ipe event taken from the queue
+     */
+    private void start(final ImageProcessEvent ipe) {
+        if (ipe.hasBranches()) {
+            this.finish(ipe, ImageMessageEventType.ERROR, "branches are not supported by the pipeline, use an ImageProcessor");
+            return;
+        }
+
+        Job job = new Job(ipe, plan(ipe));
+        Stage first = job.next(null);
+
+        if (first == null) {
+            this.finish(ipe, ImageMessageEventType.OK, null);
+
+        } else {
+            this.handOff(first, job);
+        }
+    }
+
+    /**
+     * Run the tasks of an event that belong to a stage, then hand it to the next stage.
+     * @param stage stage
+     * @param job event and its plan
+     */
+    private void process(final Stage stage, final Job job) {
+        ImageProcessEvent ipe = job.event();
+
+        try {
+            for (int i = 0; i < job.counts()[stage.ordinal()]; i++) {
+                //stop at the task boundary if the result is no longer wanted
+                if (ipe.isCancelled()) {
+                    this.finish(ipe, ImageMessageEventType.CANCELLED, "cancelled");
+                    return;
+
+                } else if (ipe.isExpired()) {
+                    queue.deadlineMissed();
+                    this.finish(ipe, ImageMessageEventType.EXPIRED, "deadline passed while processing");
+                    return;
+                }
+
+                AbstractImageTask task = ipe.processNextTask();
+
+                if (task instanceof ExitTask) {
+                    this.stopRunning();
+
+                } else if (task != null) {
+                    task.processTask(ipe);
+                }
+            }
+
+        } catch (final ImageTaskException | ImageProcessorException e) {
+            this.finish(ipe, ImageMessageEventType.ERROR, e.getMessage());
+            return;
+
+        } catch (final RuntimeException re) {
+            LOGGER.error("{} : failed processing {}", this, ipe, re);
+            this.finish(ipe, ImageMessageEventType.ERROR, re.getMessage());
+            return;
+        }
+
+        Stage next = job.next(stage);
+
+        if (next == null) {
+            this.finish(ipe, ImageMessageEventType.OK, null);
+
+        } else {
+            this.handOff(next, job);
+        }
+    }
+
+    /**
+     * Give an event to a stage, waiting while the stage is full.
+     * @param stage stage
+     * @param job event and its plan
+     */
+    private void handOff(final Stage stage, final Job job) {
+        try {
+            stages.get(stage).execute(() -> this.process(stage, job));
+
+        } catch (RejectedExecutionException ree) {
+            //only happens when we were interrupted while waiting for room
+            LOGGER.warn("{} : could not hand {} to {}", this, job.event(), stage);
+            this.finish(job.event(), ImageMessageEventType.ERROR, "pipeline stopped");
+        }
+    }
+
+    /**
+     * Send the result of an event to its source, any events the queue combined with it and the
+     * registered listeners, then tell the queue the event is done.
+     * @param ipe event
+     * @param type message type
+     * @param errormessage only if there was an error otherwise null
+     */
+    private void finish(final ImageProcessEvent ipe, final ImageMessageEventType type, final String errormessage) {
+        try {
+            this.sendMessageEvent(type, ipe, ipe.getImage(), errormessage);
+
+            for (ImageProcessEvent follower : queue.getFollowers(ipe)) {
+                this.sendMessageEvent(type, follower, ipe.getImage(), errormessage);
+            }
+
+        } finally {
+            queue.completed(ipe);
+        }
+    }
+
+    /**
+     * Send a message to the listener specified in the event and also to anyone
+     * registered as a listener.
+     * @param type message type
+     * @param ipe event the message is about, its source gets the message
+     * @param image final image
+     * @param errormessage only if there was an error otherwise null
+     */
+    private void sendMessageEvent(
+            final ImageMessageEventType type,
+            final ImageProcessEvent ipe,
+            final BufferedImage image,
+            final String errormessage) {
+
+        ImageMessageEventListener source = (ImageMessageEventListener) ipe.getSource();
+        ImageMessageEvent ime = new ImageMessageEvent(source, type, errormessage, image);
+        dispatcher.dispatch(ipe, ime);
+    }
+
+    /**
+     * Wait for a stage to finish the events it holds.
+     * @param executor threads of the stage
+     */
+    private void shutdown(final ThreadPoolExecutor executor) {
+        executor.shutdown();
+
+        try {
+            while (! executor.awaitTermination(1L, TimeUnit.SECONDS)) {
+                LOGGER.debug("{} : waiting for {} events", this, executor.getActiveCount() + executor.getQueue().size());
+            }
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create the threads of a stage. Handing an event to a full stage waits for room.
+     * @param stage stage
+     * @param threads number of threads
+     * @param capacity number of events waiting for a thread
+     * @return executor
+     */
+    private static ThreadPoolExecutor newStage(final Stage stage, final int threads, final int capacity) {
+        AtomicInteger count = new AtomicInteger();
+
+        return new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity),
+                r -> {
+                    Thread t = new Thread(r, "ImagePipeline-" + stage.name().toLowerCase() + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                (r, executor) -> {
+                    try {
+                        executor.getQueue().put(r);
+
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("interrupted while waiting for room", ie);
+                    }
+                });
+    }
+
+
+    /**
+     * The stages of the pipeline, in order.
+     */
+    public enum Stage {
+        /** reading images */
+        DECODE,
+
+        /** CPU bound tasks */
+        TRANSFORM,
+
+        /** writing, copying, moving and deleting files */
+        ENCODE,
+    }
+
+    /**
+     * An event going through the pipeline.
+     * @param event event
+     * @param counts number of tasks per stage, by stage ordinal
+     */
+    private record Job(ImageProcessEvent event, int[] counts) {
+
+        /**
+         * Get the next stage this event has tasks for.
+         * @param stage current stage, null before the first
+         * @return next stage or null if there is none
+         */
+        Stage next(final Stage stage) {
+            Stage[] values = Stage.values();
+
+            for (int i = stage == null ? 0 : stage.ordinal() + 1; i < values.length; i++) {
+                if (counts[i] > 0) {
+                    return values[i];
+                }
+            }
+
+            return null;
+        }
+    }
+
+}
@@ -2,11 +2,27 @@ package ca.mikegabelmann.imageprocessor;
 
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
 import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.TaskBranch;
 import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
 import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
 import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
@@ -21,13 +37,35 @@ import org.slf4j.LoggerFactory;
  * ImageProcessor will process the event and all its tasks then send a message
  * back to the event sender (if any) and any registered listeners.
  * Multiple ImageProcessors can be working on 1 Queue.
+ *
+ * <P>In VIRTUAL execution mode the ImageProcessor thread only takes events from the queue, each
+ * event runs on its own virtual thread. Up to maxInFlight events run at once, CPU bound tasks
+ * are limited to one per core across all ImageProcessors.</P>
  */
 public final class ImageProcessor implements Runnable {
     private static final Logger LOGGER = LoggerFactory.getLogger(ImageProcessor.class);
 
     //CONSTANTS
+    /** Most events taken from the queue at once. */
+    public static final int MAX_BATCH_SIZE = 16;
+
+    /** How often (ms) an event waiting for its branches checks whether it was abandoned. */
+    private static final long BRANCH_POLL_INTERVAL = 50L;
+
+    /** Default number of events running at once in VIRTUAL mode. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024 * 4;
+
+    /** Platform threads used in place of virtual threads on JVMs without them. */
+    static final int FALLBACK_THREADS = Runtime.getRuntime().availableProcessors() * 4;
+
+    /** Default least time (ms) between PROGRESS messages for an event. */
+    public static final long DEFAULT_PROGRESS_INTERVAL = 250L;
+
     /** Synchronization lock for altering the qty, id, currentId. */
     private static final Object lock = new Object();
+
+    /** Limits CPU bound tasks run on virtual threads to one per core. */
+    private static final Semaphore cpuStages = new Semaphore(Runtime.getRuntime().availableProcessors());
     
     //VARIABLES
     /** The number of image processors currently running. */
@@ -39,22 +77,88 @@ public final class ImageProcessor implements Runnable {
     /** Is this class processing images. */
     private volatile boolean running = false;
 
+    /** Is this class working on a batch of events, in VIRTUAL mode inFlight says instead. */
+    private volatile boolean busy = false;
+
+    /** Time (ns) this class last finished a batch, or started. */
+    private volatile long lastActive = System.nanoTime();
+
+    /** How long (ms) to wait for work before checking whether we were stopped, 0 waits forever. */
+    private volatile long pollTimeout = 0L;
+
+    /** Most events running at once in VIRTUAL mode. */
+    private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /** Least time (ms) between PROGRESS messages for an event. */
+    private volatile long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+    /** Thread taking work from the queue, null when not running. */
+    private volatile Thread runner;
+
     /** Our id number (see idcount above). */
     private final int id;
     
     /** Queue of stuff to process. */
     private final Queue queue;
+
+    /** How events are run. */
+    private final ExecutionMode mode;
+
+    /** Number of events running in VIRTUAL mode. */
+    private final AtomicInteger inFlight;
+
+    /** Number of events processed. */
+    private final AtomicInteger processed;
+
+    /** Number of events taken from the queue and handed back unprocessed. */
+    private final AtomicInteger requeued;
     
-    /** List of listeners that are waiting for events from us. */
-    private final List<ImageMessageEventListener> listeners;
+    /** Sends our messages to the event sources and the listeners that are waiting for them. */
+    private volatile MessageDispatcher dispatcher;
+
+    /** Keeps events and tasks within their budgets. */
+    private volatile Watchdog watchdog = Watchdog.getShared();
+
+    /** The watchdog gave up on the task this object is stuck in. */
+    private volatile boolean abandoned = false;
+
+    /** Only take work its subscribers have asked for, null to take work as it comes. */
+    private volatile ResultPublisher publisher;
 
 
     /**
-     * Creates a new instance of this object.
+     * Creates a new instance of this object with its own queue.
      */
     public ImageProcessor() {
-        this.queue = new Queue();
-        this.listeners = new ArrayList<>(10);
+        this(new Queue());
+    }
+
+    /**
+     * Creates a new instance of this object that takes its work from the given queue. Use
+     * this to have several ImageProcessors share one queue.
+     * @param queue queue to take work from
+     */
+    public ImageProcessor(final Queue queue) {
+        this(queue, ExecutionMode.PLATFORM);
+    }
+
+    /**
+     * Creates a new instance of this object that takes its work from the given queue and runs
+     * it in the given mode.
+     * @param queue queue to take work from
+     * @param mode how events are run, null for PLATFORM
+     */
+    public ImageProcessor(final Queue queue, final ExecutionMode mode) {
+        if (queue == null) {
+            throw new IllegalArgumentException("queue cannot be null");
+        }
+
+        this.queue = queue;
+        this.mode = mode == null ? ExecutionMode.PLATFORM : mode;
+        this.inFlight = new AtomicInteger();
+        this.processed = new AtomicInteger();
+        this.requeued = new AtomicInteger();
+        this.dispatcher = new MessageDispatcher();
 
         synchronized (lock) {
             this.id = ++currentId;
@@ -63,11 +167,19 @@ public final class ImageProcessor implements Runnable {
 
     /**
      * Force this object to exit. Not the best way to exit as other objects
-     * may be using this object for processing tasks.
+     * may be using this object for processing tasks. The event being worked on is
+     * finished, if this object is waiting for work it is woken up.
      */
     public synchronized void stopRunning() {
         this.running = false;
 
+        //busy is set before running is checked, so an idle thread cannot start an event after this
+        Thread t = runner;
+
+        if (t != null && (mode == ExecutionMode.VIRTUAL || ! busy)) {
+            t.interrupt();
+        }
+
         try {
             notifyAll();
 
@@ -84,27 +196,179 @@ public final class ImageProcessor implements Runnable {
             ++qty;
         }
 
+        queue.enter();
+
         LOGGER.info("{} : starting", this);
 
+        this.runner = Thread.currentThread();
+        this.lastActive = System.nanoTime();
+
+        try {
+            if (mode == ExecutionMode.VIRTUAL) {
+                this.dispatchEvents();
+
+            } else {
+                this.processBatches();
+            }
+
+        } finally {
+            this.running = false;
+            this.runner = null;
+
+            //anything left in lanes of our own goes to the processors still running
+            queue.leave();
+
+            //reduce the count
+            synchronized (lock) {
+                qty--;
+            }
+
+            //if we get here this object is exiting
+            LOGGER.info("{} : exiting", this);
+        }
+    }
+
+    /**
+     * Take batches of events from the queue and process them on this thread until stopped.
+     */
+    private void processBatches() {
+        List<ImageProcessEvent> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
         while (running) {
-            ImageProcessEvent ipe = queue.getWork();
-            
-            //NOTE: BLOCKS HERE UNTIL wait() ELAPSES OR QUEUE NOTIFIES US OF WORK TO DO     
-            
-            if (ipe == null) {
-                continue;
+            this.takeWork(batch, this.getBatchSize());
+
+            //NOTE: BLOCKS HERE UNTIL THERE IS WORK TO DO OR WE ARE INTERRUPTED
+
+            int processed = 0;
+            this.busy = ! batch.isEmpty();
+
+            try {
+                while (processed < batch.size() && running) {
+                    this.processEvent(batch.get(processed++));
+                }
+
+            } finally {
+                //we were stopped (or failed) part way through the batch, give the rest back to the queue
+                if (processed < batch.size()) {
+                    this.returnWork(batch.subList(processed, batch.size()));
+                }
+
+                if (busy) {
+                    this.busy = false;
+                    this.lastActive = System.nanoTime();
+                }
+
+                batch.clear();
             }
-            
-            this.processEvent(ipe);
         }
-        
-        //reduce the count
-        synchronized (lock) {
-            qty--;
+    }
+
+    /**
+     * Take events from the queue one at a time and run each on its own (virtual) thread until
+     * stopped. Events are only taken while there is room for them to run, so the rest keep their
+     * place in the queue. Events still running when we stop are allowed to finish.
+     */
+    private void dispatchEvents() {
+        ExecutorService executor = newEventExecutor();
+        Semaphore room = new Semaphore(maxInFlight);
+        List<ImageProcessEvent> batch = new ArrayList<>(1);
+
+        try {
+            while (running) {
+                try {
+                    room.acquire();
+
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+
+                this.takeWork(batch, 1);
+
+                if (batch.isEmpty() || ! running) {
+                    this.returnWork(batch);
+                    batch.clear();
+                    room.release();
+                    continue;
+                }
+
+                ImageProcessEvent ipe = batch.remove(0);
+                inFlight.incrementAndGet();
+
+                executor.execute(() -> {
+                    try {
+                        this.processEvent(ipe);
+
+                    } catch (RuntimeException re) {
+                        LOGGER.error("{} : failed processing {}", this, ipe, re);
+
+                    } finally {
+                        room.release();
+
+                        if (inFlight.decrementAndGet() == 0) {
+                            this.lastActive = System.nanoTime();
+                        }
+                    }
+                });
+            }
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Take up to max events from the queue, waiting for at most the poll timeout.
+     * @param batch list to add the events to
+     * @param max most events to take
+     */
+    private void takeWork(final List<ImageProcessEvent> batch, final int max) {
+        long timeout = pollTimeout;
+        ResultPublisher p = publisher;
+        int allowed = max;
+
+        if (p != null) {
+            //NOTE: BLOCKS HERE UNTIL THE SUBSCRIBERS WANT MORE RESULTS
+            try {
+                allowed = p.reserve(max, timeout);
+
+            } catch (InterruptedException ie) {
+                return;
+            }
+
+            if (allowed == 0) {
+                return;
+            }
+        }
+
+        if (timeout > 0L) {
+            queue.drainTo(batch, allowed, timeout, TimeUnit.MILLISECONDS);
+
+        } else {
+            queue.drainTo(batch, allowed);
+        }
+
+        if (p != null) {
+            p.release(allowed - batch.size());
+        }
+    }
+
+    /**
+     * Hand events back to the queue unprocessed.
+     * @param events events to return
+     */
+    private void returnWork(final List<ImageProcessEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+
+        requeued.addAndGet(events.size());
+        queue.returnWork(events);
+
+        ResultPublisher p = publisher;
+
+        if (p != null) {
+            p.release(events.size());
         }
-        
-        //if we get here this object is exiting
-        LOGGER.info("{} : exiting", this);
     }
 
     /**
@@ -115,6 +379,77 @@ public final class ImageProcessor implements Runnable {
         return running;
     }
 
+    /**
+     * Is this object working on events.
+     * @return true if busy
+     */
+    public boolean isBusy() {
+        return mode == ExecutionMode.VIRTUAL ? inFlight.get() > 0 : busy;
+    }
+
+    /**
+     * How long this object has been waiting for work.
+     * @return idle time in ms, 0 while working on events
+     */
+    public long getIdleTime() {
+        return this.isBusy() ? 0L : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActive);
+    }
+
+    public long getPollTimeout() {
+        return pollTimeout;
+    }
+
+    /**
+     * Set how long to wait for work before checking whether this object was stopped. By default
+     * it waits until there is work, so it has to be interrupted to notice stopRunning().
+     * @param pollTimeout time in ms, 0 to wait forever
+     */
+    public void setPollTimeout(final long pollTimeout) {
+        this.pollTimeout = Math.max(0L, pollTimeout);
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Get the number of events running in VIRTUAL mode.
+     * @return number of events running
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get the number of events this object has processed, whatever the outcome.
+     * @return number of events processed
+     */
+    public int getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Get the number of events this object took from the queue but handed back because it was
+     * stopped before starting them.
+     * @return number of events returned to the queue
+     */
+    public int getRequeued() {
+        return requeued.get();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Set the most events running at once in VIRTUAL mode. Takes effect the next time this
+     * object is started.
+     * @param maxInFlight number of events, at least 1
+     */
+    public void setMaxInFlight(final int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
     /**
      * Get the queue. You add images to be processed to the Queue and the ImageProcesor
      * will retrieve and process them based on the tasks given.
@@ -129,30 +464,56 @@ public final class ImageProcessor implements Runnable {
      * any event that we process.
      * @param pil who to send events to
      */
-    public synchronized boolean addEventListener(final ImageMessageEventListener pil) {
+    public boolean addEventListener(final ImageMessageEventListener pil) {
         if (pil == null) {
             return false;
 
-        } else if (listeners.contains(pil)) {
+        } else {
+            LOGGER.debug("{}: registered a listener", this);
+            return dispatcher.addEventListener(pil);
+        }
+    }
+
+    /**
+     * Set a listener that is also told as each task of an event is done, with a PROGRESS
+     * message naming the task and how long it took. Messages for an event are at least the
+     * progress interval apart, so short tasks are not reported one by one.
+     * @param pil who to send events to
+     * @return true if registered
+     */
+    public boolean addProgressListener(final ImageMessageEventListener pil) {
+        if (pil == null) {
             return false;
 
         } else {
-            LOGGER.debug("{}: registered a listener", this);
-            return listeners.add(pil);
+            LOGGER.debug("{}: registered a progress listener", this);
+            return dispatcher.addProgressListener(pil);
         }
     }
 
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Set the least time between PROGRESS messages for an event.
+     * @param progressInterval time in ms, 0 to report every task
+     */
+    public void setProgressInterval(final long progressInterval) {
+        this.progressInterval = Math.max(0L, progressInterval);
+    }
+
     /**
      * Remove an event listener. deregister the given listener from the list of listeners.
      * @param pil object that does not want to receive ProcessMessageEvents
      */
-    public synchronized boolean removeEventListener(final ImageMessageEventListener pil) {
+    public boolean removeEventListener(final ImageMessageEventListener pil) {
         if (pil == null) {
             return false;
 
         }  else {
             LOGGER.debug("{}: unregistered a listener", this);
-            return listeners.remove(pil);
+            return dispatcher.removeEventListener(pil);
         }
     }
 
@@ -161,8 +522,80 @@ public final class ImageProcessor implements Runnable {
      * @param pil listener to test
      * @return true if a registered listener, false otherwise
      */
-    public synchronized boolean hasEventListener(final ImageMessageEventListener pil) {
-        return listeners.contains(pil);
+    public boolean hasEventListener(final ImageMessageEventListener pil) {
+        return dispatcher.hasEventListener(pil);
+    }
+
+    public Watchdog getWatchdog() {
+        return watchdog;
+    }
+
+    public ResultPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Publish our messages to the subscribers of the given publisher and only take events from
+     * the queue once they have asked for more results. Set before starting.
+     * @param publisher publisher, or null to take events as they come
+     */
+    public void setPublisher(final ResultPublisher publisher) {
+        ResultPublisher old = this.publisher;
+
+        if (old != null) {
+            dispatcher.removeEventListener(old);
+        }
+
+        if (publisher != null) {
+            dispatcher.addEventListener(publisher);
+        }
+
+        this.publisher = publisher;
+    }
+
+    /**
+     * Set the watchdog that keeps events and tasks within their budgets. By default a shared
+     * watchdog without task budgets is used, so only event budgets are enforced.
+     * @param watchdog watchdog to use
+     */
+    public void setWatchdog(final Watchdog watchdog) {
+        if (watchdog == null) {
+            throw new IllegalArgumentException("watchdog cannot be null");
+        }
+
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * Did the watchdog give up on the task this object is working on. The event was answered
+     * and this object exits once the task returns, it will not take any more work.
+     * @return true if abandoned
+     */
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Set how our messages are sent. By default they are sent on the thread that processed the
+     * event, use an asynchronous dispatcher to keep slow listeners from holding up processing.
+     * Several processors may share one dispatcher. The listeners registered with this object are
+     * moved to the new dispatcher.
+     * @param dispatcher dispatcher to use
+     */
+    public synchronized void setDispatcher(final MessageDispatcher dispatcher) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("dispatcher cannot be null");
+        }
+
+        MessageDispatcher old = this.dispatcher;
+        old.getProgressListeners().forEach(dispatcher::addProgressListener);
+        old.getEventListeners().forEach(dispatcher::addEventListener);
+
+        this.dispatcher = dispatcher;
     }
 
     @Override
@@ -170,6 +603,60 @@ public final class ImageProcessor implements Runnable {
         return "ImageProcessor" + id;
     }
 
+    /**
+     * Number of events to take from the queue at once. Short events benefit from larger
+     * batches, but we only take our share of the backlog so the other consumers of our queue
+     * are not left idle.
+     * @return batch size between 1 and MAX_BATCH_SIZE
+     */
+    int getBatchSize() {
+        int share = queue.numElements() / Math.max(1, queue.getConsumers());
+        return Math.max(1, Math.min(MAX_BATCH_SIZE, share));
+    }
+
+    /**
+     * Create an executor that runs every task on a new virtual thread. Virtual threads are
+     * looked up at runtime so the library still runs on JVMs without them, where a pool of
+     * FALLBACK_THREADS platform threads is used instead and the other tasks wait their turn.
+     * @return executor
+     */
+    static ExecutorService newEventExecutor() {
+        return newExecutor(false);
+    }
+
+    /**
+     * Create an executor that runs every task on a new virtual thread, or on a bounded pool of
+     * platform threads on JVMs without them.
+     * @param callerRuns on platform threads, run a task on the submitting thread when every thread
+     *                   is busy, for tasks that wait on the tasks they submit (queued they could
+     *                   wait on each other forever)
+     * @return executor
+     */
+    private static ExecutorService newExecutor(final boolean callerRuns) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            LOGGER.warn("virtual threads are not available, using at most {} platform threads", FALLBACK_THREADS);
+
+            AtomicInteger count = new AtomicInteger();
+            ThreadFactory factory = r -> {
+                Thread t = new Thread(r, "ImageProcessor-event-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+
+            ThreadPoolExecutor executor = callerRuns
+                    ? new ThreadPoolExecutor(FALLBACK_THREADS, FALLBACK_THREADS, 60L, TimeUnit.SECONDS,
+                            new SynchronousQueue<>(), factory, new ThreadPoolExecutor.CallerRunsPolicy())
+                    : new ThreadPoolExecutor(FALLBACK_THREADS, FALLBACK_THREADS, 60L, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(), factory);
+
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
     /**
      * Get a running instance.
      * @param imageProcessor image processor
@@ -187,43 +674,288 @@ public final class ImageProcessor implements Runnable {
     }
 
     /**
-     * Process an event from the Queue. Processes each task in order (FIFO). A message
-     * will be returned if successful and the object is a registered listener. An error
-     * message will be returned if anything happens which causes the event to NOT be 
-     * processed.
+     * Process an event from the Queue. Processes each task in order (FIFO), then the branches
+     * of the event in parallel. A message will be returned if successful and the object is a
+     * registered listener. An error message will be returned if anything happens which causes
+     * the event to NOT be processed, and a cancelled (or expired) message if the event was
+     * cancelled (or its deadline passed) before its last task. An event or task that runs over
+     * its budget is answered with a timeout message.
      * @param ipe event currently being processed
      */
     void processEvent(final ImageProcessEvent ipe) {
-        //we don't bother checking type as ImageProcessEvent can only EVER contain given type
-        ImageMessageEventListener pil = (ImageMessageEventListener) ipe.getSource();
+        Processing p = new Processing(ipe);
 
         try {
             //process all the tasks stored in this event (FIFO)
             //if an error occurs we send an error message, stop processing this event and wait for another
-            while (ipe.getSize() > 0) {
-                AbstractImageTask task = ipe.processNextTask();
-
-                if (task instanceof ExitTask) {
-                    this.running = false;
-                    break;
+            this.runTasks(p, ipe);
 
-                } else {
-                    this.processTask(ipe, task);
-                }
-            }
+            //then the branches, which all start from the image the tasks produced
+            List<BufferedImage> outputs = ipe.hasBranches() ? this.runBranches(p, ipe.getBranches(), ipe.getImage()) : List.of();
 
             //reply with an OK message
-            this.sendMessageEvent(ImageMessageEventType.OK, pil, ipe.getImage(), null);
+            this.reply(p, ImageMessageEventType.OK, null, outputs);
+
+        } catch (final Stopped s) {
+            this.reply(p, s.type, s.getMessage(), List.of());
 
         } catch (final ImageTaskException ite) {
             //an error occurred with the task given. Unavailable resources, etc.
-            this.sendMessageEvent(ImageMessageEventType.ERROR, pil, ipe.getImage(), ite.getMessage());
+            this.reply(p, ImageMessageEventType.ERROR, ite.getMessage(), List.of());
 
         } catch (final ImageProcessorException ie) {
             //an error occurred processing the task which the ImageProcessor cannot recover from and
             //must stop processing this event.
-            this.sendMessageEvent(ImageMessageEventType.ERROR, pil, ipe.getImage(), ie.getMessage());
+            this.reply(p, ImageMessageEventType.ERROR, ie.getMessage(), List.of());
+
+        } catch (final RuntimeException re) {
+            //a bug in a task, the source must still hear back and the processor keeps running
+            LOGGER.error("{} : failed processing {}", this, ipe, re);
+            this.reply(p, ImageMessageEventType.ERROR, re.toString(), List.of());
+
+        } finally {
+            processed.incrementAndGet();
+            queue.completed(ipe);
+        }
+    }
+
+    /**
+     * Process the tasks of an event, or of one of its branches, in order.
+     * @param p event being processed
+     * @param work event (or branch copy of it) holding the tasks and the image they work on
+     * @throws Stopped if the event was cancelled, expired or ran over its budget
+     * @throws ImageTaskException if a task is invalid
+     * @throws ImageProcessorException if there is a problem performing a task
+     */
+    private void runTasks(final Processing p, final ImageProcessEvent work)
+            throws Stopped, ImageTaskException, ImageProcessorException {
+
+        while (work.getSize() > 0) {
+            //stop at the task boundary if the result is no longer wanted
+            if (p.event.isCancelled()) {
+                throw new Stopped(ImageMessageEventType.CANCELLED, "cancelled");
+
+            } else if (p.event.isExpired()) {
+                queue.deadlineMissed();
+                throw new Stopped(ImageMessageEventType.EXPIRED, "deadline passed while processing");
+
+            } else if (p.isOverBudget()) {
+                throw new Stopped(ImageMessageEventType.TIMEOUT, "event ran over its budget");
+            }
+
+            int left = work.getSize();
+            AbstractImageTask task = work.processNextTask();
+
+            if (task instanceof ExitTask) {
+                this.running = false;
+
+                //in VIRTUAL mode the thread taking work may be waiting on the queue
+                Thread t = runner;
+
+                if (t != null && t != Thread.currentThread()) {
+                    t.interrupt();
+                }
+
+                break;
+            }
+
+            //only time the task if someone wants to know
+            MessageDispatcher d = dispatcher;
+            boolean timed = d.hasProgressListeners();
+            long start = timed ? System.nanoTime() : 0L;
+
+            int outcome = this.runTask(p, work, task);
+
+            if (outcome != Watchdog.Ticket.IN_TIME) {
+                //if abandoned the watchdog already answered the event, this reply is ignored
+                throw new Stopped(ImageMessageEventType.TIMEOUT, "task ran over its budget");
+            }
+
+            if (timed) {
+                //a task may do the ones after it too (a read does a crop)
+                this.progress(p, d, task, start, left - work.getSize());
+            }
+        }
+    }
+
+    /**
+     * Run branches in parallel, each on its own copy of the event starting from the given image.
+     * The first branch runs on this thread.
+     * @param p event being processed
+     * @param branches branches to run
+     * @param image image the branches start from, shared read-only
+     * @return images produced, in the order of the branches
+     * @throws Stopped if the event was cancelled, expired or ran over its budget
+     * @throws ImageTaskException if a task is invalid
+     * @throws ImageProcessorException if there is a problem performing a task
+     */
+    private List<BufferedImage> runBranches(final Processing p, final List<TaskBranch> branches, final BufferedImage image)
+            throws Stopped, ImageTaskException, ImageProcessorException {
+
+        List<Future<List<BufferedImage>>> others = new ArrayList<>(branches.size() - 1);
+
+        for (TaskBranch branch : branches.subList(1, branches.size())) {
+            others.add(BranchExecutor.EXECUTOR.submit(() -> this.runBranch(p, branch, image)));
+        }
+
+        List<BufferedImage> outputs = new ArrayList<>();
+        boolean done = false;
+
+        try {
+            outputs.addAll(this.runBranch(p, branches.get(0), image));
+
+            for (Future<List<BufferedImage>> other : others) {
+                outputs.addAll(this.await(p, other));
+            }
+
+            done = true;
+            return outputs;
+
+        } finally {
+            //one branch failed, the result of the others is not wanted
+            if (! done) {
+                others.forEach(f -> f.cancel(true));
+            }
+        }
+    }
+
+    /**
+     * Run the tasks of a branch, then the branches that continue from it.
+     * @param p event being processed
+     * @param branch branch to run
+     * @param image image the branch starts from
+     * @return images produced by the branch
+     * @throws Stopped if the event was cancelled, expired or ran over its budget
+     * @throws ImageTaskException if a task is invalid
+     * @throws ImageProcessorException if there is a problem performing a task
+     */
+    private List<BufferedImage> runBranch(final Processing p, final TaskBranch branch, final BufferedImage image)
+            throws Stopped, ImageTaskException, ImageProcessorException {
+
+        ImageProcessEvent work = new ImageProcessEvent(p.event.getPriority(), (ImageMessageEventListener) p.event.getSource(), image);
+        branch.getTasks().forEach(work::addTask);
+
+        this.runTasks(p, work);
+
+        if (branch.getBranches().isEmpty()) {
+            return Collections.singletonList(work.getImage());
         }
+
+        return this.runBranches(p, branch.getBranches(), work.getImage());
+    }
+
+    /**
+     * Wait for a branch running on another thread. Stops waiting if the watchdog gave up on it.
+     * @param p event being processed
+     * @param branch branch
+     * @return images produced by the branch
+     * @throws Stopped if the branch stopped, or this thread was interrupted
+     * @throws ImageTaskException if a task is invalid
+     * @throws ImageProcessorException if there is a problem performing a task
+     */
+    private List<BufferedImage> await(final Processing p, final Future<List<BufferedImage>> branch)
+            throws Stopped, ImageTaskException, ImageProcessorException {
+
+        try {
+            while (true) {
+                try {
+                    return branch.get(BRANCH_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+                } catch (TimeoutException te) {
+                    if (p.answered.get()) {
+                        throw new Stopped(ImageMessageEventType.TIMEOUT, "task ran over its budget and was abandoned");
+                    }
+                }
+            }
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new Stopped(ImageMessageEventType.ERROR, "interrupted waiting for a branch");
+
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+
+            if (cause instanceof Stopped s) {
+                throw s;
+
+            } else if (cause instanceof ImageTaskException ite) {
+                throw ite;
+
+            } else if (cause instanceof ImageProcessorException ipe) {
+                throw ipe;
+
+            } else if (cause instanceof Error e) {
+                throw e;
+            }
+
+            throw (RuntimeException) cause;
+        }
+    }
+
+    /**
+     * Process a task, under the watchdog if the task or what is left of the event has a budget.
+     * A task that fails after running over its budget counts as a timeout rather than an error.
+     * @param p event being processed
+     * @param work event (or branch copy of it) the task belongs to
+     * @param task task to process
+     * @return IN_TIME, OVERRUN or ABANDONED
+     * @throws ImageTaskException if the task is invalid
+     * @throws ImageProcessorException if there is a problem performing the task
+     */
+    private int runTask(
+            final Processing p,
+            final ImageProcessEvent work,
+            final AbstractImageTask task)
+            throws ImageTaskException, ImageProcessorException {
+
+        Watchdog w = watchdog;
+        long budget = task == null ? Watchdog.NO_BUDGET : w.getBudget(task);
+
+        if (budget == Watchdog.NO_BUDGET && p.deadline == Long.MAX_VALUE) {
+            this.processTask(work, task);
+            return Watchdog.Ticket.IN_TIME;
+        }
+
+        Thread t = Thread.currentThread();
+        long end = budget == Watchdog.NO_BUDGET ? p.deadline : Math.min(p.deadline, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget));
+        Watchdog.Ticket ticket = w.watch(end, () -> this.abandon(p, t));
+        int outcome;
+
+        try {
+            this.processTask(work, task);
+            outcome = ticket.finish();
+
+        } catch (ImageTaskException | ImageProcessorException | RuntimeException e) {
+            outcome = ticket.finish();
+
+            if (outcome == Watchdog.Ticket.IN_TIME) {
+                throw e;
+            }
+        }
+
+        if (outcome != Watchdog.Ticket.IN_TIME) {
+            //clear the watchdog's interrupt so it does not hit the next task
+            Thread.interrupted();
+        }
+
+        return outcome;
+    }
+
+    /**
+     * Give up on an event whose task did not stop when interrupted. The event is answered now.
+     * In PLATFORM mode, if the task is stuck on the thread processing the event (not a branch),
+     * this object stops taking work and exits once the task returns.
+     * @param p event being processed
+     * @param stuck thread running the task
+     */
+    private void abandon(final Processing p, final Thread stuck) {
+        if (mode == ExecutionMode.PLATFORM && stuck == p.thread) {
+            this.abandoned = true;
+            this.running = false;
+        }
+
+        this.reply(p, ImageMessageEventType.TIMEOUT, "task ran over its budget and was abandoned", List.of());
+        queue.completed(p.event);
     }
 
     /**
@@ -244,36 +976,191 @@ public final class ImageProcessor implements Runnable {
             return;
         }
         
-        //process the received task
-        task.processTask(ipe);
+        //on virtual threads keep CPU bound tasks to one per core, other tasks are mostly waiting
+        if (mode == ExecutionMode.VIRTUAL && task.isCpuBound()) {
+            cpuStages.acquireUninterruptibly();
+
+            try {
+                task.processTask(ipe);
+
+            } finally {
+                cpuStages.release();
+            }
+
+        } else {
+            //process the received task
+            task.processTask(ipe);
+        }
+    }
+
+    /**
+     * Tell the progress listeners a task is done, unless the last message for the event was
+     * sent less than the progress interval ago.
+     * @param p event being processed
+     * @param d dispatcher to send the message with
+     * @param task task just performed
+     * @param start time (System.nanoTime()) the task started
+     * @param done number of tasks done, including any the task took out of the event
+     */
+    private void progress(
+            final Processing p,
+            final MessageDispatcher d,
+            final AbstractImageTask task,
+            final long start,
+            final int done) {
+
+        long now = System.nanoTime();
+        int step = p.step.addAndGet(done);
+        long last = p.lastProgress.get();
+
+        //branches report for the same event, only one of them sends
+        if (p.answered.get() || now - last < TimeUnit.MILLISECONDS.toNanos(progressInterval) || ! p.lastProgress.compareAndSet(last, now)) {
+            return;
+        }
+
+        String stage = task == null ? null : task.getClass().getSimpleName();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(now - start);
+
+        d.dispatchProgress(ImageMessageEvent.createProgressEvent((ImageMessageEventListener) p.event.getSource(), stage, elapsed, step, p.steps));
+    }
+
+    /**
+     * Send the result of an event to its source, and to the sources of any identical events
+     * the queue combined with it. Only the first result of an event is sent.
+     * @param p event that was processed
+     * @param type message type
+     * @param errormessage only if there was an error otherwise null
+     * @param outputs images produced by the branches of the event
+     */
+    private void reply(
+            final Processing p,
+            final ImageMessageEventType type,
+            final String errormessage,
+            final List<BufferedImage> outputs) {
+
+        if (! p.answered.compareAndSet(false, true)) {
+            return;
+        }
+
+        ImageProcessEvent ipe = p.event;
+        this.sendMessageEvent(type, ipe, ipe.getImage(), errormessage, outputs);
+
+        for (ImageProcessEvent follower : queue.getFollowers(ipe)) {
+            this.sendMessageEvent(type, follower, ipe.getImage(), errormessage, outputs);
+        }
     }
 
     /**
      * Send a message to the listener specified in the event and also to anyone
      * registered as a listener.
      * @param type message type
-     * @param source send result to this listener
+     * @param ipe event the message is about, its source gets the message
      * @param image final image
      * @param errormessage only if there was an error otherwise null
+     * @param outputs images produced by the branches of the event
      */
     private void sendMessageEvent(
             final ImageMessageEventType type,
-            final ImageMessageEventListener source,
+            final ImageProcessEvent ipe,
             final BufferedImage image,
-            final String errormessage) {
+            final String errormessage,
+            final List<BufferedImage> outputs) {
                                       
+        //we don't bother checking type as ImageProcessEvent can only EVER contain given type
+        ImageMessageEventListener source = (ImageMessageEventListener) ipe.getSource();
         ImageMessageEvent ime = new ImageMessageEvent(source, type, errormessage, image);
+        ime.setOutputs(outputs);
         
-        //send an event back to a registered listener, if any
-        source.eventPerformed(ime);
-        
-        //loop over all the registered listeners, and send event to them
-        for (ImageMessageEventListener listener : listeners) {
-            if (listener != source) {
-                //don't send duplicate event
-                listener.eventPerformed(ime);
+        //send an event back to the source and to all the registered listeners
+        dispatcher.dispatch(ipe, ime);
+    }
+
+
+
+    /**
+     * <P>An event being processed, shared by the threads running its branches.</P>
+     */
+    private static final class Processing {
+        /** Event being processed. */
+        private final ImageProcessEvent event;
+
+        /** Time (System.nanoTime()) the event must be done by, Long.MAX_VALUE for none. */
+        private final long deadline;
+
+        /** The event has been answered. */
+        private final AtomicBoolean answered;
+
+        /** Thread processing the event, its branches may run on others. */
+        private final Thread thread;
+
+        /** Number of tasks in the event, including its branches. */
+        private final int steps;
+
+        /** Number of tasks done so far, counted while there are progress listeners. */
+        private final AtomicInteger step;
+
+        /** Time (System.nanoTime()) of the last PROGRESS message, or when processing started. */
+        private final AtomicLong lastProgress;
+
+
+        Processing(final ImageProcessEvent event) {
+            long budget = event.getBudget();
+
+            this.event = event;
+            this.deadline = budget == ImageProcessEvent.NO_BUDGET ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+            this.answered = new AtomicBoolean();
+            this.thread = Thread.currentThread();
+            this.steps = event.getSize() + countTasks(event.getBranches());
+            this.step = new AtomicInteger();
+            this.lastProgress = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Count the tasks of some branches and of the branches that continue from them.
+         * @param branches branches
+         * @return number of tasks
+         */
+        private static int countTasks(final List<TaskBranch> branches) {
+            int count = 0;
+
+            for (TaskBranch branch : branches) {
+                count += branch.getTasks().size() + countTasks(branch.getBranches());
             }
+
+            return count;
+        }
+
+        /**
+         * Has the event run over its budget.
+         * @return true if over budget
+         */
+        boolean isOverBudget() {
+            return deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0L;
+        }
+    }
+
+    /**
+     * <P>Processing of an event stopped before it was done.</P>
+     */
+    private static final class Stopped extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        /** Message type to answer the event with. */
+        private final ImageMessageEventType type;
+
+
+        Stopped(final ImageMessageEventType type, final String message) {
+            super(message, null, false, false);
+            this.type = type;
         }
     }
 
+    /**
+     * <P>Runs branches of events, only created once an event has branches.</P>
+     */
+    private static final class BranchExecutor {
+        /** Shared by all processors. */
+        private static final ExecutorService EXECUTOR = newExecutor(true);
+    }
+
 }
@@ -0,0 +1,514 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <P>A group of <CODE>ImageProcessor</CODE>s that share one <CODE>Queue</CODE>. The pool keeps
+ * between a minimum and a maximum number of processors running.</P>
+ *
+ * <P>Every CHECK_INTERVAL ms the pool looks at the queue. A processor is added when the backlog
+ * is more than each processor can keep up with, or when events have been waiting longer than
+ * the target wait. A processor that has been idle for the idle timeout is retired, as long as
+ * the minimum is still met. A processor that dies (an ExitTask or an unexpected exception), or
+ * is stuck in a task its watchdog gave up on, is replaced.</P>
+ *
+ * <P>Use shutdown() to stop the pool without losing work. The queue is closed to new events,
+ * the backlog is either processed or left in the queue, and anything still running when the
+ * deadline passes is interrupted.</P>
+ *
+ * <PRE>
+ *     ImageProcessorPool pool = new ImageProcessorPool(new Queue(), 2, 8);
+ *     pool.start();
+ *     pool.getQueue().eventPerformed(event);
+ * </PRE>
+ */
+public final class ImageProcessorPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageProcessorPool.class);
+
+    //CONSTANTS
+    /** How often (ms) the pool checks the queue. */
+    public static final long CHECK_INTERVAL = 250L;
+
+    /** Default time (ms) events may wait before another processor is added. */
+    public static final long DEFAULT_TARGET_WAIT = 500L;
+
+    /** Default time (ms) a processor may be idle before it is retired. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 1000L * 60;
+
+    /** Default number of waiting events each processor is expected to keep up with. */
+    public static final int DEFAULT_BACKLOG = 4;
+
+    /** How often (ms) a draining shutdown checks whether the queue is empty. */
+    private static final long DRAIN_INTERVAL = 10L;
+
+    //VARIABLES
+    /** Queue shared by the processors. */
+    private final Queue queue;
+
+    /** Fewest processors to keep running. */
+    private final int minSize;
+
+    /** Most processors to run. */
+    private final int maxSize;
+
+    /** Running processors and their threads, oldest first. */
+    private final Map<ImageProcessor, Thread> workers;
+
+    /** Listeners registered with every processor. */
+    private final List<ImageMessageEventListener> listeners;
+
+    /** Time (ms) events may wait before another processor is added. */
+    private volatile long targetWait = DEFAULT_TARGET_WAIT;
+
+    /** Time (ms) a processor may be idle before it is retired. */
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /** Waiting events each processor is expected to keep up with. */
+    private volatile int backlog = DEFAULT_BACKLOG;
+
+    /** Dispatcher shared by the processors, null for each to send its own messages. */
+    private volatile MessageDispatcher dispatcher;
+
+    /** Watchdog shared by the processors, null for the shared default. */
+    private volatile Watchdog watchdog;
+
+    /** Publisher whose subscribers throttle the processors, null to take work as it comes. */
+    private volatile ResultPublisher publisher;
+
+    /** Checks the queue, null when the pool is not running. */
+    private ScheduledExecutorService scaler;
+
+
+    /**
+     * Creates a new pool with its own queue, running between 1 processor and one per CPU.
+     */
+    public ImageProcessorPool() {
+        this(new Queue(), 1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new pool.
+     * @param queue queue the processors take their work from
+     * @param minSize fewest processors to keep running, at least 1
+     * @param maxSize most processors to run, at least minSize
+     */
+    public ImageProcessorPool(final Queue queue, final int minSize, final int maxSize) {
+        if (queue == null) {
+            throw new IllegalArgumentException("queue cannot be null");
+
+        } else if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("sizes must satisfy 1 <= minSize <= maxSize");
+        }
+
+        this.queue = queue;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.workers = new LinkedHashMap<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Start the minimum number of processors and begin scaling. Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (scaler != null) {
+            return;
+        }
+
+        scaler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ImageProcessorPool-scaler");
+            t.setDaemon(true);
+            return t;
+        });
+
+        while (workers.size() < minSize) {
+            this.addWorker();
+        }
+
+        scaler.scheduleWithFixedDelay(this::scale, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        LOGGER.info("{} : started", this);
+    }
+
+    /**
+     * Stop scaling and stop every processor. Each processor finishes the event it is working on,
+     * the events it had taken but not started are returned to the queue.
+     */
+    public synchronized void stop() {
+        if (scaler == null) {
+            return;
+        }
+
+        scaler.shutdownNow();
+        scaler = null;
+
+        for (ImageProcessor ip : workers.keySet()) {
+            ip.stopRunning();
+        }
+
+        workers.clear();
+        LOGGER.info("{} : stopped", this);
+    }
+
+    /**
+     * Stop the pool in an orderly way and wait for it. The queue is closed so new events are
+     * rejected, then depending on the mode the waiting events are either processed (DRAIN) or
+     * left in the queue (PERSIST), where its journal, if any, keeps them for the next start.
+     * Events already running may finish until the deadline, after that the processors are
+     * interrupted. Events a processor had taken but not started are returned to the queue. The
+     * queue stays closed afterwards.
+     * @param mode what to do with the waiting events
+     * @param timeout time in ms to wait before interrupting the processors
+     * @return what happened to the work
+     */
+    public ShutdownReport shutdown(final ShutdownMode mode, final long timeout) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode cannot be null");
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, timeout));
+        Map<ImageProcessor, Thread> stopping;
+
+        synchronized (this) {
+            queue.close();
+
+            if (scaler != null) {
+                scaler.shutdownNow();
+                scaler = null;
+            }
+
+            stopping = new LinkedHashMap<>(workers);
+            workers.clear();
+        }
+
+        LOGGER.info("{} : shutting down ({})", this, mode);
+
+        int processedBefore = stopping.keySet().stream().mapToInt(ImageProcessor::getProcessed).sum();
+        int requeuedBefore = stopping.keySet().stream().mapToInt(ImageProcessor::getRequeued).sum();
+        boolean interrupted = false;
+
+        try {
+            //keep the processors going until the backlog is gone, including the batches they took
+            if (mode == ShutdownMode.DRAIN) {
+                while ((queue.hasElements() || stopping.keySet().stream().anyMatch(ImageProcessor::isBusy))
+                        && System.nanoTime() < deadline && anyAlive(stopping.values())) {
+                    Thread.sleep(DRAIN_INTERVAL);
+                }
+            }
+
+            stopping.keySet().forEach(ImageProcessor::stopRunning);
+
+            for (Thread t : stopping.values()) {
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining > 0L) {
+                    TimeUnit.NANOSECONDS.timedJoin(t, remaining);
+                }
+            }
+
+        } catch (InterruptedException ie) {
+            interrupted = true;
+        }
+
+        int completed = stopping.keySet().stream().mapToInt(ImageProcessor::getProcessed).sum() - processedBefore;
+        int abandoned = 0;
+
+        //the deadline has passed, interrupt whatever is still running
+        for (Map.Entry<ImageProcessor, Thread> entry : stopping.entrySet()) {
+            ImageProcessor ip = entry.getKey();
+            Thread t = entry.getValue();
+
+            if (t.isAlive()) {
+                if (ip.isBusy()) {
+                    abandoned++;
+                }
+
+                LOGGER.warn("{} : {} did not stop in time, interrupting it", this, ip);
+                t.interrupt();
+            }
+        }
+
+        //give the interrupted processors a moment to hand back their batches
+        for (Thread t : stopping.values()) {
+            try {
+                t.join(CHECK_INTERVAL);
+
+            } catch (InterruptedException ie) {
+                interrupted = true;
+                break;
+            }
+        }
+
+        QueueJournal j = queue.getJournal();
+
+        if (j != null) {
+            j.force();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        int requeued = stopping.keySet().stream().mapToInt(ImageProcessor::getRequeued).sum() - requeuedBefore;
+        ShutdownReport report = new ShutdownReport(completed, abandoned, requeued, queue.numElements(), ! anyAlive(stopping.values()));
+
+        LOGGER.info("{} : shut down {}", this, report);
+        return report;
+    }
+
+    /**
+     * Is the pool running.
+     * @return true if started and not stopped
+     */
+    public synchronized boolean isRunning() {
+        return scaler != null;
+    }
+
+    /**
+     * Get the queue. Add the events to be processed to it.
+     * @return queue shared by the processors
+     */
+    public Queue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Get the number of processors in the pool.
+     * @return number of processors
+     */
+    public synchronized int getSize() {
+        return workers.size();
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTargetWait() {
+        return targetWait;
+    }
+
+    /**
+     * Set how long events may wait in the queue before another processor is added.
+     * @param targetWait time in ms
+     */
+    public void setTargetWait(final long targetWait) {
+        this.targetWait = Math.max(0L, targetWait);
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set how long a processor may wait for work before it is retired.
+     * @param idleTimeout time in ms
+     */
+    public void setIdleTimeout(final long idleTimeout) {
+        this.idleTimeout = Math.max(0L, idleTimeout);
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Set how many waiting events each processor is expected to keep up with. When more are
+     * waiting another processor is added.
+     * @param backlog number of events, at least 1
+     */
+    public void setBacklog(final int backlog) {
+        this.backlog = Math.max(1, backlog);
+    }
+
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Set a dispatcher for the processors started from now on to share, so their messages are
+     * sent the same way (for example asynchronously).
+     * @param dispatcher dispatcher or null for each processor to send its own messages
+     */
+    public void setDispatcher(final MessageDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    public Watchdog getWatchdog() {
+        return watchdog;
+    }
+
+    /**
+     * Set the watchdog that keeps the events and tasks of the processors started from now on
+     * within their budgets.
+     * @param watchdog watchdog or null for the shared default
+     */
+    public void setWatchdog(final Watchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    public ResultPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Set a publisher for the processors started from now on to publish their messages to. They
+     * only take events from the queue once its subscribers have asked for more results.
+     * @param publisher publisher or null to take events as they come
+     */
+    public void setPublisher(final ResultPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * Register a listener with every processor in the pool, now and in the future.
+     * @param pil who to send events to
+     * @return true if registered
+     */
+    public synchronized boolean addEventListener(final ImageMessageEventListener pil) {
+        if (pil == null || listeners.contains(pil)) {
+            return false;
+        }
+
+        workers.keySet().forEach(ip -> ip.addEventListener(pil));
+        return listeners.add(pil);
+    }
+
+    /**
+     * Deregister a listener from every processor in the pool.
+     * @param pil listener to remove
+     * @return true if it was registered
+     */
+    public synchronized boolean removeEventListener(final ImageMessageEventListener pil) {
+        workers.keySet().forEach(ip -> ip.removeEventListener(pil));
+        return listeners.remove(pil);
+    }
+
+    @Override
+    public String toString() {
+        return "ImageProcessorPool{" +
+                "minSize=" + minSize +
+                ", maxSize=" + maxSize +
+                ", queue=" + queue +
+                '}';
+    }
+
+    /**
+     * Check the pool against the queue. Replaces processors that died, then adds or retires at
+     * most one processor.
+     */
+    synchronized void scale() {
+        if (scaler == null) {
+            return;
+        }
+
+        //replace any processor that exited without being asked to, or is stuck in a task the watchdog gave up on
+        workers.entrySet().removeIf(entry -> {
+            if (entry.getKey().isAbandoned()) {
+                LOGGER.warn("{} : {} is stuck, replacing it", this, entry.getKey());
+                return true;
+
+            } else if (entry.getValue().isAlive()) {
+                return false;
+            }
+
+            LOGGER.warn("{} : {} died, replacing it", this, entry.getKey());
+            return true;
+        });
+
+        while (workers.size() < minSize) {
+            this.addWorker();
+        }
+
+        int size = workers.size();
+        int waiting = queue.numElements();
+
+        if (size < maxSize && (waiting > size * backlog || (waiting > 0 && queue.getAverageWait() > targetWait))) {
+            LOGGER.debug("{} : {} events waiting, adding a processor", this, waiting);
+            this.addWorker();
+
+        } else if (size > minSize && waiting == 0) {
+            this.retireIdleWorker();
+        }
+    }
+
+    /**
+     * Are any of the given threads still alive.
+     * @param threads threads to check
+     * @return true if at least one is alive
+     */
+    private static boolean anyAlive(final Collection<Thread> threads) {
+        return threads.stream().anyMatch(Thread::isAlive);
+    }
+
+    /**
+     * Start a new processor.
+     */
+    private void addWorker() {
+        ImageProcessor ip = new ImageProcessor(queue);
+
+        //wake up now and then so a retired processor notices it was stopped
+        ip.setPollTimeout(CHECK_INTERVAL);
+
+        MessageDispatcher d = dispatcher;
+
+        if (d != null) {
+            ip.setDispatcher(d);
+        }
+
+        Watchdog w = watchdog;
+
+        if (w != null) {
+            ip.setWatchdog(w);
+        }
+
+        ip.setPublisher(publisher);
+
+        listeners.forEach(ip::addEventListener);
+
+        Thread t = new Thread(ip, ip.toString());
+        t.setUncaughtExceptionHandler((thread, e) -> LOGGER.error("{} : failed", ip, e));
+        workers.put(ip, t);
+        t.start();
+    }
+
+    /**
+     * Stop the processor that has been idle the longest, if it has been idle long enough.
+     */
+    private void retireIdleWorker() {
+        ImageProcessor idlest = null;
+
+        for (ImageProcessor ip : workers.keySet()) {
+            //a busy processor would have to hand its batch back to the queue
+            if (ip.isBusy()) {
+                continue;
+            }
+
+            if (idlest == null || ip.getIdleTime() > idlest.getIdleTime()) {
+                idlest = ip;
+            }
+        }
+
+        if (idlest != null && idlest.getIdleTime() >= idleTimeout) {
+            LOGGER.debug("{} : retiring idle {}", this, idlest);
+            workers.remove(idlest);
+            idlest.stopRunning();
+        }
+    }
+
+}
@@ -0,0 +1,554 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <P>Sends the messages an <CODE>ImageProcessor</CODE> produces to the source of each event and
+ * to the registered listeners. Listeners can be added and removed at any time, even while
+ * messages are being sent.</P>
+ *
+ * <P>By default messages are sent on the processor's thread, so a slow listener slows the
+ * processor down. An asynchronous dispatcher gives the sources and each listener their own
+ * bounded buffer and thread instead. The sources always get their message, a listener that falls
+ * behind is handled by the DeliveryPolicy it was registered with. Messages reach each listener in
+ * the order they were sent.</P>
+ *
+ * <P>Progress listeners also get a PROGRESS message as the tasks of an event are done. Progress is
+ * never sent to the sources, and an asynchronous progress listener that falls behind misses
+ * progress rather than holding up the processor, whatever its policy.</P>
+ *
+ * <PRE>
+ *     MessageDispatcher dispatcher = new MessageDispatcher(1024);
+ *     dispatcher.addEventListener(statusBar, DeliveryPolicy.DROP_OLDEST);
+ *     processor.setDispatcher(dispatcher);
+ * </PRE>
+ */
+public final class MessageDispatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageDispatcher.class);
+
+    //CONSTANTS
+    /** Default number of messages buffered for each listener. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** How often (ms) an idle delivery thread checks whether it was closed. */
+    private static final long POLL_INTERVAL = 100L;
+
+    /** Thread name counter. */
+    private static final AtomicInteger currentId = new AtomicInteger();
+
+    //VARIABLES
+    /** Messages buffered per listener, 0 to send them on the caller's thread. */
+    private final int capacity;
+
+    /** Registered listeners, replaced (never changed) on every registration. */
+    private final AtomicReference<Lane[]> lanes;
+
+    /** Replies to the sources of the events, null when synchronous. */
+    private final Lane replies;
+
+    /** Messages dropped because a listener fell behind. */
+    private final AtomicLong dropped;
+
+    /** Number of listeners that want progress. */
+    private final AtomicInteger progressListeners;
+
+    /** No longer using the delivery threads. */
+    private volatile boolean closed = false;
+
+
+    /**
+     * Creates a new dispatcher that sends messages on the caller's thread.
+     */
+    public MessageDispatcher() {
+        this.capacity = 0;
+        this.lanes = new AtomicReference<>(new Lane[0]);
+        this.progressListeners = new AtomicInteger();
+        this.replies = null;
+        this.dropped = new AtomicLong();
+    }
+
+    /**
+     * Creates a new asynchronous dispatcher.
+     * @param capacity messages buffered for the sources and for each listener, at least 1
+     */
+    public MessageDispatcher(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+
+        this.capacity = capacity;
+        this.lanes = new AtomicReference<>(new Lane[0]);
+        this.progressListeners = new AtomicInteger();
+        this.dropped = new AtomicLong();
+        this.replies = new Lane(null, DeliveryPolicy.BLOCK, false, capacity);
+        this.replies.start();
+    }
+
+    /**
+     * Is this dispatcher sending messages on their own threads.
+     * @return true if asynchronous and not closed
+     */
+    public boolean isAsynchronous() {
+        return replies != null && ! closed;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of messages dropped because a listener fell behind.
+     * @return number of messages
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Register a listener that waits for room when it falls behind.
+     * @param pil who to send messages to
+     * @return true if registered
+     */
+    public boolean addEventListener(final ImageMessageEventListener pil) {
+        return this.addEventListener(pil, DeliveryPolicy.BLOCK);
+    }
+
+    /**
+     * Register a listener.
+     * @param pil who to send messages to
+     * @param policy what to do when the listener falls behind, only used when asynchronous
+     * @return true if registered, false if null or already registered
+     */
+    public boolean addEventListener(final ImageMessageEventListener pil, final DeliveryPolicy policy) {
+        return this.addLane(pil, policy, false);
+    }
+
+    /**
+     * Register a listener that also gets PROGRESS messages while events are processed.
+     * @param pil who to send messages to
+     * @return true if registered, false if null or already registered
+     */
+    public boolean addProgressListener(final ImageMessageEventListener pil) {
+        return this.addLane(pil, DeliveryPolicy.BLOCK, true);
+    }
+
+    /**
+     * Does any listener want progress. Processors only time their tasks if one does.
+     * @return true if there is a progress listener
+     */
+    public boolean hasProgressListeners() {
+        return progressListeners.get() > 0;
+    }
+
+    /**
+     * Deregister a listener. Messages already buffered for it are still delivered before this
+     * returns.
+     * @param pil listener to remove
+     * @return true if it was registered
+     */
+    public boolean removeEventListener(final ImageMessageEventListener pil) {
+        Lane removed;
+        Lane[] current;
+        Lane[] next;
+
+        do {
+            current = lanes.get();
+            removed = null;
+
+            for (Lane lane : current) {
+                if (lane.listener == pil) {
+                    removed = lane;
+                    break;
+                }
+            }
+
+            if (removed == null) {
+                return false;
+            }
+
+            next = new Lane[current.length - 1];
+
+            for (int i = 0, j = 0; i < current.length; i++) {
+                if (current[i] != removed) {
+                    next[j++] = current[i];
+                }
+            }
+
+        } while (! lanes.compareAndSet(current, next));
+
+        if (removed.progress) {
+            progressListeners.decrementAndGet();
+        }
+
+        //the listener may register others while its last messages go out
+        removed.close();
+
+        return true;
+    }
+
+    /**
+     * Test to see if the given listener is registered.
+     * @param pil listener to test
+     * @return true if registered
+     */
+    public boolean hasEventListener(final ImageMessageEventListener pil) {
+        return this.indexOf(lanes.get(), pil) >= 0;
+    }
+
+    /**
+     * Get the registered listeners.
+     * @return listeners, in the order they were registered
+     */
+    public List<ImageMessageEventListener> getEventListeners() {
+        return Arrays.stream(lanes.get()).map(lane -> lane.listener).toList();
+    }
+
+    /**
+     * Get the listeners that also get PROGRESS messages.
+     * @return progress listeners, in the order they were registered
+     */
+    public List<ImageMessageEventListener> getProgressListeners() {
+        return Arrays.stream(lanes.get()).filter(lane -> lane.progress).map(lane -> lane.listener).toList();
+    }
+
+    /**
+     * Send a message to the source of the event and to every registered listener. A listener that
+     * is also the source only gets the message once. A source or listener that throws is logged
+     * and does not keep the message from the others.
+     * @param ipe event the message is about
+     * @param ime message to send
+     */
+    public void dispatch(final ImageProcessEvent ipe, final ImageMessageEvent ime) {
+        Object source = ipe.getSource();
+
+        if (this.isAsynchronous()) {
+            replies.offer(() -> ipe.reply(ime));
+
+        } else {
+            //a source that fails still has its result completed and does not stop the listeners
+            try {
+                ipe.reply(ime);
+
+            } catch (RuntimeException re) {
+                LOGGER.error("{} : source {} failed", this, source, re);
+            }
+        }
+
+        for (Lane lane : lanes.get()) {
+            if (lane.listener != source) {
+                lane.send(ime);
+            }
+        }
+    }
+
+    /**
+     * Send a PROGRESS message to the progress listeners, never to the source of the event.
+     * @param ime message
+     */
+    public void dispatchProgress(final ImageMessageEvent ime) {
+        for (Lane lane : lanes.get()) {
+            if (lane.progress) {
+                lane.sendProgress(ime);
+            }
+        }
+    }
+
+    /**
+     * Stop using the delivery threads. Messages already buffered are delivered and the threads
+     * have exited before this returns, messages sent after this are delivered on the caller's
+     * thread.
+     */
+    public void close() {
+        this.closed = true;
+
+        if (replies != null) {
+            replies.close();
+        }
+
+        for (Lane lane : lanes.get()) {
+            lane.close();
+        }
+    }
+
+    /**
+     * Register a listener.
+     * @param pil who to send messages to
+     * @param policy what to do when the listener falls behind
+     * @param progress also send it PROGRESS messages
+     * @return true if registered, false if null or already registered
+     */
+    private boolean addLane(final ImageMessageEventListener pil, final DeliveryPolicy policy, final boolean progress) {
+        if (pil == null || this.hasEventListener(pil)) {
+            return false;
+        }
+
+        Lane lane = new Lane(pil, policy == null ? DeliveryPolicy.BLOCK : policy, progress, capacity);
+
+        //started before it is published so no message reaches it without a thread
+        if (this.isAsynchronous()) {
+            lane.start();
+        }
+
+        Lane[] current;
+        Lane[] next;
+
+        do {
+            current = lanes.get();
+
+            //registered by another thread since we looked
+            if (this.indexOf(current, pil) >= 0) {
+                lane.close();
+                return false;
+            }
+
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = lane;
+
+        } while (! lanes.compareAndSet(current, next));
+
+        if (progress) {
+            progressListeners.incrementAndGet();
+        }
+
+        return true;
+    }
+
+    /**
+     * Find the lane of a listener.
+     * @param lanes lanes to search
+     * @param pil listener to find
+     * @return index of its lane, -1 if not registered
+     */
+    private int indexOf(final Lane[] lanes, final ImageMessageEventListener pil) {
+        for (int i = 0; i < lanes.length; i++) {
+            if (lanes[i].listener == pil) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageDispatcher{" +
+                "capacity=" + capacity +
+                ", listeners=" + lanes.get().length +
+                ", dropped=" + dropped.get() +
+                '}';
+    }
+
+
+    /**
+     * <P>Messages for one listener (or for the sources) and the thread delivering them.</P>
+     */
+    private final class Lane implements Runnable {
+        /** Who the messages are for, null for the sources. */
+        private final ImageMessageEventListener listener;
+
+        /** What to do when the buffer is full. */
+        private final DeliveryPolicy policy;
+
+        /** Send PROGRESS messages as well. */
+        private final boolean progress;
+
+        /** Messages waiting to be delivered, null when synchronous. */
+        private final BlockingQueue<Runnable> buffer;
+
+        /** Thread delivering the messages, null if never started. */
+        private volatile Thread thread;
+
+        /** Delivering messages. */
+        private volatile boolean open = false;
+
+
+        Lane(final ImageMessageEventListener listener, final DeliveryPolicy policy, final boolean progress, final int capacity) {
+            this.listener = listener;
+            this.policy = policy;
+            this.progress = progress;
+            this.buffer = capacity > 0 ? new ArrayBlockingQueue<>(capacity) : null;
+        }
+
+        /**
+         * Start the delivery thread.
+         */
+        void start() {
+            this.open = true;
+
+            Thread t = new Thread(this, "MessageDispatcher-" + currentId.incrementAndGet());
+            t.setDaemon(true);
+            this.thread = t;
+            t.start();
+        }
+
+        /**
+         * Stop the delivery thread once the buffer is empty and wait for it to exit.
+         */
+        void close() {
+            this.open = false;
+            this.finish();
+        }
+
+        /**
+         * Send a message to the listener.
+         * @param ime message
+         */
+        void send(final ImageMessageEvent ime) {
+            if (open) {
+                this.offer(() -> listener.eventPerformed(ime));
+
+            } else {
+                this.finish();
+                this.deliver(() -> listener.eventPerformed(ime));
+            }
+        }
+
+        /**
+         * Send a PROGRESS message to the listener, dropping it if the buffer is full.
+         * @param ime message
+         */
+        void sendProgress(final ImageMessageEvent ime) {
+            if (! open) {
+                this.finish();
+                this.deliver(() -> listener.eventPerformed(ime));
+                return;
+
+            } else if (! buffer.offer(() -> listener.eventPerformed(ime))) {
+                dropped.incrementAndGet();
+            }
+
+            //closed while we were adding it, the thread may already be gone
+            if (! open) {
+                this.finish();
+            }
+        }
+
+        /**
+         * Buffer a delivery, applying the policy if the buffer is full.
+         * @param delivery delivery to make
+         */
+        void offer(final Runnable delivery) {
+            switch (policy) {
+                case BLOCK -> {
+                    boolean interrupted = false;
+
+                    //do not lose the message or send it past the thread, keep waiting for room
+                    while (true) {
+                        try {
+                            if (buffer.offer(delivery, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                                break;
+
+                            } else if (! open) {
+                                this.finish();
+                                this.deliver(delivery);
+                                break;
+                            }
+
+                        } catch (InterruptedException ie) {
+                            interrupted = true;
+                        }
+                    }
+
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                case DROP_NEWEST -> {
+                    if (! buffer.offer(delivery)) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                case DROP_OLDEST -> {
+                    while (! buffer.offer(delivery)) {
+                        if (buffer.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                }
+            }
+
+            //closed while we were adding it, the thread may already be gone
+            if (! open) {
+                this.finish();
+            }
+        }
+
+        /**
+         * Wait for the delivery thread to exit, then deliver whatever it left in the buffer on
+         * this thread. Only the delivery thread sends while it is running, so a closed lane never
+         * calls its listener from two threads at once or out of order.
+         */
+        private void finish() {
+            if (buffer == null) {
+                return;
+            }
+
+            Thread t = thread;
+
+            //a listener closing its own lane delivers the rest itself
+            if (t != null && t != Thread.currentThread()) {
+                try {
+                    t.join();
+
+                } catch (InterruptedException ie) {
+                    //the thread is still running and delivers what is buffered
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            synchronized (this) {
+                Runnable left;
+
+                while ((left = buffer.poll()) != null) {
+                    this.deliver(left);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (open || ! buffer.isEmpty()) {
+                try {
+                    Runnable delivery = buffer.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+                    if (delivery != null) {
+                        this.deliver(delivery);
+                    }
+
+                } catch (InterruptedException ie) {
+                    LOGGER.debug("{} : interrupted", MessageDispatcher.this);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Make a delivery, a listener that fails does not stop the others.
+         * @param delivery delivery to make
+         */
+        private void deliver(final Runnable delivery) {
+            try {
+                delivery.run();
+
+            } catch (RuntimeException re) {
+                LOGGER.error("{} : listener {} failed", MessageDispatcher.this, listener, re);
+            }
+        }
+    }
+
+}
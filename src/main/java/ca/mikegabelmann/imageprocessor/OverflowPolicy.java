@@ -0,0 +1,18 @@
+package ca.mikegabelmann.imageprocessor;
+
+
+/**
+ * What a bounded <code>Queue</code> does with a new event when it is already at capacity.
+ * @see Queue#setOverflowPolicy(OverflowPolicy)
+ */
+public enum OverflowPolicy {
+    /** wait (up to the queue's block timeout) for space, then reject */
+    BLOCK,
+
+    /** reject the new event straight away */
+    REJECT,
+
+    /** evict the oldest waiting PRIORITY_LOW event to make room, reject if there is none */
+    EVICT_OLDEST_LOW,
+
+}
@@ -0,0 +1,76 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.stream.Stream;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+
+
+/**
+ * One lock-free lane per priority. Higher priority lanes are always emptied first and each
+ * lane is FIFO.
+ * @see QueueMode#PRIORITY
+ */
+final class PriorityStore implements EventStore {
+    /** Entries waiting, one lane per priority. */
+    private final Map<ImageProcessEventType, ConcurrentLinkedDeque<QueueEntry>> lanes;
+
+
+    /** Creates a new instance of PriorityStore. */
+    PriorityStore() {
+        this.lanes = new EnumMap<>(ImageProcessEventType.class);
+
+        for (ImageProcessEventType type : ImageProcessEventType.values()) {
+            lanes.put(type, new ConcurrentLinkedDeque<>());
+        }
+    }
+
+    @Override
+    public void offerLast(final QueueEntry entry) {
+        lanes.get(entry.getPriority()).offerLast(entry);
+    }
+
+    @Override
+    public void offerFirst(final QueueEntry entry) {
+        lanes.get(entry.getPriority()).offerFirst(entry);
+    }
+
+    @Override
+    public QueueEntry poll() {
+        for (ImageProcessEventType type : DISPATCH_ORDER) {
+            QueueEntry entry = this.poll(type);
+
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove the oldest entry of one priority.
+     * @param priority lane to look in
+     * @return entry or null if the lane is empty
+     */
+    QueueEntry poll(final ImageProcessEventType priority) {
+        return lanes.get(priority).pollFirst();
+    }
+
+    @Override
+    public Iterable<QueueEntry> entries(final ImageProcessEventType priority) {
+        return lanes.get(priority);
+    }
+
+    /**
+     * Stream the waiting entries of one priority, oldest first.
+     * @param priority lane to look in
+     * @return entries
+     */
+    Stream<QueueEntry> stream(final ImageProcessEventType priority) {
+        return lanes.get(priority).stream();
+    }
+
+}
@@ -1,104 +1,446 @@
 package ca.mikegabelmann.imageprocessor;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
 import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
 import ca.mikegabelmann.imageprocessor.listeners.ImageProcessEventListener;
+import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
  * <P>Contains items for the <CODE>ImageProcessor</CODE>. There may be many objects
- * working on this object. We synchronize everything just to be safe. Items are 
- * processed in the order they were received (FIFO - see below about priorities).<P>
+ * working on this object at the same time. Items are processed in the order they were
+ * received (FIFO - see below about priorities).<P>
  *
- * <P>Any ImageProcessor accessing this class will wait() if there is no work to
- * be done. When work is added, all ImageProcessors are notified via notifyAll().
+ * <P>Any ImageProcessor accessing this class will block if there is no work to
+ * be done. When work is added exactly one waiting ImageProcessor is woken up.</P>
  *
- * <P>Items can be added with a priority. This priority means that items with a high
- * priority get added to the front of the queue, while low priority items get added to 
- * the rear.<P>
+ * <P>Items can be added with a priority. Each priority has its own lane, high priority
+ * items are always handed out before medium priority items, which are handed out before
+ * low priority items. Within a lane items are handed out in the order they were added.</P>
  *
- * <P>Internally this class uses an ArrayList to store all its data.</P>
+ * <P>By default the queue is unbounded. A capacity can be set in number of events and in
+ * estimated image bytes, in which case the <CODE>OverflowPolicy</CODE> decides what happens
+ * to new events once the queue is full. Events that are turned away (or evicted) are
+ * answered with an ERROR message sent to their source.</P>
+ *
+ * <P>Events with a deadline that has passed are never handed out. They are answered with an
+ * EXPIRED message and counted as deadline misses. In DEADLINE mode events are handed out
+ * earliest deadline first.</P>
+ *
+ * <P>A <CODE>QueueJournal</CODE> can be set to make the backlog of file based events survive a
+ * restart.</P>
+ *
+ * <P>With coalescing turned on, an event that is identical to one already waiting (same
+ * priority, no image, and the same task chain, for example reading the same file) is not queued
+ * again. It waits on the first one and gets the same result, so the work is only done once.</P>
+ *
+ * <P>Waiting events are indexed by their source, so flushing the events of one listener only
+ * costs time proportional to the number of events flushed.</P>
+ *
+ * <P>How the lanes are kept is decided by the <CODE>QueueMode</CODE>. In the default PRIORITY
+ * mode all ImageProcessors share one lock-free deque per priority. In WORK_STEALING mode each
+ * ImageProcessor owns its own lanes and steals from the others when it runs out of work.
+ * In DEADLINE mode there is a single lane ordered by deadline. In FAIR_SHARE mode every source
+ * has its own lanes and sources take turns according to their weights, so one busy listener
+ * cannot starve the others no matter what priority it uses.
+ * Either way waiting ImageProcessors are parked on a semaphore, so adding and removing an item
+ * is O(1) and producers never wait on consumers unless the queue is full. In WORK_STEALING mode
+ * the semaphore only wakes processors that found nothing to do, busy processors take their work
+ * straight from the lanes without touching it.</P>
  */
 public final class Queue implements ImageProcessEventListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(Queue.class);
 
     //CONSTANTS
-    /** Initial space available in the queue. */
-    private final static int INITIAL_CAPACITY   = 100;
-    
+    /** Default time a producer waits for space with the BLOCK policy. */
+    public static final long DEFAULT_BLOCK_TIMEOUT = 1000L * 5;
+
+    /** Weight of the newest sample in the average wait is 1 / WAIT_SMOOTHING. */
+    private static final int WAIT_SMOOTHING = 8;
+
+    /** Wait for work without a time limit. */
+    private static final long NO_TIMEOUT = Long.MIN_VALUE;
+
+    /** Source of submitted events whose result is all that is wanted. */
+    private static final ImageMessageEventListener RESULT_ONLY = event -> LOGGER.trace("result {}", event);
+
     //VARIABLES
-    /** List of items to process. */
-    private final ArrayList<ImageProcessEvent> queue;
+    /** How items are stored and ordered. */
+    private final QueueMode mode;
+
+    /** Items to process. */
+    private final EventStore store;
+
+    /** Entries waiting, by the source of their event. Empty sets are dropped once found empty. */
+    private final ConcurrentHashMap<Object, Set<QueueEntry>> sources;
+
+    /**
+     * Consumers block here when there is no work. One permit for every entry waiting in a lane,
+     * except in WORK_STEALING mode where permits are only handed to parked consumers.
+     */
+    private final Semaphore available;
+
+    /** Number of consumers parked on the semaphore, only counted in WORK_STEALING mode. */
+    private final AtomicInteger idle;
+
+    /** Number of consumers taking work from this queue. */
+    private final AtomicInteger consumers;
+
+    /** Number of items waiting to be processed. */
+    private final AtomicInteger size;
+
+    /** Estimated image bytes held by the items waiting to be processed. */
+    private final AtomicLong bytes;
+
+    /** Guards admission into a bounded queue, producers wait on notFull. */
+    private final ReentrantLock capacityLock;
+
+    /** Signalled when space is freed in a bounded queue. */
+    private final Condition notFull;
+
+    /** Number of events that expired before or while being processed. */
+    private final AtomicLong deadlineMisses;
+
+    /** Number of producers waiting for space. */
+    private final AtomicInteger waiting;
+
+    /** Moving average of the time (ns) events waited before being taken. */
+    private final AtomicLong averageWait;
+
+    /** Entries waiting in a lane, by the signature of their event. */
+    private final ConcurrentHashMap<Object, QueueEntry> leaders;
+
+    /** Events combined with an event that has been taken, by that event. */
+    private final ConcurrentHashMap<ImageProcessEvent, List<ImageProcessEvent>> followers;
+
+    /** Number of events that were combined with an identical waiting event. */
+    private final AtomicLong coalesced;
+
+    /** Maximum number of items waiting. */
+    private volatile int maxEvents = Integer.MAX_VALUE;
+
+    /** Maximum estimated image bytes waiting. */
+    private volatile long maxBytes = Long.MAX_VALUE;
+
+    /** What to do when the queue is full. */
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    /** How long (ms) a producer waits for space with the BLOCK policy. */
+    private volatile long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+
+    /** Durable log of the waiting events, may be null. */
+    private volatile QueueJournal journal;
+
+    /** Combine identical waiting events. */
+    private volatile boolean coalescing = false;
+
+    /** No longer accepting new events. */
+    private volatile boolean closed = false;
 
 
     /** Creates a new instance of Queue. */
     public Queue() {
-        this.queue = new ArrayList<>(INITIAL_CAPACITY);
+        this(QueueMode.PRIORITY);
+    }
+
+    /**
+     * Creates a new instance of Queue.
+     * @param mode how items are stored and ordered, null for PRIORITY
+     */
+    public Queue(final QueueMode mode) {
+        this.mode = mode == null ? QueueMode.PRIORITY : mode;
+        this.store = switch (this.mode) {
+            case PRIORITY -> new PriorityStore();
+            case WORK_STEALING -> new WorkStealingStore(this::signal);
+            case DEADLINE -> new DeadlineStore();
+            case FAIR_SHARE -> new FairShareStore();
+        };
+        this.sources = new ConcurrentHashMap<>();
+        this.available = new Semaphore(0);
+        this.idle = new AtomicInteger();
+        this.consumers = new AtomicInteger();
+        this.size = new AtomicInteger();
+        this.bytes = new AtomicLong();
+        this.capacityLock = new ReentrantLock();
+        this.notFull = capacityLock.newCondition();
+        this.waiting = new AtomicInteger();
+        this.deadlineMisses = new AtomicLong();
+        this.leaders = new ConcurrentHashMap<>();
+        this.followers = new ConcurrentHashMap<>();
+        this.coalesced = new AtomicLong();
+        this.averageWait = new AtomicLong();
+    }
+
+    /**
+     * Creates a new instance of a bounded Queue.
+     * @param maxEvents maximum number of events waiting
+     * @param maxBytes maximum estimated image bytes waiting
+     * @param overflowPolicy what to do with new events when full
+     */
+    public Queue(final int maxEvents, final long maxBytes, final OverflowPolicy overflowPolicy) {
+        this();
+        this.setMaxEvents(maxEvents);
+        this.setMaxBytes(maxBytes);
+        this.setOverflowPolicy(overflowPolicy);
     }
 
     @Override
-    public synchronized void eventPerformed(final ImageProcessEvent event) {
-        //add the element to the queue
-        switch (event.getPriority()) {
-            //place at front of queue
-            case PRIORITY_HIGH:
-                queue.add(0, event);
-                break;
-            
-            //place in middle of queue elements if any
-            case PRIORITY_MEDIUM:
-                int pos = queue.size() / 2;
-                queue.add(pos, event);
-                break;
+    public void eventPerformed(final ImageProcessEvent event) {
+        this.offer(event);
+    }
 
-            //place at end of queue
-            case PRIORITY_LOW:
-            default:
-                queue.add(event);
+    /**
+     * Add an event to the queue. If the queue is full the overflow policy is applied, an event that
+     * is not accepted is answered with an ERROR message. If coalescing is on and an identical
+     * event is already waiting, the event waits on that one instead of taking a lane.
+     * @param event event to add
+     * @return true if the event was accepted, false otherwise
+     */
+    public boolean offer(final ImageProcessEvent event) {
+        if (closed) {
+            LOGGER.debug("queue is closed, rejected {}", event);
+            this.completed(event);
+            reply(event, "queue is closed");
+            return false;
+        }
+
+        Object signature = coalescing ? signature(event) : null;
+        QueueEntry entry = new QueueEntry(event, estimateBytes(event.getImage()), signature);
+
+        if (! this.reserve(entry)) {
+            String reason = closed ? "queue is closed" : "queue is full";
+            LOGGER.debug("{}, rejected {}", reason, event);
+            this.completed(event);
+            reply(event, reason);
+            return false;
+        }
+
+        QueueJournal j = journal;
+
+        if (j != null) {
+            j.append(event);
         }
-        
-        //alert everyone waiting for us that we have something to process
-        notifyAll();
+
+        this.index(entry);
+
+        //an identical event is already waiting, share its result rather than doing the work twice
+        if (signature != null) {
+            if (this.follow(signature, entry)) {
+                return true;
+            }
+
+            leaders.put(signature, entry);
+        }
+
+        //add the element to the end of its lane
+        store.offerLast(entry);
+
+        //alert one waiting processor that we have something to process
+        this.signal(1);
+        return true;
+    }
+
+    /**
+     * Add an event to the queue and get its result. The result is completed with the message
+     * sent back to the event's source, or cancelled if the event is flushed.
+     * @param event event to add
+     * @return result of the event
+     */
+    public CompletableFuture<ImageMessageEvent> submit(final ImageProcessEvent event) {
+        this.offer(event);
+        return event.getResult();
+    }
+
+    /**
+     * Add an event for the given tasks to the queue and get its result, for callers that do not
+     * want to implement a listener. Such events cannot be flushed by listener.
+     * @param priority priority to process the event at
+     * @param image image to work with, may be null
+     * @param tasks tasks to perform
+     * @return result of the event
+     */
+    public CompletableFuture<ImageMessageEvent> submit(
+            final ImageProcessEventType priority,
+            final BufferedImage image,
+            final AbstractImageTask... tasks) {
+
+        return this.submit(new ImageProcessEvent(priority, RESULT_ONLY, image, tasks));
+    }
+
+    /**
+     * Add an event to the queue and get the image it produces. The result fails with an
+     * ImageProcessorException if the event is not processed successfully.
+     * @param event event to add
+     * @return final image of the event, may be null
+     */
+    public CompletableFuture<BufferedImage> submitForImage(final ImageProcessEvent event) {
+        return this.submit(event).thenCompose(ime -> ime.getStatus() == ImageMessageEventType.OK
+                ? CompletableFuture.completedFuture(ime.getImage())
+                : CompletableFuture.failedFuture(new ImageProcessorException(ime.getStatus() + ": " + ime.getMessage())));
     }
 
     /**
      * Get an event from the queue. The ImageProcessor will call this method to
-     * look for work to be done. If it finds none it waits. When work arrives it 
+     * look for work to be done. If it finds none it waits. When work arrives it
      * will be notified. Once it has found work it will keep processing until there
      * is none again.
      * @return item to process or null
      */
-    public synchronized ImageProcessEvent getWork() {
-        if (queue.isEmpty()) {
-            try {
-                //cause ImageProcessor threads to wait until we notify them
-                wait();
-                
-            } catch (InterruptedException ie) {
-                //LOGGER.info("interrupted while waiting for the queue", ie);
+    public ImageProcessEvent getWork() {
+        while (true) {
+            //cause ImageProcessor threads to wait until there is work
+            QueueEntry entry = this.await(NO_TIMEOUT);
+
+            if (entry == null) {
+                return null;
+            }
+
+            ImageProcessEvent ipe = this.next(entry);
+
+            //an evicted, flushed or expired entry leaves nothing behind, skip it and keep waiting
+            if (ipe != null) {
+                return ipe;
+            }
+        }
+    }
+
+    /**
+     * Get several events from the queue at once. Blocks like getWork() until at least one
+     * event is waiting, then takes whatever else is waiting (up to max) without blocking
+     * again. Events are added to the collection in the order they would have been handed
+     * out by getWork().
+     * @param c collection to add the events to
+     * @param max maximum number of events to take
+     * @return number of events added, 0 if interrupted while waiting
+     */
+    public int drainTo(final Collection<? super ImageProcessEvent> c, final int max) {
+        if (max <= 0) {
+            return 0;
+        }
+
+        while (true) {
+            QueueEntry entry = this.await(NO_TIMEOUT);
+
+            if (entry == null) {
+                return 0;
+            }
+
+            int count = this.drainHeld(entry, c, max);
+
+            //only placeholders or expired events were found, keep waiting
+            if (count > 0) {
+                return count;
+            }
+        }
+    }
+
+    /**
+     * Get several events from the queue at once, like drainTo(), but only wait up to the given
+     * time for the first one.
+     * @param c collection to add the events to
+     * @param max maximum number of events to take
+     * @param timeout how long to wait
+     * @param unit unit of the timeout
+     * @return number of events added, 0 if the time ran out or interrupted while waiting
+     */
+    public int drainTo(final Collection<? super ImageProcessEvent> c, final int max, final long timeout, final TimeUnit unit) {
+        if (max <= 0) {
+            return 0;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (true) {
+            QueueEntry entry = this.await(deadline);
+
+            if (entry == null) {
+                return 0;
+            }
+
+            int count = this.drainHeld(entry, c, max);
+
+            if (count > 0) {
+                return count;
             }
-            
-        } else {
-            return queue.remove(0);
         }
-        
-        //just in case something weird happens
-        return null;
+    }
+
+    /**
+     * Hand back events that were taken from the queue but not processed (an ImageProcessor
+     * that stops part way through a batch). They are put back at the front of their lanes,
+     * in the given order, ahead of anything added since and regardless of the capacity.
+     * @param events events to put back
+     */
+    public void returnWork(final List<ImageProcessEvent> events) {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+
+        ListIterator<ImageProcessEvent> it = events.listIterator(events.size());
+
+        while (it.hasPrevious()) {
+            ImageProcessEvent ipe = it.previous();
+            QueueEntry entry = new QueueEntry(ipe, estimateBytes(ipe.getImage()));
+
+            size.incrementAndGet();
+            bytes.addAndGet(entry.getBytes());
+            this.index(entry);
+            store.offerFirst(entry);
+        }
+
+        this.signal(events.size());
+
+        LOGGER.debug("{} events returned to the queue", events.size());
     }
 
     /**
      * Removes all items currently waiting in the queue. This means that items from
-     * other objects/classes will also be flushed from the queue. <B>You should probably 
+     * other objects/classes will also be flushed from the queue. <B>You should probably
      * use the flush method instead.</B>
      */
-    public synchronized void flushAll() {
-        LOGGER.info("flushed queue of {} items", queue.size());
-        queue.clear();
+    public void flushAll() {
+        int count = available.drainPermits();
+        int flushed = 0;
+
+        if (mode == QueueMode.WORK_STEALING) {
+            //claim the entries where they are, polling would give this thread lanes of its own
+            //that nobody removes, the workers skip the placeholders left behind
+            for (ImageProcessEventType type : EventStore.DISPATCH_ORDER) {
+                for (QueueEntry entry : store.entries(type)) {
+                    flushed += this.flushEntry(entry);
+                }
+            }
+
+        } else {
+            for (int i = 0; i < count; i++) {
+                flushed += this.flushEntry(this.take());
+            }
+        }
+
+        LOGGER.info("flushed queue of {} items", flushed);
     }
 
     /**
@@ -108,48 +450,841 @@ public final class Queue implements ImageProcessEventListener {
      *
      * @param pil listener to search for
      */
-    public synchronized void flush(final ImageMessageEventListener pil) {
+    public void flush(final ImageMessageEventListener pil) {
         if (pil == null) {
             return;
         }
-               
-        //make an array of all the items
-        List<ImageProcessEvent> copy = queue.stream().toList();
-        
-        //remove all the elements in the queue
-        queue.clear();
 
-        for (ImageProcessEvent ipe : copy) {
-            if (ipe.getSource() != pil) {
-                queue.add(ipe);
+        Set<QueueEntry> entries = sources.remove(pil);
+        int flushed = 0;
+
+        if (entries != null) {
+            //the entries stay in their lanes as placeholders that the processors skip over
+            for (QueueEntry entry : entries) {
+                ImageProcessEvent ipe = entry.claim();
+
+                if (ipe != null) {
+                    this.release(entry);
+                    ipe.getResult().cancel(false);
+                    this.completed(ipe);
+                    this.promote(entry, entries);
+                    flushed++;
+                }
             }
         }
 
-        LOGGER.debug("flushed queue, now contains {} items", queue.size());
+        LOGGER.debug("flushed {} items, now contains {} items", flushed, size.get());
     }
 
     /**
      * Are there any elements in the queue.
      * @return whether this queue contains items to be processed
      */
-    public synchronized boolean hasElements() {
-        return !queue.isEmpty();
+    public boolean hasElements() {
+        return size.get() > 0;
     }
 
     /**
      * Get the current size of the queue.
      * @return number of items currently waiting to be processed
      */
-    public synchronized int numElements() {
-        return queue.size();
+    public int numElements() {
+        return size.get();
+    }
+
+    /**
+     * Get the estimated image bytes held by the events waiting in the queue.
+     * @return estimated bytes
+     */
+    public long numBytes() {
+        return bytes.get();
+    }
+
+    public QueueMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Get the store holding the waiting entries.
+     * @return store
+     */
+    EventStore getStore() {
+        return store;
+    }
+
+    /**
+     * Set the share of the processors a source gets relative to other sources. Only used in
+     * FAIR_SHARE mode.
+     * @param source listener that sends events
+     * @param weight weight, the default is 1
+     */
+    public void setSourceWeight(final ImageMessageEventListener source, final int weight) {
+        if (source == null) {
+            throw new IllegalArgumentException("source cannot be null");
+        }
+
+        if (store instanceof FairShareStore fair) {
+            fair.setWeight(source, weight);
+
+        } else {
+            LOGGER.warn("source weights are only used in FAIR_SHARE mode, not {}", mode);
+        }
+    }
+
+    /**
+     * Set how long (ms) a source can wait before it is served regardless of its share. Only
+     * used in FAIR_SHARE mode.
+     * @param maxWait time in ms
+     */
+    public void setMaxWait(final long maxWait) {
+        if (store instanceof FairShareStore fair) {
+            fair.setMaxWait(maxWait);
+
+        } else {
+            LOGGER.warn("max wait is only used in FAIR_SHARE mode, not {}", mode);
+        }
+    }
+
+    /**
+     * Number of events that missed their deadline, either dropped from the queue or stopped
+     * by an ImageProcessor.
+     * @return number of deadline misses
+     */
+    public long getDeadlineMisses() {
+        return deadlineMisses.get();
+    }
+
+    /**
+     * Get the moving average of the time events waited in the queue before an ImageProcessor
+     * took them. Recent events count the most.
+     * @return average wait in ms
+     */
+    public long getAverageWait() {
+        return TimeUnit.NANOSECONDS.toMillis(averageWait.get());
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Combine identical waiting events so their work is only done once. Every source still gets
+     * its own message, but they all carry the same image, so listeners must not change it.
+     * Events that hold an image, have a deadline, a budget, a cancellation token or branches, or
+     * use a task without a signature are never combined. Only events added after this call are combined.
+     * @param coalescing true to combine identical events
+     */
+    public void setCoalescing(final boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * Number of events that were combined with an identical event instead of being processed.
+     * @return number of events combined
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Stop accepting new events, they are rejected with an error message from now on. Events
+     * already waiting can still be taken and returned. Used when shutting down.
+     */
+    public void close() {
+        this.closed = true;
+
+        //producers waiting for room give up
+        capacityLock.lock();
+
+        try {
+            notFull.signalAll();
+
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public QueueJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Set a journal to keep a durable copy of the file based events waiting in this queue. Only
+     * events added after this call are journaled.
+     * @see QueueJournal#replay(Queue, ImageMessageEventListener)
+     * @param journal journal or null for none
+     */
+    public void setJournal(final QueueJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * An event taken from this queue has finished (processed, flushed, evicted or expired) and
+     * no longer needs to be kept in the journal.
+     * @param ipe event that finished
+     */
+    void completed(final ImageProcessEvent ipe) {
+        List<ImageProcessEvent> merged = followers.remove(ipe);
+        QueueJournal j = journal;
+
+        if (j != null) {
+            j.done(ipe);
+
+            if (merged != null) {
+                merged.forEach(j::done);
+            }
+        }
+    }
+
+    /**
+     * Get the number of consumers (ImageProcessors and pipelines) taking work from this queue.
+     * @return number of consumers
+     */
+    public int getConsumers() {
+        return consumers.get();
+    }
+
+    /**
+     * The current thread starts taking work from this queue. Called by consumers when they
+     * start, each call must be matched by a call to leave().
+     */
+    void enter() {
+        consumers.incrementAndGet();
+    }
+
+    /**
+     * The current thread will not take any more work from this queue. Called by consumers when
+     * they exit, in WORK_STEALING mode the lanes they owned are dropped and anything left in them
+     * is handed to the others.
+     */
+    void leave() {
+        consumers.decrementAndGet();
+        store.leave();
+    }
+
+    /**
+     * Get the events that were combined with an event taken from this queue. They are owed the
+     * same message as the event itself.
+     * @param ipe event taken from the queue
+     * @return combined events, empty if there are none
+     */
+    List<ImageProcessEvent> getFollowers(final ImageProcessEvent ipe) {
+        return followers.getOrDefault(ipe, List.of());
+    }
+
+    /**
+     * Count an event that missed its deadline.
+     */
+    void deadlineMissed() {
+        deadlineMisses.incrementAndGet();
+    }
+
+    public int getMaxEvents() {
+        return maxEvents;
+    }
+
+    /**
+     * Set the maximum number of events that may wait in the queue.
+     * @param maxEvents maximum, must be greater than 0
+     */
+    public void setMaxEvents(final int maxEvents) {
+        if (maxEvents <= 0) {
+            throw new IllegalArgumentException("maxEvents must be greater than 0");
+        }
+
+        this.maxEvents = maxEvents;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Set the maximum estimated image bytes that may wait in the queue. A single event larger
+     * than this is still accepted when the queue is empty.
+     * @param maxBytes maximum, must be greater than 0
+     */
+    public void setMaxBytes(final long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be greater than 0");
+        }
+
+        this.maxBytes = maxBytes;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set what happens to new events when the queue is full.
+     * @param overflowPolicy policy, null for the default (BLOCK)
+     */
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.BLOCK : overflowPolicy;
+    }
+
+    public long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * Set how long a producer waits for space with the BLOCK policy.
+     * @param blockTimeout time in ms
+     */
+    public void setBlockTimeout(final long blockTimeout) {
+        this.blockTimeout = Math.max(0L, blockTimeout);
     }
 
     @Override
-    public synchronized String toString() {
+    public String toString() {
         return "Queue{" +
-                "queue=" + queue.size() +
+                "queue=" + size.get() +
+                ", bytes=" + bytes.get() +
                 '}';
     }
 
-}
+    /**
+     * Estimate the memory held by an image.
+     * @param image image, may be null
+     * @return estimated size in bytes
+     */
+    static long estimateBytes(final BufferedImage image) {
+        if (image == null) {
+            return 0L;
+        }
+
+        DataBuffer db = image.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+
+    /**
+     * Get the signature of an event. Events with equal signatures do exactly the same work.
+     * @param ipe event
+     * @return signature or null if the event cannot be combined with others
+     */
+    static Object signature(final ImageProcessEvent ipe) {
+        if (ipe.getImage() != null || ipe.hasDeadline() || ipe.getBudget() != ImageProcessEvent.NO_BUDGET
+                || ipe.getCancellationToken() != null || ipe.hasBranches()) {
+            return null;
+        }
+
+        //empty slots in the task list do nothing, skip them
+        List<AbstractImageTask> tasks = ipe.getTasks().stream().filter(Objects::nonNull).toList();
+
+        if (tasks.isEmpty()) {
+            return null;
+        }
+
+        List<Object> signature = new ArrayList<>(tasks.size() + 1);
+        signature.add(ipe.getPriority());
+
+        for (AbstractImageTask task : tasks) {
+            Object s = task.getSignature();
+
+            if (s == null) {
+                return null;
+            }
+
+            signature.add(s);
+        }
+
+        return signature;
+    }
+
+    /**
+     * Send an ERROR message to the source of an event that will not be processed.
+     * @param ipe event
+     * @param message reason
+     */
+    private static void reply(final ImageProcessEvent ipe, final String message) {
+        ImageMessageEventListener source = (ImageMessageEventListener) ipe.getSource();
+        ipe.reply(ImageMessageEvent.createErrorEvent(source, message));
+    }
+
+    /**
+     * Reserve space for an entry, applying the overflow policy if the queue is full.
+     * @param entry entry to add
+     * @return true if space was reserved
+     */
+    private boolean reserve(final QueueEntry entry) {
+        if (maxEvents == Integer.MAX_VALUE && maxBytes == Long.MAX_VALUE) {
+            size.incrementAndGet();
+            bytes.addAndGet(entry.getBytes());
+            return true;
+        }
+
+        return switch (overflowPolicy) {
+            case REJECT -> this.tryReserve(entry);
+            case EVICT_OLDEST_LOW -> {
+                boolean reserved;
+
+                while (! (reserved = this.tryReserve(entry)) && this.evictOldestLow()) {
+                    LOGGER.debug("evicted an event to make room");
+                }
+
+                yield reserved;
+            }
+            case BLOCK -> this.reserveOrWait(entry);
+        };
+    }
+
+    /**
+     * Reserve space for an entry if there is room.
+     * @param entry entry to add
+     * @return true if space was reserved
+     */
+    private boolean tryReserve(final QueueEntry entry) {
+        capacityLock.lock();
+
+        try {
+            if (! this.hasRoom(entry)) {
+                return false;
+            }
+
+            size.incrementAndGet();
+            bytes.addAndGet(entry.getBytes());
+            return true;
+
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    /**
+     * Reserve space for an entry, waiting up to the block timeout for room.
+     * @param entry entry to add
+     * @return true if space was reserved
+     */
+    private boolean reserveOrWait(final QueueEntry entry) {
+        capacityLock.lock();
+
+        //register before checking so a consumer freeing space cannot miss us
+        waiting.incrementAndGet();
+
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+
+            while (! this.hasRoom(entry)) {
+                if (nanos <= 0L || closed) {
+                    return false;
+                }
+
+                nanos = notFull.awaitNanos(nanos);
+            }
+
+            size.incrementAndGet();
+            bytes.addAndGet(entry.getBytes());
+            return true;
 
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+
+        } finally {
+            waiting.decrementAndGet();
+            capacityLock.unlock();
+        }
+    }
+
+    /**
+     * Is there room for the given entry. An empty queue always has room.
+     * @param entry entry to add
+     * @return true if the entry fits
+     */
+    private boolean hasRoom(final QueueEntry entry) {
+        int count = size.get();
+        return count == 0 || (count < maxEvents && bytes.get() + entry.getBytes() <= maxBytes);
+    }
+
+    /**
+     * Claim an entry that was taken from the lanes. An event whose deadline has passed is
+     * dropped and answered with an EXPIRED message.
+     * @param entry entry taken
+     * @return event to process or null if the entry was a placeholder or expired
+     */
+    private ImageProcessEvent next(final QueueEntry entry) {
+        ImageProcessEvent ipe = this.claim(entry);
+
+        if (ipe != null && ipe.isExpired()) {
+            LOGGER.debug("dropped expired event {}", ipe);
+            this.deadlineMissed();
+
+            for (ImageProcessEvent follower : this.getFollowers(ipe)) {
+                expire(follower);
+            }
+
+            expire(ipe);
+            this.completed(ipe);
+            return null;
+
+        } else if (ipe != null) {
+            long waited = System.nanoTime() - entry.getQueuedAt();
+            averageWait.getAndUpdate(average -> average + (waited - average) / WAIT_SMOOTHING);
+        }
+
+        return ipe;
+    }
+
+    /**
+     * Send an EXPIRED message to the source of an event that was dropped from the queue.
+     * @param ipe event
+     */
+    private static void expire(final ImageProcessEvent ipe) {
+        ImageMessageEventListener source = (ImageMessageEventListener) ipe.getSource();
+        ipe.reply(new ImageMessageEvent(source, ImageMessageEventType.EXPIRED, "deadline passed while queued", null));
+    }
+
+    /**
+     * Have an entry wait on the waiting entry with the same signature.
+     * @param signature signature of the entry's event
+     * @param entry entry to add
+     * @return true if the entry is now waiting on another, false if there was none to wait on
+     */
+    private boolean follow(final Object signature, final QueueEntry entry) {
+        QueueEntry leader = leaders.get(signature);
+
+        if (leader != null && leader.follow(entry)) {
+            coalesced.incrementAndGet();
+            LOGGER.debug("combined {} with an identical waiting event", entry.peek());
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Put the followers of an entry that was flushed back in the queue, except those that are
+     * being flushed too. The followers lose their place in line.
+     * @param entry entry that was flushed
+     * @param flushed entries being flushed
+     */
+    private void promote(final QueueEntry entry, final Set<QueueEntry> flushed) {
+        if (entry.getSignature() == null) {
+            return;
+        }
+
+        leaders.remove(entry.getSignature(), entry);
+        List<ImageProcessEvent> events = new ArrayList<>();
+
+        for (QueueEntry follower : entry.takeFollowers()) {
+            ImageProcessEvent ipe = flushed.contains(follower) ? null : this.claim(follower);
+
+            if (ipe != null) {
+                events.add(ipe);
+            }
+        }
+
+        this.returnWork(events);
+    }
+
+    /**
+     * Add an entry to the index of its source. Must happen before the entry is visible to
+     * consumers, so it cannot be taken before it is indexed. Events of the same source are
+     * added to a concurrent set without locking each other out.
+     * @param entry entry to index
+     */
+    private void index(final QueueEntry entry) {
+        Object source = entry.getSource();
+
+        while (true) {
+            Set<QueueEntry> set = sources.computeIfAbsent(source, k -> ConcurrentHashMap.newKeySet());
+            set.add(entry);
+
+            //the set was flushed or pruned while we added to it, use the one that replaced it
+            if (sources.get(source) == set) {
+                break;
+            }
+
+            set.remove(entry);
+        }
+
+        //claimed while we were adding it, it must not stay in the index
+        if (entry.peek() == null) {
+            this.unindex(entry);
+        }
+    }
+
+    /**
+     * Remove an entry from the index of its source.
+     * @param entry entry to remove
+     */
+    private void unindex(final QueueEntry entry) {
+        Object source = entry.getSource();
+        Set<QueueEntry> set = sources.get(source);
+
+        if (set != null && set.remove(entry) && set.isEmpty()) {
+            this.prune(source, set);
+        }
+    }
+
+    /**
+     * Drop the set of a source that has nothing waiting. Entries added while it was being dropped
+     * are indexed again.
+     * @param source source of the events
+     * @param set entries of the source, found empty
+     */
+    private void prune(final Object source, final Set<QueueEntry> set) {
+        boolean[] removed = new boolean[1];
+
+        sources.computeIfPresent(source, (k, entries) -> {
+            removed[0] = entries == set && entries.isEmpty();
+            return removed[0] ? null : entries;
+        });
+
+        if (removed[0]) {
+            for (QueueEntry entry : set) {
+                if (entry.peek() != null) {
+                    this.index(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Claim the event of an entry, removing it from the index and giving back its space.
+     * @param entry entry to claim
+     * @return event or null if the entry had already been claimed
+     */
+    private ImageProcessEvent claim(final QueueEntry entry) {
+        ImageProcessEvent ipe = entry.claim();
+
+        if (ipe != null) {
+            this.unindex(entry);
+            this.release(entry);
+
+            if (entry.getSignature() != null) {
+                this.merge(entry, ipe);
+            }
+        }
+
+        return ipe;
+    }
+
+    /**
+     * Claim an entry and cancel its event and its followers.
+     * @param entry entry to flush
+     * @return number of events cancelled, 0 if the entry was already claimed
+     */
+    private int flushEntry(final QueueEntry entry) {
+        ImageProcessEvent ipe = this.claim(entry);
+
+        if (ipe == null) {
+            return 0;
+        }
+
+        int flushed = 0;
+
+        for (ImageProcessEvent follower : this.getFollowers(ipe)) {
+            follower.getResult().cancel(false);
+            flushed++;
+        }
+
+        ipe.getResult().cancel(false);
+        this.completed(ipe);
+
+        return flushed + 1;
+    }
+
+    /**
+     * Claim the followers of an entry that was just claimed, they get the result of its event.
+     * @param entry entry that was claimed
+     * @param ipe event of the entry
+     */
+    private void merge(final QueueEntry entry, final ImageProcessEvent ipe) {
+        leaders.remove(entry.getSignature(), entry);
+        List<ImageProcessEvent> events = new ArrayList<>();
+
+        for (QueueEntry follower : entry.takeFollowers()) {
+            ImageProcessEvent e = this.claim(follower);
+
+            if (e != null) {
+                events.add(e);
+            }
+        }
+
+        if (! events.isEmpty()) {
+            followers.put(ipe, events);
+        }
+    }
+
+    /**
+     * Give back the space held by an entry that has left the queue.
+     * @param entry entry that was claimed
+     */
+    private void release(final QueueEntry entry) {
+        size.decrementAndGet();
+        bytes.addAndGet(-entry.getBytes());
+
+        if (waiting.get() > 0) {
+            capacityLock.lock();
+
+            try {
+                notFull.signalAll();
+
+            } finally {
+                capacityLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Evict the oldest low priority event still waiting. Its placeholder stays in the lane
+     * until a consumer skips over it.
+     * @return true if an event was evicted
+     */
+    private boolean evictOldestLow() {
+        for (QueueEntry entry : store.entries(ImageProcessEventType.PRIORITY_LOW)) {
+            ImageProcessEvent ipe = this.claim(entry);
+
+            if (ipe != null) {
+                for (ImageProcessEvent follower : this.getFollowers(ipe)) {
+                    reply(follower, "evicted from full queue");
+                }
+
+                this.completed(ipe);
+                reply(ipe, "evicted from full queue");
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Claim an entry already taken, plus whatever else is waiting (up to max).
+     * @param first entry taken
+     * @param c collection to add the events to
+     * @param max maximum number of events to take
+     * @return number of events added, may be 0 if only placeholders or expired events were found
+     */
+    private int drainHeld(final QueueEntry first, final Collection<? super ImageProcessEvent> c, final int max) {
+        boolean stealing = mode == QueueMode.WORK_STEALING;
+        int more = stealing ? max - 1 : this.tryAcquireUpTo(max - 1);
+        QueueEntry entry = first;
+        int count = 0;
+
+        for (int i = 0; i <= more && entry != null; i++) {
+            ImageProcessEvent ipe = this.next(entry);
+
+            if (ipe != null) {
+                c.add(ipe);
+                count++;
+            }
+
+            if (i < more) {
+                entry = stealing ? store.poll() : this.take();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Wait for an entry and take it from the lanes. In WORK_STEALING mode the lanes are looked at
+     * first and the semaphore is only used to park when they are empty, otherwise a permit is
+     * acquired for the entry.
+     * @param deadline System.nanoTime() to give up at, or NO_TIMEOUT to wait until there is one
+     * @return entry or null if the time ran out or interrupted while waiting
+     */
+    private QueueEntry await(final long deadline) {
+        if (mode != QueueMode.WORK_STEALING) {
+            return this.acquire(deadline) ? this.take() : null;
+        }
+
+        while (true) {
+            QueueEntry entry = store.poll();
+
+            if (entry != null) {
+                return entry;
+            }
+
+            //count ourselves before looking again, a producer that adds after our look sees us
+            idle.incrementAndGet();
+
+            try {
+                entry = store.poll();
+
+                if (entry != null) {
+                    return entry;
+
+                } else if (! this.acquire(deadline)) {
+                    return null;
+                }
+
+            } finally {
+                idle.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Acquire a permit.
+     * @param deadline System.nanoTime() to give up at, or NO_TIMEOUT to wait until there is one
+     * @return true if acquired, false if the time ran out or interrupted while waiting
+     */
+    private boolean acquire(final long deadline) {
+        try {
+            if (deadline == NO_TIMEOUT) {
+                available.acquire();
+                return true;
+            }
+
+            return available.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+        } catch (InterruptedException ie) {
+            return false;
+        }
+    }
+
+    /**
+     * Tell waiting consumers that entries were added to the lanes. In WORK_STEALING mode only
+     * consumers that are parked get a permit, so busy consumers never touch the semaphore.
+     * @param count number of entries added
+     */
+    private void signal(final int count) {
+        int permits = mode == QueueMode.WORK_STEALING ? Math.min(count, idle.get()) : count;
+
+        if (permits > 0) {
+            available.release(permits);
+        }
+    }
+
+    /**
+     * Acquire as many permits as are available, up to the given amount, without blocking.
+     * @param max maximum number of permits
+     * @return number of permits acquired
+     */
+    private int tryAcquireUpTo(final int max) {
+        int n;
+
+        while ((n = Math.min(max, available.availablePermits())) > 0) {
+            if (available.tryAcquire(n)) {
+                return n;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Remove the next entry from the highest priority lane that has one. The caller
+     * must hold a permit, which guarantees there is an entry waiting for it.
+     * @return next entry
+     */
+    private QueueEntry take() {
+        QueueEntry entry;
+
+        //another consumer may briefly hide our entry from us while both are scanning the lanes
+        while ((entry = store.poll()) == null) {
+            Thread.onSpinWait();
+        }
+
+        return entry;
+    }
+
+}
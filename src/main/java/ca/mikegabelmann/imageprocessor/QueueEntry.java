@@ -0,0 +1,138 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+
+
+/**
+ * A slot in a <code>Queue</code>. The event is claimed exactly once, either by the consumer that
+ * takes the entry or by whoever evicts or flushes it, after which the slot is an empty placeholder
+ * that consumers skip over.
+ *
+ * <P>An entry with a signature can have followers, entries for identical events that are not put
+ * in a lane but wait for this entry's event to be processed.</P>
+ */
+final class QueueEntry {
+    /** Event waiting to be processed, null once claimed. */
+    private final AtomicReference<ImageProcessEvent> event;
+
+    /** Source of the event. */
+    private final Object source;
+
+    /** Priority the event had when it was queued, decides its lane. */
+    private final ImageProcessEventType priority;
+
+    /** Deadline the event had when it was queued. */
+    private final long deadline;
+
+    /** Estimated image bytes held by the event. */
+    private final long bytes;
+
+    /** Time (ns) the entry was queued. */
+    private final long queuedAt;
+
+    /** Identifies identical events, null if the event cannot be combined with others. */
+    private final Object signature;
+
+    /** Entries of identical events waiting on this one, guarded by this. */
+    private List<QueueEntry> followers;
+
+
+    /**
+     * Creates a new instance of QueueEntry.
+     * @param event event to hold
+     * @param bytes estimated image bytes held by the event
+     */
+    QueueEntry(final ImageProcessEvent event, final long bytes) {
+        this(event, bytes, null);
+    }
+
+    /**
+     * Creates a new instance of QueueEntry.
+     * @param event event to hold
+     * @param bytes estimated image bytes held by the event
+     * @param signature identifies identical events, may be null
+     */
+    QueueEntry(final ImageProcessEvent event, final long bytes, final Object signature) {
+        this.event = new AtomicReference<>(event);
+        this.source = event.getSource();
+        this.priority = event.getPriority();
+        this.deadline = event.getDeadline();
+        this.bytes = bytes;
+        this.signature = signature;
+        this.queuedAt = System.nanoTime();
+    }
+
+    /**
+     * Have the given entry wait on this one. Fails once this entry has been claimed, so call
+     * takeFollowers() after claiming to see every follower that was added.
+     * @param follower entry of an identical event
+     * @return true if added
+     */
+    synchronized boolean follow(final QueueEntry follower) {
+        if (event.get() == null) {
+            return false;
+        }
+
+        if (followers == null) {
+            followers = new ArrayList<>(2);
+        }
+
+        return followers.add(follower);
+    }
+
+    /**
+     * Remove the followers of this entry.
+     * @return followers, in the order they were added
+     */
+    synchronized List<QueueEntry> takeFollowers() {
+        List<QueueEntry> list = followers == null ? List.of() : followers;
+        followers = null;
+        return list;
+    }
+
+    /**
+     * Take the event out of this entry.
+     * @return event, or null if someone else claimed it first
+     */
+    ImageProcessEvent claim() {
+        return event.getAndSet(null);
+    }
+
+    /**
+     * Look at the event without claiming it.
+     * @return event or null if already claimed
+     */
+    ImageProcessEvent peek() {
+        return event.get();
+    }
+
+    Object getSource() {
+        return source;
+    }
+
+    ImageProcessEventType getPriority() {
+        return priority;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
+    Object getSignature() {
+        return signature;
+    }
+
+}
@@ -0,0 +1,751 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.Kernel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
+import ca.mikegabelmann.imageprocessor.tasks.ExitTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageCropTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageFileTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageFileTaskType;
+import ca.mikegabelmann.imageprocessor.tasks.ImageKernelTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageNullTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageResizeTask;
+import ca.mikegabelmann.imageprocessor.tasks.ResampleFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <P>A durable log of the file based events waiting in a <code>Queue</code>, so a restart does
+ * not lose the backlog. When a Queue has a journal every event it accepts that does not hold an
+ * image (its tasks read the image from disk) is appended to the journal, and marked as done once
+ * it has been processed, flushed, evicted or has expired.</P>
+ *
+ * <P>The journal is a directory of fixed size segments that are memory mapped, so appending is a
+ * copy into memory and the operating system writes it out. Call <code>force()</code> to wait for
+ * the data to reach the disk. A record is only valid once its length has been written, which is
+ * done last, so a crash part way through an append loses that record and nothing else.</P>
+ *
+ * <P>When the oldest segment no longer holds any waiting events it is deleted. If most of its
+ * events are done the few that are still waiting are copied to the newest segment first
+ * (compaction). Java cannot unmap a file, the memory of a deleted segment is only released
+ * once its buffer has been garbage collected. Systems that do not allow a mapped file to be
+ * deleted (Windows) keep the file until a later compaction or close() manages to delete it.</P>
+ *
+ * <P>On startup call <code>replay()</code> to put the events that were still waiting back on the
+ * queue, this also sets the journal on the queue. Only the built-in tasks can be journaled,
+ * events with other tasks are not journaled.</P>
+ *
+ * <PRE>
+ *     Queue queue = new Queue();
+ *     QueueJournal journal = new QueueJournal(new File("journal"));
+ *     journal.replay(queue, listener);
+ * </PRE>
+ */
+public final class QueueJournal implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueueJournal.class);
+
+    //CONSTANTS
+    /** Default size of a segment. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024 * 8;
+
+    /** Segment file name prefix. */
+    private static final String PREFIX = "journal-";
+
+    /** Segment file name suffix. */
+    private static final String SUFFIX = ".log";
+
+    /** Record holding a new event. */
+    private static final byte ADD = 1;
+
+    /** Record marking an event as done. */
+    private static final byte DONE = 2;
+
+    /** Length of the record header (length, type, id). */
+    private static final int HEADER = 4 + 1 + 8;
+
+    /** Task tags. */
+    private static final byte TASK_FILE = 1;
+    private static final byte TASK_RESIZE = 2;
+    private static final byte TASK_KERNEL = 3;
+    private static final byte TASK_NULL = 4;
+    private static final byte TASK_EXIT = 5;
+    private static final byte TASK_RESAMPLE = 6;
+    private static final byte TASK_CROP = 7;
+
+    //VARIABLES
+    /** Directory holding the segments. */
+    private final Path directory;
+
+    /** Size of each segment. */
+    private final int segmentSize;
+
+    /** Guards the segments and records. */
+    private final ReentrantLock lock;
+
+    /** Segments, oldest first. The last one is written to. */
+    private final Deque<Segment> segments;
+
+    /** Records of events that are still waiting, by id. */
+    private final Map<Long, Record> records;
+
+    /** Ids of the events that are still waiting. */
+    private final Map<ImageProcessEvent, Long> pending;
+
+    /** Next event id. */
+    private long nextId;
+
+    /** Next segment number. */
+    private long nextSegment;
+
+    /** Files of removed segments that could not be deleted yet. */
+    private final List<Path> retired;
+
+    /** Events being replayed, true once one was marked done while it was offered. */
+    private final Map<ImageProcessEvent, Boolean> replaying;
+
+
+    /**
+     * Creates a new instance of QueueJournal, opening any segments already in the directory.
+     * @param directory directory to keep the journal in, created if missing
+     * @throws IOException if the journal cannot be opened
+     */
+    public QueueJournal(final File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new instance of QueueJournal, opening any segments already in the directory.
+     * @param directory directory to keep the journal in, created if missing
+     * @param segmentSize size of each segment in bytes
+     * @throws IOException if the journal cannot be opened
+     */
+    public QueueJournal(final File directory, final int segmentSize) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory cannot be null");
+        }
+
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("segmentSize must be at least 1024");
+        }
+
+        this.directory = directory.toPath();
+        this.segmentSize = segmentSize;
+        this.lock = new ReentrantLock();
+        this.segments = new ArrayDeque<>();
+        this.records = new HashMap<>();
+        this.pending = new ConcurrentHashMap<>();
+        this.retired = new ArrayList<>();
+        this.replaying = new ConcurrentHashMap<>();
+
+        Files.createDirectories(this.directory);
+        this.load();
+    }
+
+    /**
+     * Put every event that was still waiting when the journal was last used back on the queue.
+     * Events are replayed in the order they were originally added. The journal is set on the
+     * queue (if it is not already) so the replayed events are marked done once processed. Events
+     * the queue does not accept (closed or full) stay in the journal for a later replay.
+     * @param queue queue to add the events to
+     * @param listener source for the replayed events, receives their results
+     * @return number of events put back on the queue
+     */
+    public int replay(final Queue queue, final ImageMessageEventListener listener) {
+        if (queue == null || listener == null) {
+            throw new IllegalArgumentException("queue and listener cannot be null");
+        }
+
+        List<ImageProcessEvent> events = new ArrayList<>();
+        lock.lock();
+
+        try {
+            for (Record record : new TreeMap<>(records).values()) {
+                if (record.event != null) {
+                    continue;
+                }
+
+                try {
+                    record.event = this.decode(listener, record.read());
+                    pending.put(record.event, record.id);
+                    events.add(record.event);
+
+                } catch (IOException | ImageTaskException e) {
+                    LOGGER.warn("skipped unreadable journal record {} - {}", record.id, e.getMessage());
+                }
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+        queue.setJournal(this);
+        int queued = 0;
+
+        //already journaled, so the queue does not append them again
+        for (ImageProcessEvent ipe : events) {
+            replaying.put(ipe, Boolean.FALSE);
+            boolean accepted = queue.offer(ipe);
+            boolean finished = replaying.remove(ipe);
+
+            if (! accepted) {
+                //a refusal is not the end of the event, keep its record
+                this.release(ipe);
+
+            } else {
+                queued++;
+
+                //processed before the offer returned
+                if (finished) {
+                    this.done(ipe);
+                }
+            }
+        }
+
+        LOGGER.info("replayed {} of {} events from {}", queued, events.size(), directory);
+        return queued;
+    }
+
+    /**
+     * Append an event to the journal. Does nothing if the event holds an image, has branches, uses
+     * a task that cannot be journaled, or is already in the journal.
+     * @param ipe event to add
+     * @return true if the event is in the journal
+     */
+    boolean append(final ImageProcessEvent ipe) {
+        if (pending.containsKey(ipe)) {
+            return true;
+
+        } else if (ipe.getImage() != null || ipe.hasBranches()) {
+            return false;
+        }
+
+        byte[] payload = encode(ipe);
+
+        if (payload == null) {
+            LOGGER.debug("event cannot be journaled {}", ipe);
+            return false;
+        }
+
+        lock.lock();
+
+        try {
+            Record record = new Record(nextId++);
+            record.event = ipe;
+            this.write(record, ADD, payload);
+            records.put(record.id, record);
+            pending.put(ipe, record.id);
+            return true;
+
+        } catch (IOException ioe) {
+            LOGGER.warn("could not journal event - {}", ioe.getMessage());
+            return false;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mark an event as done, it will not be replayed.
+     * @param ipe event that has finished
+     */
+    void done(final ImageProcessEvent ipe) {
+        //only known to be done once the offer of a replay says it was accepted
+        if (replaying.replace(ipe, Boolean.FALSE, Boolean.TRUE)) {
+            return;
+        }
+
+        Long id = pending.remove(ipe);
+
+        if (id == null) {
+            return;
+        }
+
+        lock.lock();
+
+        try {
+            Record record = records.remove(id);
+            this.write(new Record(id), DONE, new byte[0]);
+
+            if (record != null) {
+                record.segment.live--;
+            }
+
+            this.compact();
+
+        } catch (IOException ioe) {
+            LOGGER.warn("could not mark event {} done - {}", id, ioe.getMessage());
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget the event of a record that could not be replayed, so the next replay decodes it again.
+     * @param ipe event that was not accepted
+     */
+    private void release(final ImageProcessEvent ipe) {
+        Long id = pending.remove(ipe);
+
+        if (id == null) {
+            return;
+        }
+
+        lock.lock();
+
+        try {
+            Record record = records.get(id);
+
+            if (record != null) {
+                record.event = null;
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of events in the journal that are still waiting.
+     * @return number of events
+     */
+    public int size() {
+        lock.lock();
+
+        try {
+            return records.size();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of segment files in use.
+     * @return number of segments
+     */
+    public int getSegments() {
+        lock.lock();
+
+        try {
+            return segments.size();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until everything appended so far has been written to disk.
+     */
+    public void force() {
+        lock.lock();
+
+        try {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+
+        try {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+
+            segments.clear();
+            this.deleteRetired();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "QueueJournal{" +
+                "directory=" + directory +
+                ", events=" + records.size() +
+                '}';
+    }
+
+    /**
+     * Read the segments in the directory and find the events that are still waiting.
+     * @throws IOException if a segment cannot be read
+     */
+    private void load() throws IOException {
+        List<Path> files;
+
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().startsWith(PREFIX) && p.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long number = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            Segment segment = this.open(file);
+
+            //scan the records, stopping at the first one that was never completed
+            int position = 0;
+
+            while (position + HEADER <= segment.buffer.capacity()) {
+                int length = segment.buffer.getInt(position);
+
+                if (length < HEADER || position + length > segment.buffer.capacity()) {
+                    break;
+                }
+
+                byte type = segment.buffer.get(position + 4);
+                long id = segment.buffer.getLong(position + 5);
+
+                if (type == ADD) {
+                    Record record = new Record(id);
+                    record.segment = segment;
+                    record.offset = position;
+                    record.length = length;
+                    records.put(id, record);
+                    segment.live++;
+
+                } else if (type == DONE) {
+                    Record record = records.remove(id);
+
+                    if (record != null) {
+                        record.segment.live--;
+                    }
+                }
+
+                segment.records++;
+                nextId = Math.max(nextId, id + 1);
+                position += length;
+            }
+
+            segment.position = position;
+            segments.addLast(segment);
+            nextSegment = number + 1;
+        }
+
+        LOGGER.debug("opened journal {} with {} waiting events in {} segments", directory, records.size(), segments.size());
+    }
+
+    /**
+     * Append a record to the newest segment, starting a new segment if it does not fit.
+     * @param record record to write, its location is updated
+     * @param type ADD or DONE
+     * @param payload record body
+     * @throws IOException if a new segment cannot be created
+     */
+    private void write(final Record record, final byte type, final byte[] payload) throws IOException {
+        int length = HEADER + payload.length;
+
+        if (length > segmentSize) {
+            throw new IOException("record of " + length + " bytes is larger than a segment");
+        }
+
+        Segment segment = segments.peekLast();
+
+        if (segment == null || segment.position + length > segmentSize) {
+            segment = this.open(directory.resolve(String.format("%s%012d%s", PREFIX, nextSegment++, SUFFIX)));
+            segments.addLast(segment);
+        }
+
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = segment.position;
+
+        buffer.put(offset + 4, type);
+        buffer.putLong(offset + 5, record.id);
+        buffer.put(offset + HEADER, payload);
+
+        //the length makes the record valid so it goes in last
+        buffer.putInt(offset, length);
+
+        segment.position += length;
+        segment.records++;
+
+        if (type == ADD) {
+            record.segment = segment;
+            record.offset = offset;
+            record.length = length;
+            segment.live++;
+        }
+    }
+
+    /**
+     * Delete old segments that no longer hold waiting events, moving the last few waiting
+     * events out of a segment that is mostly done. Only the oldest segment is ever removed, so
+     * a DONE record can never outlive the ADD record it refers to.
+     * @throws IOException if the waiting events cannot be copied
+     */
+    private void compact() throws IOException {
+        while (segments.size() > 1) {
+            Segment oldest = segments.peekFirst();
+
+            if (oldest.live > 0 && oldest.live * 4 > oldest.records) {
+                break;
+            }
+
+            //copy the waiting events to the newest segment
+            if (oldest.live > 0) {
+                for (Record record : records.values()) {
+                    if (record.segment == oldest) {
+                        byte[] payload = record.read();
+                        oldest.live--;
+                        this.write(record, ADD, payload);
+                    }
+                }
+            }
+
+            //nothing may use the mapping any more, it is released once the buffer is collected
+            segments.removeFirst();
+            oldest.buffer = null;
+            oldest.channel.close();
+            retired.add(oldest.file);
+
+            LOGGER.debug("removed journal segment {}", oldest.file);
+        }
+
+        this.deleteRetired();
+    }
+
+    /**
+     * Delete the files of removed segments. A file that is still mapped cannot be deleted on
+     * some systems, it is tried again next time.
+     */
+    private void deleteRetired() {
+        retired.removeIf(file -> {
+            try {
+                Files.deleteIfExists(file);
+                return true;
+
+            } catch (IOException ioe) {
+                LOGGER.debug("journal segment {} not deleted yet - {}", file, ioe.getMessage());
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Open (creating if needed) and map a segment file.
+     * @param file segment file
+     * @return segment
+     * @throws IOException if the file cannot be mapped
+     */
+    private Segment open(final Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+        return new Segment(file, channel, buffer);
+    }
+
+    /**
+     * Write the priority, deadline and tasks of an event.
+     * @param ipe event
+     * @return encoded event, or null if one of its tasks cannot be journaled
+     */
+    private static byte[] encode(final ImageProcessEvent ipe) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            List<AbstractImageTask> tasks = ipe.getTasks().stream().filter(t -> t != null).toList();
+
+            out.writeByte(ipe.getPriority().ordinal());
+            out.writeLong(ipe.getDeadline());
+            out.writeInt(tasks.size());
+
+            for (AbstractImageTask task : tasks) {
+                if (task instanceof ImageFileTask file) {
+                    out.writeByte(TASK_FILE);
+                    out.writeByte(file.getFiletype().ordinal());
+                    out.writeUTF(file.getInputfile() == null ? "" : file.getInputfile().getPath());
+                    out.writeUTF(file.getOutputfile() == null ? "" : file.getOutputfile().getPath());
+
+                } else if (task instanceof ImageResizeTask resize) {
+                    out.writeByte(TASK_RESAMPLE);
+                    out.writeInt(resize.getNewWidth());
+                    out.writeInt(resize.getNewHeight());
+                    out.writeByte(resize.getFilter().ordinal());
+
+                } else if (task instanceof ImageCropTask crop) {
+                    Rectangle region = crop.getRegion();
+                    out.writeByte(TASK_CROP);
+                    out.writeInt(region.x);
+                    out.writeInt(region.y);
+                    out.writeInt(region.width);
+                    out.writeInt(region.height);
+
+                } else if (task instanceof ImageKernelTask kernel) {
+                    float[] data = kernel.getKernel().getKernelData(null);
+                    out.writeByte(TASK_KERNEL);
+                    out.writeInt(kernel.getKernel().getWidth());
+                    out.writeInt(kernel.getKernel().getHeight());
+
+                    for (float f : data) {
+                        out.writeFloat(f);
+                    }
+
+                } else if (task instanceof ImageNullTask sleep) {
+                    out.writeByte(TASK_NULL);
+                    out.writeLong(sleep.getSleeptime());
+
+                } else if (task instanceof ExitTask) {
+                    out.writeByte(TASK_EXIT);
+
+                } else {
+                    return null;
+                }
+            }
+
+        } catch (IOException ioe) {
+            //cannot happen writing to memory
+            return null;
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rebuild an event from its record.
+     * @param listener source for the event
+     * @param payload encoded event
+     * @return event
+     * @throws IOException record is corrupt
+     * @throws ImageTaskException a task could not be recreated
+     */
+    private ImageProcessEvent decode(final ImageMessageEventListener listener, final byte[] payload) throws IOException, ImageTaskException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            ImageProcessEventType priority = ImageProcessEventType.values()[in.readByte()];
+            long deadline = in.readLong();
+            int count = in.readInt();
+
+            ImageProcessEvent ipe = new ImageProcessEvent(priority, listener, null, new AbstractImageTask[0]);
+            ipe.setDeadline(deadline);
+
+            for (int i = 0; i < count; i++) {
+                byte tag = in.readByte();
+
+                ipe.addTask(switch (tag) {
+                    case TASK_FILE -> {
+                        ImageFileTaskType type = ImageFileTaskType.values()[in.readByte()];
+                        String input = in.readUTF();
+                        String output = in.readUTF();
+                        yield new ImageFileTask(type, input.isEmpty() ? null : new File(input), output.isEmpty() ? null : new File(output));
+                    }
+                    case TASK_RESIZE -> new ImageResizeTask(new Dimension(in.readInt(), in.readInt()));
+                    case TASK_RESAMPLE -> new ImageResizeTask(new Dimension(in.readInt(), in.readInt()), ResampleFilter.values()[in.readByte()]);
+                    case TASK_CROP -> new ImageCropTask(new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+                    case TASK_KERNEL -> {
+                        int width = in.readInt();
+                        int height = in.readInt();
+                        float[] data = new float[width * height];
+
+                        for (int j = 0; j < data.length; j++) {
+                            data[j] = in.readFloat();
+                        }
+
+                        yield new ImageKernelTask(new Kernel(width, height, data));
+                    }
+                    case TASK_NULL -> new ImageNullTask(in.readLong());
+                    case TASK_EXIT -> new ExitTask();
+                    default -> throw new IOException("unknown task type " + tag);
+                });
+            }
+
+            return ipe;
+        }
+    }
+
+
+    /**
+     * A memory mapped segment file. Only used while holding the lock.
+     */
+    private static final class Segment {
+        private final Path file;
+        private final FileChannel channel;
+
+        /** Mapping of the file, null once the segment has been removed. */
+        private MappedByteBuffer buffer;
+
+        /** Where the next record goes. */
+        private int position;
+
+        /** Number of records written. */
+        private int records;
+
+        /** Number of ADD records whose events are still waiting. */
+        private int live;
+
+
+        Segment(final Path file, final FileChannel channel, final MappedByteBuffer buffer) {
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Location of the ADD record of an event that is still waiting. Only used while holding the lock.
+     */
+    private static final class Record {
+        private final long id;
+        private Segment segment;
+        private int offset;
+        private int length;
+
+        /** The event, once it has been appended or replayed. */
+        private ImageProcessEvent event;
+
+
+        Record(final long id) {
+            this.id = id;
+        }
+
+        /**
+         * Read the payload of the ADD record.
+         * @return payload
+         */
+        byte[] read() {
+            byte[] payload = new byte[length - HEADER];
+            segment.buffer.get(offset + HEADER, payload);
+            return payload;
+        }
+    }
+
+}
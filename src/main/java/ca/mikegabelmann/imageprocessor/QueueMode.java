@@ -0,0 +1,36 @@
+package ca.mikegabelmann.imageprocessor;
+
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+
+
+/**
+ * How a <code>Queue</code> stores waiting events and decides which one to hand out next.
+ * @see Queue#Queue(QueueMode)
+ */
+public enum QueueMode {
+    /** one shared lane per priority, strictly FIFO within a priority */
+    PRIORITY,
+
+    /**
+     * every thread taking work owns its own lanes and idle threads steal from busy ones. Higher
+     * priority work is still always taken before lower priority work, but events of the same
+     * priority are only FIFO within each thread's lanes.
+     */
+    WORK_STEALING,
+
+    /**
+     * earliest deadline first. Events without a deadline are handed out after every event that
+     * has one, in priority order.
+     */
+    DEADLINE,
+
+    /**
+     * weighted fair share between sources. Each source gets a share of the processors proportional
+     * to its weight, a source that has waited too long is served next. Within a source events are
+     * handed out in priority order.
+     * @see Queue#setSourceWeight(ImageMessageEventListener, int)
+     * @see Queue#setMaxWait(long)
+     */
+    FAIR_SHARE,
+
+}
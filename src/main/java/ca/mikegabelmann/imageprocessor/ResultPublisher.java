@@ -0,0 +1,312 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <P>Publishes the messages of one or more <CODE>ImageProcessor</CODE>s as a
+ * <CODE>Flow.Publisher</CODE>, honouring the demand of its subscribers. The processors given this
+ * publisher only take an event from the queue when every subscriber has asked for another
+ * result, so a slow subscriber throttles how fast work leaves the queue rather than letting
+ * results pile up in memory.</P>
+ *
+ * <P>Without subscribers nothing is taken from the queue. A coalesced event produces a message
+ * for each of the events combined with it, those extra messages are buffered until asked for.</P>
+ *
+ * <PRE>
+ *     ResultPublisher publisher = new ResultPublisher();
+ *     pool.setPublisher(publisher);
+ *     publisher.subscribe(uploader);
+ * </PRE>
+ */
+public final class ResultPublisher implements Flow.Publisher<ImageMessageEvent>, ImageMessageEventListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultPublisher.class);
+
+    //VARIABLES
+    /** Current subscriptions. */
+    private final List<PublisherSubscription> subscriptions;
+
+    /** Guards reserved, waited on by processors looking for demand. */
+    private final Object lock;
+
+    /** Results processors have taken events for but not yet published. */
+    private int reserved = 0;
+
+    /** No more results will be published. */
+    private volatile boolean closed = false;
+
+
+    /**
+     * Creates a new publisher without subscribers.
+     */
+    public ResultPublisher() {
+        this.subscriptions = new CopyOnWriteArrayList<>();
+        this.lock = new Object();
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super ImageMessageEvent> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber cannot be null");
+        }
+
+        PublisherSubscription subscription = new PublisherSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+
+        if (closed) {
+            subscriber.onComplete();
+            return;
+        }
+
+        subscriptions.add(subscription);
+        subscription.drain();
+    }
+
+    /**
+     * Publish a message to every subscriber. Called by the processors this publisher is
+     * registered with.
+     * @param ime message
+     */
+    @Override
+    public void eventPerformed(final ImageMessageEvent ime) {
+        //only results are published, progress does not answer a reservation
+        if (closed || ime.getStatus() == ImageMessageEventType.PROGRESS) {
+            return;
+        }
+
+        //buffer before giving back the reservation so the demand cannot be counted twice
+        for (PublisherSubscription subscription : subscriptions) {
+            subscription.buffer.add(ime);
+        }
+
+        synchronized (lock) {
+            if (reserved > 0) {
+                reserved--;
+            }
+        }
+
+        subscriptions.forEach(PublisherSubscription::drain);
+    }
+
+    /**
+     * Stop publishing. Subscribers get what is already buffered, then onComplete.
+     */
+    public void close() {
+        this.closed = true;
+        subscriptions.forEach(PublisherSubscription::drain);
+
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Get the number of subscribers.
+     * @return number of subscribers
+     */
+    public int getSubscribers() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Get the number of results every subscriber has asked for and not been sent or promised.
+     * @return number of results that may be produced now
+     */
+    public long getDemand() {
+        synchronized (lock) {
+            return this.available() - reserved;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ResultPublisher{" +
+                "subscribers=" + subscriptions.size() +
+                ", closed=" + closed +
+                '}';
+    }
+
+    /**
+     * Wait until the subscribers want more results, then reserve up to max of them. A processor
+     * calls this before taking events from the queue and takes at most the number reserved.
+     * @param max most results wanted
+     * @param timeout time in ms to wait, 0 to wait until there is demand
+     * @return number reserved, 0 if the time ran out or the publisher was closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    int reserve(final int max, final long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        synchronized (lock) {
+            while (! closed) {
+                long available = this.available() - reserved;
+
+                if (available > 0L) {
+                    int count = (int) Math.min(max, available);
+                    reserved += count;
+                    return count;
+                }
+
+                if (timeout <= 0L) {
+                    lock.wait();
+
+                } else {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+                    if (remaining <= 0L) {
+                        return 0;
+                    }
+
+                    lock.wait(remaining);
+                }
+            }
+
+            return 0;
+        }
+    }
+
+    /**
+     * Give back reservations that will not produce a result (fewer events were taken, or they
+     * were returned to the queue).
+     * @param count number of reservations
+     */
+    void release(final int count) {
+        if (count <= 0) {
+            return;
+        }
+
+        synchronized (lock) {
+            reserved = Math.max(0, reserved - count);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Results the slowest subscriber can take. Must hold the lock.
+     * @return smallest outstanding demand, 0 without subscribers
+     */
+    private long available() {
+        long available = Long.MAX_VALUE;
+
+        for (PublisherSubscription subscription : subscriptions) {
+            available = Math.min(available, subscription.demand.get() - subscription.buffer.size());
+        }
+
+        return subscriptions.isEmpty() ? 0L : available;
+    }
+
+    /**
+     * The subscribers asked for more, or one left. Wake the processors waiting for demand.
+     */
+    private void demandChanged() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+
+    /**
+     * <P>One subscriber, its outstanding demand and the results waiting for it.</P>
+     */
+    private final class PublisherSubscription implements Flow.Subscription {
+        /** Who gets the results. */
+        private final Flow.Subscriber<? super ImageMessageEvent> subscriber;
+
+        /** Results published but not yet sent. */
+        private final ConcurrentLinkedQueue<ImageMessageEvent> buffer;
+
+        /** Results asked for and not yet sent. */
+        private final AtomicLong demand;
+
+        /** Threads wanting to drain, only the first one sends. */
+        private final AtomicInteger wip;
+
+        /** No more results will be sent. */
+        private volatile boolean cancelled = false;
+
+
+        PublisherSubscription(final Flow.Subscriber<? super ImageMessageEvent> subscriber) {
+            this.subscriber = subscriber;
+            this.buffer = new ConcurrentLinkedQueue<>();
+            this.demand = new AtomicLong();
+            this.wip = new AtomicInteger();
+        }
+
+        @Override
+        public void request(final long n) {
+            if (cancelled) {
+                return;
+
+            } else if (n <= 0L) {
+                this.cancel();
+                subscriber.onError(new IllegalArgumentException("request must be positive, was " + n));
+                return;
+            }
+
+            demand.accumulateAndGet(n, (current, more) -> current + more < 0L ? Long.MAX_VALUE : current + more);
+            this.drain();
+            demandChanged();
+        }
+
+        @Override
+        public void cancel() {
+            if (! cancelled) {
+                this.cancelled = true;
+                subscriptions.remove(this);
+                buffer.clear();
+                demandChanged();
+            }
+        }
+
+        /**
+         * Send buffered results while there is demand, and onComplete once closed and empty.
+         * Only one thread sends at a time, others leave their work to it.
+         */
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            do {
+                ImageMessageEvent ime;
+
+                while (! cancelled && demand.get() > 0L && (ime = buffer.poll()) != null) {
+                    demand.decrementAndGet();
+
+                    try {
+                        subscriber.onNext(ime);
+
+                    } catch (RuntimeException re) {
+                        LOGGER.error("{} : subscriber failed, cancelling it", ResultPublisher.this, re);
+                        this.cancel();
+                        subscriber.onError(re);
+                    }
+                }
+
+                if (closed && ! cancelled && buffer.isEmpty()) {
+                    this.cancelled = true;
+                    subscriptions.remove(this);
+                    subscriber.onComplete();
+                }
+
+            } while (wip.decrementAndGet() != 0);
+        }
+    }
+
+}
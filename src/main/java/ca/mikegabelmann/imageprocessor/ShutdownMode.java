@@ -0,0 +1,15 @@
+package ca.mikegabelmann.imageprocessor;
+
+
+/**
+ * What an <code>ImageProcessorPool</code> does with the events waiting in its queue when it is shut down.
+ * @see ImageProcessorPool#shutdown(ShutdownMode, long)
+ */
+public enum ShutdownMode {
+    /** keep processing until the queue is empty (or the deadline passes) */
+    DRAIN,
+
+    /** only finish the events already running, leave the rest in the queue (and its journal) */
+    PERSIST,
+
+}
@@ -0,0 +1,83 @@
+package ca.mikegabelmann.imageprocessor;
+
+
+/**
+ * <P>What happened to the work of an <CODE>ImageProcessorPool</CODE> while it was shut down.</P>
+ * @see ImageProcessorPool#shutdown(ShutdownMode, long)
+ */
+public final class ShutdownReport {
+    //VARIABLES
+    /** Events processed during the shutdown. */
+    private final int completed;
+
+    /** Events still running when the deadline passed. */
+    private final int abandoned;
+
+    /** Events taken by a processor and handed back to the queue unprocessed. */
+    private final int requeued;
+
+    /** Events left waiting in the queue. */
+    private final int remaining;
+
+    /** Did every processor exit. */
+    private final boolean terminated;
+
+
+    /**
+     * Creates a new report.
+     * @param completed events processed during the shutdown
+     * @param abandoned events still running when the deadline passed
+     * @param requeued events handed back to the queue unprocessed
+     * @param remaining events left waiting in the queue
+     * @param terminated true if every processor exited
+     */
+    public ShutdownReport(final int completed, final int abandoned, final int requeued, final int remaining, final boolean terminated) {
+        this.completed = completed;
+        this.abandoned = abandoned;
+        this.requeued = requeued;
+        this.remaining = remaining;
+        this.terminated = terminated;
+    }
+
+    public int getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Get the number of events that were interrupted because they did not finish before the
+     * deadline. Their sources get whatever message the interrupted task produced.
+     * @return number of events interrupted
+     */
+    public int getAbandoned() {
+        return abandoned;
+    }
+
+    public int getRequeued() {
+        return requeued;
+    }
+
+    /**
+     * Get the number of events left in the queue. When the queue has a journal they are replayed
+     * the next time it is opened.
+     * @return number of events waiting
+     */
+    public int getRemaining() {
+        return remaining;
+    }
+
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    @Override
+    public String toString() {
+        return "ShutdownReport{" +
+                "completed=" + completed +
+                ", abandoned=" + abandoned +
+                ", requeued=" + requeued +
+                ", remaining=" + remaining +
+                ", terminated=" + terminated +
+                '}';
+    }
+
+}
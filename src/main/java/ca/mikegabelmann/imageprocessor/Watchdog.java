@@ -0,0 +1,269 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <P>Keeps events and tasks within their time budgets. An <CODE>ImageProcessor</CODE> tells the
+ * watchdog when it starts a task that has a budget, either its own (by task type) or what is
+ * left of its event's budget. If the task is still running when the budget runs out the
+ * processor is interrupted and the event is answered with a TIMEOUT message.</P>
+ *
+ * <P>Not every task stops when interrupted (a read of a corrupt file for example). If the task
+ * is still running after the grace period the watchdog gives up on it: the event is answered
+ * straight away and the processor is marked as abandoned, so a pool replaces it. The stuck
+ * thread exits once the task finally returns.</P>
+ *
+ * <PRE>
+ *     Watchdog watchdog = new Watchdog();
+ *     watchdog.setBudget(ImageFileTask.class, 5000L);
+ *     processor.setWatchdog(watchdog);
+ * </PRE>
+ */
+public final class Watchdog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Watchdog.class);
+
+    //CONSTANTS
+    /** Default time (ms) an interrupted task has to stop before it is abandoned. */
+    public static final long DEFAULT_GRACE = 1000L;
+
+    /** Budget of a task type that may take as long as it needs. */
+    public static final long NO_BUDGET = 0L;
+
+    /** Used by processors that were not given a watchdog. */
+    private static final Watchdog shared = new Watchdog();
+
+    //VARIABLES
+    /** Budget (ms) per task type. */
+    private final Map<Class<?>, Long> budgets;
+
+    /** Fires when a budget runs out, its thread is only started once something is watched. */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /** Number of tasks that ran over their budget. */
+    private final AtomicLong timeouts;
+
+    /** Number of tasks that did not stop when interrupted. */
+    private final AtomicLong abandoned;
+
+    /** Time (ms) an interrupted task has to stop before it is abandoned. */
+    private volatile long grace = DEFAULT_GRACE;
+
+
+    /**
+     * Creates a new watchdog without any task budgets.
+     */
+    public Watchdog() {
+        this.budgets = new ConcurrentHashMap<>();
+        this.timeouts = new AtomicLong();
+        this.abandoned = new AtomicLong();
+
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "Watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Get the watchdog used by processors that were not given one.
+     * @return shared watchdog
+     */
+    public static Watchdog getShared() {
+        return shared;
+    }
+
+    /**
+     * Set how long tasks of a type may take. Applies to subclasses of the type too, unless they
+     * have their own budget.
+     * @param type task type
+     * @param budget time in ms, NO_BUDGET to remove the budget
+     */
+    public void setBudget(final Class<? extends AbstractImageTask> type, final long budget) {
+        if (type == null) {
+            throw new IllegalArgumentException("type cannot be null");
+        }
+
+        if (budget <= NO_BUDGET) {
+            budgets.remove(type);
+
+        } else {
+            budgets.put(type, budget);
+        }
+    }
+
+    /**
+     * Get how long a task may take.
+     * @param task task
+     * @return time in ms, NO_BUDGET if there is no limit
+     */
+    public long getBudget(final AbstractImageTask task) {
+        if (budgets.isEmpty()) {
+            return NO_BUDGET;
+        }
+
+        for (Class<?> c = task.getClass(); c != null; c = c.getSuperclass()) {
+            Long budget = budgets.get(c);
+
+            if (budget != null) {
+                return budget;
+            }
+        }
+
+        return NO_BUDGET;
+    }
+
+    public long getGrace() {
+        return grace;
+    }
+
+    /**
+     * Set how long an interrupted task has to stop before it is abandoned.
+     * @param grace time in ms
+     */
+    public void setGrace(final long grace) {
+        this.grace = Math.max(0L, grace);
+    }
+
+    /**
+     * Get the number of tasks that ran over their budget.
+     * @return number of tasks
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Get the number of tasks that did not stop when interrupted and were abandoned.
+     * @return number of tasks
+     */
+    public long getAbandoned() {
+        return abandoned.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Watchdog{" +
+                "budgets=" + budgets.size() +
+                ", timeouts=" + timeouts.get() +
+                ", abandoned=" + abandoned.get() +
+                '}';
+    }
+
+    /**
+     * Start watching the current thread.
+     * @param deadline time (System.nanoTime()) the work must be done by
+     * @param onAbandon run on the watchdog thread if the work is abandoned
+     * @return ticket to finish when the work is done
+     */
+    Ticket watch(final long deadline, final Runnable onAbandon) {
+        Ticket ticket = new Ticket(Thread.currentThread(), onAbandon);
+        ticket.future = timer.schedule(ticket::overrun, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        return ticket;
+    }
+
+
+    /**
+     * <P>Work being watched.</P>
+     */
+    final class Ticket {
+        /** Still running within the budget. */
+        static final int IN_TIME = 0;
+
+        /** Ran over the budget and was interrupted. */
+        static final int OVERRUN = 1;
+
+        /** Did not stop when interrupted and was given up on. */
+        static final int ABANDONED = 2;
+
+        /** Finished. */
+        private static final int DONE = 3;
+
+        /** Thread doing the work. */
+        private final Thread thread;
+
+        /** Run if the work is abandoned. */
+        private final Runnable onAbandon;
+
+        /** Where the work is up to. */
+        private int state = IN_TIME;
+
+        /** Next check, cancelled when the work finishes. */
+        private volatile ScheduledFuture<?> future;
+
+
+        Ticket(final Thread thread, final Runnable onAbandon) {
+            this.thread = thread;
+            this.onAbandon = onAbandon;
+        }
+
+        /**
+         * The work is done. The thread is no longer interrupted by the watchdog after this.
+         * @return IN_TIME, OVERRUN or ABANDONED
+         */
+        synchronized int finish() {
+            int outcome = state;
+            state = DONE;
+
+            ScheduledFuture<?> f = future;
+
+            if (f != null) {
+                f.cancel(false);
+            }
+
+            return outcome;
+        }
+
+        /**
+         * The budget ran out, interrupt the thread and give it the grace period to stop.
+         */
+        private synchronized void overrun() {
+            if (state != IN_TIME) {
+                return;
+            }
+
+            state = OVERRUN;
+            timeouts.incrementAndGet();
+
+            LOGGER.warn("{} : {} ran over its budget, interrupting it", Watchdog.this, thread.getName());
+            thread.interrupt();
+
+            future = timer.schedule(this::abandon, grace, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * The thread did not stop in time, give up on it.
+         */
+        private void abandon() {
+            synchronized (this) {
+                if (state != OVERRUN) {
+                    return;
+                }
+
+                state = ABANDONED;
+            }
+
+            abandoned.incrementAndGet();
+            LOGGER.warn("{} : {} did not stop, abandoning it", Watchdog.this, thread.getName());
+
+            try {
+                onAbandon.run();
+
+            } catch (RuntimeException re) {
+                LOGGER.error("{} : failed abandoning {}", Watchdog.this, thread.getName(), re);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+
+
+/**
+ * <P>Every thread that takes work gets its own set of priority lanes. New work from outside is
+ * spread over the lanes round-robin, work added by a worker thread stays in its own lanes.</P>
+ *
+ * <P>A worker looks for the highest priority work first in its own lanes and then steals it from
+ * the other workers, only then does it move on to the next priority. That way no worker takes
+ * lower priority work while higher priority work is waiting anywhere in the pool, and workers
+ * rarely touch the same deque.</P>
+ *
+ * <P>A worker that stops taking work leaves, its lanes are dropped and anything still in them is
+ * moved to the lanes of another worker, so a pool that replaces its workers does not collect dead
+ * lanes.</P>
+ * @see QueueMode#WORK_STEALING
+ */
+final class WorkStealingStore implements EventStore {
+    /** Guards adding and removing workers. */
+    private final Object lock = new Object();
+
+    /** Lanes of every worker, the first set is shared by threads that never take work. */
+    private volatile Slot[] slots;
+
+    /** Lanes owned by the current thread, if it takes work. */
+    private final ThreadLocal<Slot> local;
+
+    /** Round-robin counter for spreading work added from outside. */
+    private final AtomicInteger next;
+
+    /** Told how many entries were moved out of the lanes of a worker that left. */
+    private final IntConsumer moved;
+
+
+    /**
+     * Creates a new instance of WorkStealingStore.
+     * @param moved told how many entries were moved to other lanes when a worker leaves
+     */
+    WorkStealingStore(final IntConsumer moved) {
+        this.slots = new Slot[] { new Slot() };
+        this.local = new ThreadLocal<>();
+        this.next = new AtomicInteger();
+        this.moved = moved;
+    }
+
+    @Override
+    public void offerLast(final QueueEntry entry) {
+        Slot slot = this.target();
+        slot.lanes.offerLast(entry);
+
+        //the worker left while we were adding to its lanes
+        if (slot.retired) {
+            this.rehome(slot);
+        }
+    }
+
+    @Override
+    public void offerFirst(final QueueEntry entry) {
+        Slot slot = this.target();
+        slot.lanes.offerFirst(entry);
+
+        if (slot.retired) {
+            this.rehome(slot);
+        }
+    }
+
+    @Override
+    public QueueEntry poll() {
+        Slot own = this.register();
+
+        for (ImageProcessEventType type : DISPATCH_ORDER) {
+            QueueEntry entry = own.lanes.poll(type);
+
+            if (entry == null) {
+                entry = this.steal(own, type);
+            }
+
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public Iterable<QueueEntry> entries(final ImageProcessEventType priority) {
+        return () -> Arrays.stream(slots)
+                .flatMap(slot -> slot.lanes.stream(priority))
+                .iterator();
+    }
+
+    /**
+     * Drop the lanes of the current thread and move anything still in them to another worker.
+     */
+    @Override
+    public void leave() {
+        Slot own = local.get();
+
+        if (own == null) {
+            return;
+        }
+
+        local.remove();
+
+        synchronized (lock) {
+            slots = Arrays.stream(slots).filter(slot -> slot != own).toArray(Slot[]::new);
+        }
+
+        own.retired = true;
+        this.rehome(own);
+    }
+
+    /**
+     * Number of workers currently taking work from this store.
+     * @return number of workers
+     */
+    int getWorkers() {
+        return slots.length - 1;
+    }
+
+    /**
+     * Lanes to add work to, our own if we are a worker otherwise the next one round-robin.
+     * @return lanes
+     */
+    private Slot target() {
+        Slot own = local.get();
+
+        if (own != null) {
+            return own;
+        }
+
+        Slot[] all = slots;
+        return all[Math.floorMod(next.getAndIncrement(), all.length)];
+    }
+
+    /**
+     * Get the lanes of the current thread, creating them the first time it takes work.
+     * @return lanes
+     */
+    private Slot register() {
+        Slot own = local.get();
+
+        if (own == null) {
+            own = new Slot();
+
+            synchronized (lock) {
+                Slot[] all = Arrays.copyOf(slots, slots.length + 1);
+                all[all.length - 1] = own;
+                slots = all;
+            }
+
+            local.set(own);
+        }
+
+        return own;
+    }
+
+    /**
+     * Move everything in the lanes of a worker that left to a worker that is still here, keeping
+     * the order within each priority.
+     * @param retired lanes of the worker that left
+     */
+    private void rehome(final Slot retired) {
+        Slot to = this.target();
+        int count = 0;
+
+        for (ImageProcessEventType type : DISPATCH_ORDER) {
+            QueueEntry entry;
+
+            while ((entry = retired.lanes.poll(type)) != null) {
+                to.lanes.offerLast(entry);
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            moved.accept(count);
+        }
+
+        //that worker left too while we were moving
+        if (to.retired) {
+            this.rehome(to);
+        }
+    }
+
+    /**
+     * Take work of the given priority from the other workers, starting at a random one so
+     * thieves spread out.
+     * @param own lanes of the current thread
+     * @param priority priority to look for
+     * @return entry or null if nobody has any
+     */
+    private QueueEntry steal(final Slot own, final ImageProcessEventType priority) {
+        Slot[] all = slots;
+        int start = ThreadLocalRandom.current().nextInt(all.length);
+
+        for (int i = 0; i < all.length; i++) {
+            Slot victim = all[(start + i) % all.length];
+
+            if (victim != own) {
+                QueueEntry entry = victim.lanes.poll(priority);
+
+                if (entry != null) {
+                    return entry;
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * <P>The lanes of one worker.</P>
+     */
+    private static final class Slot {
+        /** Entries waiting, one lane per priority. */
+        private final PriorityStore lanes = new PriorityStore();
+
+        /** The worker left, nothing may stay in these lanes. */
+        private volatile boolean retired = false;
+    }
+
+}
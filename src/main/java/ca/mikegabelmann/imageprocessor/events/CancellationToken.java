@@ -0,0 +1,38 @@
+package ca.mikegabelmann.imageprocessor.events;
+
+
+/**
+ * Lets the sender of an <code>ImageProcessEvent</code> cancel it after it has been queued. One
+ * token can be shared by many events to cancel a whole job at once. The ImageProcessor checks the
+ * token before each task of the event, so an event that is already being processed stops at the
+ * next task boundary. A cancelled event is answered with a CANCELLED message.
+ * @see ImageProcessEvent#setCancellationToken(CancellationToken)
+ */
+public final class CancellationToken {
+    /** Has this token been cancelled. */
+    private volatile boolean cancelled;
+
+
+    /**
+     * Cancel every event using this token. Cannot be undone.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * Has this token been cancelled.
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public String toString() {
+        return "CancellationToken{" +
+                "cancelled=" + cancelled +
+                '}';
+    }
+
+}
@@ -3,6 +3,9 @@ package ca.mikegabelmann.imageprocessor.events;
 import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
@@ -22,6 +25,21 @@ public final class ImageMessageEvent extends AbstractImageEvent {
      */
     private String message;
 
+    /** Images produced by the branches of the event, in the order the branches were added. */
+    private List<BufferedImage> outputs = List.of();
+
+    /** Task just performed, only set on PROGRESS messages. */
+    private String stage;
+
+    /** Time (ms) the task took, only set on PROGRESS messages. */
+    private long elapsed;
+
+    /** Number of tasks performed so far, only set on PROGRESS messages. */
+    private int step;
+
+    /** Number of tasks in the event, including its branches, only set on PROGRESS messages. */
+    private int steps;
+
 
     /**
      * All argument's constructor. The source is not set to the ImageProcessor that
@@ -74,6 +92,72 @@ public final class ImageMessageEvent extends AbstractImageEvent {
         this.message = message;
     }
 
+    /**
+     * Get the images produced by the branches of the event.
+     * @see ImageProcessEvent#addBranch(ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask...)
+     * @return one image (which may be null) per branch that does not split, empty if the event had no branches
+     */
+    public List<BufferedImage> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Set the images produced by the branches of the event.
+     * @param outputs images
+     */
+    public void setOutputs(final List<BufferedImage> outputs) {
+        this.outputs = outputs == null ? List.of() : Collections.unmodifiableList(new ArrayList<>(outputs));
+    }
+
+    /**
+     * Get the task just performed.
+     * @return name of the task, null unless this is a PROGRESS message
+     */
+    public String getStage() {
+        return stage;
+    }
+
+    public void setStage(final String stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * Get the time the task just performed took.
+     * @return time in ms, 0 unless this is a PROGRESS message
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    public void setElapsed(final long elapsed) {
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * Get the number of tasks performed so far. Branches run in parallel, so their tasks are
+     * counted in the order they finish.
+     * @return number of tasks, 0 unless this is a PROGRESS message
+     */
+    public int getStep() {
+        return step;
+    }
+
+    public void setStep(final int step) {
+        this.step = step;
+    }
+
+    /**
+     * Get the number of tasks in the event, including those of its branches.
+     * @return number of tasks, 0 unless this is a PROGRESS message
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    public void setSteps(final int steps) {
+        this.steps = steps;
+    }
+
     @Override
     public String toString() {
         return "ImageMessageEvent{" +
@@ -81,6 +165,8 @@ public final class ImageMessageEvent extends AbstractImageEvent {
                 ", image=" + (image == null ? "null" : "[image]") +
                 ", status=" + status +
                 ", message='" + message + '\'' +
+                (outputs.isEmpty() ? "" : ", outputs=" + outputs.size()) +
+                (stage == null ? "" : ", stage='" + stage + "', elapsed=" + elapsed + ", step=" + step + "/" + steps) +
                 '}';
     }
 
@@ -92,6 +178,24 @@ public final class ImageMessageEvent extends AbstractImageEvent {
         return new ImageMessageEvent(source, ImageMessageEventType.OK, null, image);
     }
 
+    /**
+     * Create a message saying a task of an event is done while the event is still being processed.
+     * @param source source of the event
+     * @param stage task just performed
+     * @param elapsed time (ms) the task took
+     * @param step number of tasks performed so far
+     * @param steps number of tasks in the event
+     * @return PROGRESS message
+     */
+    public static ImageMessageEvent createProgressEvent(final ImageMessageEventListener source, final String stage, final long elapsed, final int step, final int steps)  {
+        ImageMessageEvent ime = new ImageMessageEvent(source, ImageMessageEventType.PROGRESS, null, null);
+        ime.setStage(stage);
+        ime.setElapsed(elapsed);
+        ime.setStep(step);
+        ime.setSteps(steps);
+        return ime;
+    }
+
     public static ImageMessageEvent createUnknownEvent(final ImageMessageEventListener source, final BufferedImage image, final String message)  {
         return new ImageMessageEvent(source, ImageMessageEventType.UNKNOWN, message, image);
     }
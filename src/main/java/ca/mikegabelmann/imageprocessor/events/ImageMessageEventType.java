@@ -8,5 +8,9 @@ public enum ImageMessageEventType {
     UNKNOWN,
     ERROR,
     OK,
+    CANCELLED,
+    EXPIRED,
+    TIMEOUT,
+    PROGRESS,
 
 }
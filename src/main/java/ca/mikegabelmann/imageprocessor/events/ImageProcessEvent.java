@@ -3,6 +3,9 @@ package ca.mikegabelmann.imageprocessor.events;
 import java.util.ArrayList;
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
 import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
@@ -18,12 +21,33 @@ import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
  * message are ignored (fast fail).</P>
  */
 public final class ImageProcessEvent extends AbstractImageEvent {
+    /** Deadline of an event that does not have one. */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /** Budget of an event that may take as long as it needs. */
+    public static final long NO_BUDGET = 0L;
+
     /** The priority to process this message as, PROCESS_EXIT is a special case. */
     private ImageProcessEventType priority;
     
     /** List of tasks to perform (FIFO). */
     private final ArrayList<AbstractImageTask> tasks;
 
+    /** Branches that continue from the image produced by the tasks, run in parallel. */
+    private final List<TaskBranch> branches;
+
+    /** Lets the sender cancel this event, may be null. */
+    private volatile CancellationToken cancellationToken;
+
+    /** Time (ms since the epoch) after which the result is worthless. */
+    private volatile long deadline = NO_DEADLINE;
+
+    /** Time (ms) processing may take, NO_BUDGET for no limit. */
+    private volatile long budget = NO_BUDGET;
+
+    /** Completed with the message sent back for this event. */
+    private final CompletableFuture<ImageMessageEvent> result;
+
 
     /**
      * Creates a new instance of ImageProcessEvent.
@@ -55,6 +79,8 @@ public final class ImageProcessEvent extends AbstractImageEvent {
         super(source, image);
 
         this.tasks = new ArrayList<>();
+        this.branches = new ArrayList<>();
+        this.result = new CompletableFuture<>();
         this.setPriority(priority);
         this.addTasks(t);
     }
@@ -77,6 +103,113 @@ public final class ImageProcessEvent extends AbstractImageEvent {
         return this.priority; 
     }
 
+    /**
+     * Get the time after which the result of this event is worthless.
+     * @return ms since the epoch, NO_DEADLINE if there is none
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Set the time after which the result of this event is worthless. An event whose deadline
+     * has passed is not processed (any further) and is answered with an EXPIRED message.
+     * @param deadline ms since the epoch, NO_DEADLINE for none
+     */
+    public void setDeadline(final long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Set the deadline relative to now.
+     * @param millis how long (ms) from now the result is still useful
+     */
+    public void setTimeToLive(final long millis) {
+        this.setDeadline(System.currentTimeMillis() + millis);
+    }
+
+    /**
+     * Does this event have a deadline.
+     * @return true if a deadline is set
+     */
+    public boolean hasDeadline() {
+        return deadline != NO_DEADLINE;
+    }
+
+    /**
+     * Get how long processing this event may take.
+     * @return time in ms, NO_BUDGET if there is no limit
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Set how long processing this event may take, counted from when a processor starts it.
+     * An event that runs over is interrupted and answered with a TIMEOUT message. Unlike the
+     * deadline the time spent waiting in the queue does not count.
+     * @see ca.mikegabelmann.imageprocessor.Watchdog
+     * @param budget time in ms, NO_BUDGET for no limit
+     */
+    public void setBudget(final long budget) {
+        this.budget = Math.max(NO_BUDGET, budget);
+    }
+
+    /**
+     * Has the deadline of this event passed.
+     * @return true if expired
+     */
+    public boolean isExpired() {
+        return deadline != NO_DEADLINE && System.currentTimeMillis() > deadline;
+    }
+
+    /**
+     * Get the token that can cancel this event.
+     * @return token or null
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * Set a token that can cancel this event. The same token may be shared by many events.
+     * @param cancellationToken token or null
+     */
+    public void setCancellationToken(final CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Has this event been cancelled through its token.
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        CancellationToken token = cancellationToken;
+        return token != null && token.isCancelled();
+    }
+
+    /**
+     * Get the result of this event. It is completed with the same message that is sent to the
+     * source, whatever its status, and cancelled if the event is flushed from the queue.
+     * @return result
+     */
+    public CompletableFuture<ImageMessageEvent> getResult() {
+        return result;
+    }
+
+    /**
+     * Send a message about this event to its source and complete the result with it.
+     * @param ime message
+     */
+    public void reply(final ImageMessageEvent ime) {
+        try {
+            ((ImageMessageEventListener) source).eventPerformed(ime);
+
+        } finally {
+            result.complete(ime);
+        }
+    }
+
     /**
      * Add a task to the queue. Processed in the order received.
      * @param task work to be done by the imageprocessor
@@ -121,6 +254,49 @@ public final class ImageProcessEvent extends AbstractImageEvent {
         return !tasks.isEmpty() ? tasks.remove(0) : null;
     }
 
+    /**
+     * Get the tasks still to be processed, in order.
+     * @return read-only copy of the task list
+     */
+    public List<AbstractImageTask> getTasks() {
+        return Collections.unmodifiableList(new ArrayList<>(tasks));
+    }
+
+    /**
+     * Add a branch of tasks that runs once all the tasks of this event are done. Branches start
+     * from the same image and run in parallel, so one decode can feed several renditions. The
+     * image each branch ends with is sent back in the outputs of the result, in the order the
+     * branches were added.
+     * <PRE>
+     *     ImageProcessEvent ipe = new ImageProcessEvent(priority, this, null, read);
+     *     ipe.addBranch(new ImageResizeTask(thumbnail), writeThumbnail);
+     *     ipe.addBranch(new ImageResizeTask(preview), writePreview);
+     * </PRE>
+     * @param items tasks to perform on the branch
+     * @return new branch, which can be split again
+     */
+    public TaskBranch addBranch(final AbstractImageTask... items) {
+        TaskBranch branch = new TaskBranch(items);
+        branches.add(branch);
+        return branch;
+    }
+
+    /**
+     * Get the branches that run after the tasks of this event.
+     * @return read-only list of branches
+     */
+    public List<TaskBranch> getBranches() {
+        return Collections.unmodifiableList(branches);
+    }
+
+    /**
+     * Does this event split into branches.
+     * @return true if it has branches
+     */
+    public boolean hasBranches() {
+        return ! branches.isEmpty();
+    }
+
     /**
      * Get the size of the processlist.
      * @return number of tasks to process
@@ -133,9 +309,11 @@ public final class ImageProcessEvent extends AbstractImageEvent {
     public String toString() {
         return "ImageProcessEvent{" +
                 "priority=" + priority +
+                (hasDeadline() ? ", deadline=" + deadline : "") +
                 ", source=" + source +
                 ", image=" + (image == null ? "null" : "[image]") +
                 ", tasks=" + tasks +
+                (branches.isEmpty() ? "" : ", branches=" + branches) +
                 '}';
     }
 }
@@ -5,13 +5,13 @@ package ca.mikegabelmann.imageprocessor.events;
  * @see ImageProcessEvent
  */
 public enum ImageProcessEventType {
-    /** priority low (gets inserted at end of queue) */
+    /** priority low (handed out once there is no high or medium priority work) */
     PRIORITY_LOW,
 
-    /** normal priority (gets put into middle/end of queue) */
+    /** normal priority (handed out once there is no high priority work) */
     PRIORITY_MEDIUM,
 
-    /** priority high (gets put at beginning of queue) */
+    /** priority high (always handed out first) */
     PRIORITY_HIGH,
 
 }
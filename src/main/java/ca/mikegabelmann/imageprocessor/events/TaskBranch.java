@@ -0,0 +1,81 @@
+package ca.mikegabelmann.imageprocessor.events;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
+
+
+/**
+ * <P>A list of tasks that continues from the image produced by the tasks before it, see
+ * ImageProcessEvent#addBranch(AbstractImageTask...). Sibling branches start from the same image
+ * and run in parallel, so their tasks must not change that image in place, only replace it (as
+ * the resize task does). A branch can split again into branches of its own.</P>
+ *
+ * <P>The image a branch ends with is one of the outputs of the event, unless the branch splits
+ * again, in which case its branches produce the outputs.</P>
+ */
+public final class TaskBranch {
+    /** Tasks to perform (FIFO). */
+    private final List<AbstractImageTask> tasks;
+
+    /** Branches that continue from the image produced by our tasks. */
+    private final List<TaskBranch> branches;
+
+
+    /**
+     * Creates a new branch.
+     * @param tasks tasks to perform, nulls are dropped
+     */
+    TaskBranch(final AbstractImageTask... tasks) {
+        this.tasks = tasks == null ? new ArrayList<>() : new ArrayList<>(Arrays.stream(tasks).filter(Objects::nonNull).toList());
+        this.branches = new ArrayList<>();
+    }
+
+    /**
+     * Add a branch that continues from the image produced by this branch's tasks.
+     * @param items tasks to perform on the branch
+     * @return new branch
+     */
+    public TaskBranch addBranch(final AbstractImageTask... items) {
+        TaskBranch branch = new TaskBranch(items);
+        branches.add(branch);
+        return branch;
+    }
+
+    /**
+     * Get the tasks of this branch, in order.
+     * @return read-only list of tasks
+     */
+    public List<AbstractImageTask> getTasks() {
+        return Collections.unmodifiableList(tasks);
+    }
+
+    /**
+     * Get the branches that continue from this branch.
+     * @return read-only list of branches
+     */
+    public List<TaskBranch> getBranches() {
+        return Collections.unmodifiableList(branches);
+    }
+
+    /**
+     * Get the number of images this branch produces.
+     * @return 1 if it does not split, otherwise the outputs of its branches
+     */
+    public int getOutputs() {
+        return branches.isEmpty() ? 1 : branches.stream().mapToInt(TaskBranch::getOutputs).sum();
+    }
+
+    @Override
+    public String toString() {
+        return "TaskBranch{" +
+                "tasks=" + tasks +
+                (branches.isEmpty() ? "" : ", branches=" + branches) +
+                '}';
+    }
+
+}
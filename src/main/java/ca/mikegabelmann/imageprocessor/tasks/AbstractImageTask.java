@@ -44,6 +44,25 @@ public abstract class AbstractImageTask {
      */
     public abstract void processTask(final ImageProcessEvent ipe) throws ImageTaskException, ImageProcessorException;
 
+    /**
+     * Does this task mostly use the CPU rather than wait on I/O. An ImageProcessor running
+     * events on virtual threads limits how many CPU bound tasks run at once.
+     * @return true if CPU bound, false by default
+     */
+    public boolean isCpuBound() {
+        return false;
+    }
+
+    /**
+     * Get a value that is equal for tasks that do exactly the same work. The Queue uses it to
+     * combine identical events that are waiting. Tasks that cannot be compared, or that must
+     * run once per event, return null (the default).
+     * @return signature or null
+     */
+    public Object getSignature() {
+        return null;
+    }
+
     @Override
     public String toString() {
         return taskName;
@@ -0,0 +1,398 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Kernel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+
+/**
+ * <P>Convolves images with a kernel, giving the same result as <CODE>ConvolveOp</CODE> away from
+ * the edges. Pixels beyond the edges are taken to be copies of the nearest edge pixel, so the
+ * whole image is filtered rather than a border being left black or untouched.</P>
+ *
+ * <P>The image is worked on as packed <CODE>int</CODE> pixels, split into bands of rows whose
+ * working data fits in a core's cache. The bands are independent and are convolved in parallel.
+ * Each band is copied once into per channel rows padded with the edge pixels, so the inner loops
+ * never check for an edge. A separable kernel (one that is a column times a row, like the box and
+ * gaussian blurs) is applied as a horizontal pass then a vertical pass, so a 9x9 blur costs 18
+ * multiplications per channel instead of 81.</P>
+ */
+public final class Convolver {
+    //CONSTANTS
+    /** Working data (bytes) per band of rows, about the size of a core's L2 cache. */
+    static final int BAND_BYTES = 256 * 1024;
+
+    /** Fewest rows in a band per kernel row, so the rows a band shares with its neighbours are few. */
+    static final int MIN_BAND_ROWS = 4;
+
+    /** Images with fewer pixels are convolved on the caller's thread. */
+    static final int PARALLEL_THRESHOLD = 256 * 256;
+
+    /** Error allowed, relative to the largest weight, when checking if a kernel is separable. */
+    private static final float SEPARABLE_TOLERANCE = 1.0e-5f;
+
+    /** Shift of each channel in a packed pixel, alpha last so it can be left out. */
+    private static final int[] SHIFTS = {16, 8, 0, 24};
+
+
+    private Convolver() {}
+
+    /**
+     * Convolve an image with a kernel.
+     * @param image image to convolve
+     * @param kernel kernel to convolve with
+     * @return new image, TYPE_INT_ARGB if the image has alpha, otherwise TYPE_INT_RGB
+     */
+    public static BufferedImage convolve(final BufferedImage image, final Kernel kernel) {
+        if (image == null) {
+            throw new IllegalArgumentException("image cannot be null");
+
+        } else if (kernel == null) {
+            throw new IllegalArgumentException("kernel cannot be null");
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+
+        BufferedImage result = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Pass pass = new Pass(pixels(image), pixels(result), width, height, alpha ? 4 : 3, kernel);
+
+        int rows = pass.bandRows();
+        IntStream bands = IntStream.range(0, (height + rows - 1) / rows);
+
+        if ((long) width * height >= PARALLEL_THRESHOLD) {
+            bands = bands.parallel();
+        }
+
+        bands.forEach(band -> pass.run(band * rows, Math.min(height, band * rows + rows)));
+
+        return result;
+    }
+
+    /**
+     * Is the kernel a column times a row, so it can be applied as two 1-D passes.
+     * @param kernel kernel
+     * @return true if separable
+     */
+    public static boolean isSeparable(final Kernel kernel) {
+        return separate(kernel) != null;
+    }
+
+    /**
+     * Split a kernel into a row and a column whose product is the kernel.
+     * @param kernel kernel
+     * @return the row and the column, or null if the kernel is not separable
+     */
+    static float[][] separate(final Kernel kernel) {
+        int kw = kernel.getWidth();
+        int kh = kernel.getHeight();
+        float[] k = kernel.getKernelData(null);
+
+        //pivot on the largest weight, so the column is divided by as little error as possible
+        int pivot = 0;
+
+        for (int i = 1; i < k.length; i++) {
+            if (Math.abs(k[i]) > Math.abs(k[pivot])) {
+                pivot = i;
+            }
+        }
+
+        if (k[pivot] == 0.0f) {
+            return null;
+        }
+
+        int p = pivot / kw;
+        int q = pivot % kw;
+        float[] row = new float[kw];
+        float[] column = new float[kh];
+
+        System.arraycopy(k, p * kw, row, 0, kw);
+
+        for (int j = 0; j < kh; j++) {
+            column[j] = k[j * kw + q] / k[pivot];
+        }
+
+        float tolerance = SEPARABLE_TOLERANCE * Math.abs(k[pivot]);
+
+        for (int j = 0; j < kh; j++) {
+            for (int i = 0; i < kw; i++) {
+                if (Math.abs(k[j * kw + i] - column[j] * row[i]) > tolerance) {
+                    return null;
+                }
+            }
+        }
+
+        return new float[][] {row, column};
+    }
+
+    /**
+     * Get the packed pixels of an image, one int per pixel row by row. The image's own array is
+     * returned when it already is packed that way, writes to it change the image.
+     * @param image image
+     * @return ARGB pixels
+     */
+    static int[] pixels(final BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int type = image.getType();
+        WritableRaster raster = image.getRaster();
+
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+                && raster.getDataBuffer() instanceof DataBufferInt buffer
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel model
+                && model.getScanlineStride() == width
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && buffer.getNumBanks() == 1
+                && buffer.getOffset() == 0) {
+
+            return buffer.getData();
+        }
+
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+
+    /**
+     * <P>One convolution of an image, done a band of rows at a time. The kernel is flipped (as a
+     * convolution requires) so the loops below only ever add up neighbours.</P>
+     */
+    private static final class Pass {
+        /** Source pixels. */
+        private final int[] source;
+
+        /** Destination pixels. */
+        private final int[] destination;
+
+        /** Image width. */
+        private final int width;
+
+        /** Image height. */
+        private final int height;
+
+        /** Channels convolved, 4 with alpha otherwise 3. */
+        private final int channels;
+
+        /** Kernel width. */
+        private final int kw;
+
+        /** Kernel height. */
+        private final int kh;
+
+        /** Pixels of padding to the left of each row. */
+        private final int left;
+
+        /** Rows of padding above the image. */
+        private final int top;
+
+        /** Rows of the flipped kernel. */
+        private final float[][] weights;
+
+        /** Flipped row of a separable kernel, null if not separable. */
+        private final float[] horizontal;
+
+        /** Flipped column of a separable kernel, null if not separable. */
+        private final float[] vertical;
+
+
+        Pass(final int[] source, final int[] destination, final int width, final int height, final int channels, final Kernel kernel) {
+            this.source = source;
+            this.destination = destination;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.kw = kernel.getWidth();
+            this.kh = kernel.getHeight();
+            this.left = kw - 1 - kernel.getXOrigin();
+            this.top = kh - 1 - kernel.getYOrigin();
+
+            float[] flipped = reverse(kernel.getKernelData(null));
+            this.weights = new float[kh][];
+
+            for (int j = 0; j < kh; j++) {
+                weights[j] = Arrays.copyOfRange(flipped, j * kw, j * kw + kw);
+            }
+
+            float[][] factors = separate(kernel);
+
+            if (factors == null) {
+                this.horizontal = null;
+                this.vertical = null;
+
+            } else {
+                this.horizontal = reverse(factors[0]);
+                this.vertical = reverse(factors[1]);
+            }
+        }
+
+        /**
+         * Number of rows per band, so a band's working data fits in the cache.
+         * @return rows
+         */
+        int bandRows() {
+            int perRow = Float.BYTES * (2 * width + kw - 1);
+            return Math.max(MIN_BAND_ROWS * kh, BAND_BYTES / Math.max(1, perRow) - (kh - 1));
+        }
+
+        /**
+         * Convolve rows y0 (inclusive) to y1 (exclusive), one channel at a time so the working
+         * data of the band stays in the cache.
+         * @param y0 first row
+         * @param y1 row after the last
+         */
+        void run(final int y0, final int y1) {
+            int rows = y1 - y0;
+            int padded = width + kw - 1;
+            int lines = rows + kh - 1;
+            float[] plane = new float[lines * padded];
+            float[] line = horizontal == null ? null : new float[lines * width];
+            float[] sums = new float[width];
+
+            //alpha first, so the other channels can be or'ed in
+            int first = channels == 4 ? 3 : 0;
+
+            for (int n = 0; n < channels; n++) {
+                int c = (first + n) % channels;
+                this.unpack(plane, SHIFTS[c], y0 - top, lines, padded);
+
+                if (line != null) {
+                    //horizontal pass over every line the band needs, the vertical pass reads them
+                    Arrays.fill(line, 0.0f);
+
+                    for (int r = 0; r < lines; r++) {
+                        accumulate(plane, r * padded, line, r * width, width, horizontal, 1);
+                    }
+                }
+
+                for (int r = 0; r < rows; r++) {
+                    Arrays.fill(sums, 0.0f);
+
+                    if (line != null) {
+                        accumulate(line, r * width, sums, 0, width, vertical, width);
+
+                    } else {
+                        for (int j = 0; j < kh; j++) {
+                            accumulate(plane, (r + j) * padded, sums, 0, width, weights[j], 1);
+                        }
+                    }
+
+                    this.pack(sums, (y0 + r) * width, SHIFTS[c], n == 0);
+                }
+            }
+        }
+
+        /**
+         * Copy one channel of rows of the image into a plane, each row padded on both sides with
+         * copies of its edge pixels. Rows above and below the image are copies of the first and
+         * last rows.
+         * @param plane plane to fill
+         * @param shift shift of the channel in a packed pixel
+         * @param first first image row wanted, may be negative
+         * @param lines number of rows
+         * @param padded width of a padded row
+         */
+        private void unpack(final float[] plane, final int shift, final int first, final int lines, final int padded) {
+            int right = padded - width - left;
+
+            for (int r = 0; r < lines; r++) {
+                int offset = Math.max(0, Math.min(height - 1, first + r)) * width;
+                int start = r * padded + left;
+
+                for (int x = 0; x < width; x++) {
+                    plane[start + x] = (source[offset + x] >>> shift) & 0xff;
+                }
+
+                Arrays.fill(plane, r * padded, start, plane[start]);
+                Arrays.fill(plane, start + width, start + width + right, plane[start + width - 1]);
+            }
+        }
+
+        /**
+         * Write one channel of a convolved row, rounded and clamped to 0..255.
+         * @param sums convolved row
+         * @param offset first pixel of the row
+         * @param shift shift of the channel in a packed pixel
+         * @param first the first channel written, the pixels are replaced rather than or'ed
+         */
+        private void pack(final float[] sums, final int offset, final int shift, final boolean first) {
+            if (first) {
+                //without alpha the pixels are opaque
+                int opaque = channels == 4 ? 0 : 0xff000000;
+
+                for (int x = 0; x < width; x++) {
+                    destination[offset + x] = opaque | clamp(sums[x]) << shift;
+                }
+
+            } else {
+                for (int x = 0; x < width; x++) {
+                    destination[offset + x] |= clamp(sums[x]) << shift;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add weighted neighbours to a run of sums: sums[x] += w[i] * values[from + x + i * step].
+     * @param values values to read
+     * @param from first value
+     * @param sums sums to add to
+     * @param to first sum
+     * @param count number of sums
+     * @param w weights
+     * @param step distance between the neighbours of a value
+     */
+    private static void accumulate(
+            final float[] values,
+            final int from,
+            final float[] sums,
+            final int to,
+            final int count,
+            final float[] w,
+            final int step) {
+
+        for (int i = 0; i < w.length; i++) {
+            float weight = w[i];
+
+            if (weight == 0.0f) {
+                continue;
+            }
+
+            int base = from + i * step;
+
+            for (int x = 0; x < count; x++) {
+                sums[to + x] += weight * values[base + x];
+            }
+        }
+    }
+
+    /**
+     * Round and clamp a channel value.
+     * @param value value
+     * @return 0..255
+     */
+    private static int clamp(final float value) {
+        //negative values truncate towards 0, which is where they are clamped to anyway
+        return Math.max(0, Math.min(255, (int) (value + 0.5f)));
+    }
+
+    /**
+     * Reverse an array.
+     * @param values values
+     * @return new array, last value first
+     */
+    private static float[] reverse(final float[] values) {
+        float[] reversed = new float[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            reversed[i] = values[values.length - 1 - i];
+        }
+
+        return reversed;
+    }
+
+}
@@ -0,0 +1,125 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.util.List;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
+import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <P>This Task keeps only a region of an image. A region that reaches past the edges of the image
+ * is cut back to the image.</P>
+ *
+ * <P>Straight after a file is read the crop is done by the read, which only decodes the region
+ * and takes this task out of the event.</P>
+ */
+public final class ImageCropTask extends AbstractImageTask {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageCropTask.class);
+
+    /** Region of the image to keep. */
+    private final Rectangle region;
+
+
+    /**
+     * Creates a new instance of Class.
+     * @param region region of the image to keep
+     * @throws ImageTaskException task is incorrectly formatted
+     */
+    public ImageCropTask(final Rectangle region) throws ImageTaskException {
+        super("PROCESS_IMAGE_CROP");
+
+        //the region must be set
+        if (region == null) {
+            throw new ImageTaskException("the region cannot be null");
+        }
+
+        //make sure that the region is valid
+        if (region.x < 0 || region.y < 0 || region.width <= 0 || region.height <= 0) {
+            throw new ImageTaskException("x AND y MUST be 0 or more, height AND width MUST be greater than 0");
+        }
+
+        this.region = new Rectangle(region);
+    }
+
+    /**
+     * Get the region of the image to keep.
+     * @return copy of the region
+     */
+    public Rectangle getRegion() { return new Rectangle(region); }
+
+    @Override
+    public Object getSignature() {
+        return List.of(taskName, region.x, region.y, region.width, region.height);
+    }
+
+    @Override
+    public void processTask(final ImageProcessEvent ipe) throws ImageProcessorException {
+        //make sure there is an image to crop
+        if (ipe.getImage() == null) {
+            throw new ImageProcessorException("image cannot be null");
+        }
+
+        ipe.setImage(this.cropImage(ipe.getImage()));
+    }
+
+    /**
+     * Get the part of the region that lies inside an image.
+     * @param width image width
+     * @param height image height
+     * @return region inside the image
+     * @throws ImageProcessorException the region is entirely outside the image
+     */
+    Rectangle clip(final int width, final int height) throws ImageProcessorException {
+        Rectangle clipped = region.intersection(new Rectangle(width, height));
+
+        if (clipped.isEmpty()) {
+            throw new ImageProcessorException("region " + region + " is outside the image (" + width + "x" + height + ")");
+        }
+
+        return clipped;
+    }
+
+    /**
+     * Takes an image and keeps the region of it. The region is copied so the rest of the image
+     * can be freed.
+     * @param image the original image
+     * @return cropped image, or the original if the region covers all of it
+     * @throws ImageProcessorException the region is entirely outside the image
+     */
+    public BufferedImage cropImage(final BufferedImage image) throws ImageProcessorException {
+        //if there is no image return
+        if (image == null) {
+            return null;
+        }
+
+        Rectangle r = this.clip(image.getWidth(), image.getHeight());
+
+        //if same size just return the original image
+        if (r.width == image.getWidth() && r.height == image.getHeight()) {
+            LOGGER.debug("no cropping to do, equal");
+            return image;
+        }
+
+        ColorModel cm = image.getColorModel();
+        WritableRaster raster = image.getRaster().createCompatibleWritableRaster(r.width, r.height);
+        image.getSubimage(r.x, r.y, r.width, r.height).copyData(raster);
+
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
+
+    @Override
+    public String toString() {
+        return "ImageCropTask{" +
+                "taskName='" + taskName + '\'' +
+                ", region=" + region +
+                '}';
+    }
+
+}
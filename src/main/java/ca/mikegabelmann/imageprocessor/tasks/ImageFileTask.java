@@ -4,10 +4,19 @@ import java.io.File;
 import java.io.IOException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.TaskBranch;
 import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
 import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
 import org.slf4j.Logger;
@@ -17,6 +26,11 @@ import org.slf4j.LoggerFactory;
 /**
  * <P>A file processing task. Used for any file related task regarding image tasks.
  * (save, copy, delete, rename, etc.)</P>
+ *
+ * <P>When an image is read and the next task resizes it (or every branch that follows starts by
+ * resizing it), only every n-th pixel of every n-th row is decoded, as long as at least
+ * SUBSAMPLING_MARGIN source pixels per target pixel are left for the resize to filter. A crop
+ * straight after the read is done by the read, which only decodes the region.</P>
  */
 public final class ImageFileTask extends AbstractImageTask {
     private static final Logger LOGGER = LoggerFactory.getLogger(ImageFileTask.class);
@@ -25,6 +39,9 @@ public final class ImageFileTask extends AbstractImageTask {
     /** buffer for writing data */
     private static final int BUFFER_SIZE = 1024;
 
+    /** Source pixels per target pixel (each way) kept when reading a smaller image than stored. */
+    static final int SUBSAMPLING_MARGIN = 2;
+
     //VARIABLES
     /** list of the image types that are supported */
     private static String[] formats;
@@ -92,11 +109,27 @@ public final class ImageFileTask extends AbstractImageTask {
         return filetype;
     }
 
+    /**
+     * Reading, writing or doing nothing can be shared by identical events. Copying, moving
+     * and deleting cannot.
+     * @return signature or null
+     */
+    @Override
+    public Object getSignature() {
+        return switch (filetype) {
+            case PROCESS_GET_IMAGE -> inputfile == null ? null : List.of(filetype, inputfile.getAbsoluteFile());
+            case PROCESS_WRITE_IMAGE -> outputfile == null ? null : List.of(filetype, outputfile.getAbsoluteFile());
+            case PROCESS_DO_NOTHING -> List.of(filetype);
+            default -> null;
+        };
+    }
+
     @Override
     public void processTask(final ImageProcessEvent ipe) throws ImageTaskException, ImageProcessorException {
         String message = switch (filetype) {
             case PROCESS_GET_IMAGE -> {
-                ipe.setImage(this.readImage(inputfile));
+                ImageCropTask crop = takeCrop(ipe);
+                ipe.setImage(this.readImage(inputfile, crop, sizeNeeded(ipe)));
                 yield "retrieved image " + inputfile.getName();
             }
             case PROCESS_WRITE_IMAGE -> {
@@ -132,23 +165,129 @@ public final class ImageFileTask extends AbstractImageTask {
         return formats.clone();
     }
 
+    /**
+     * Take a crop that comes straight after the read out of an event, the read does it instead.
+     * @param ipe event, with this task already taken from it
+     * @return crop taken out, or null
+     */
+    static ImageCropTask takeCrop(final ImageProcessEvent ipe) {
+        for (AbstractImageTask task : ipe.getTasks()) {
+            if (task instanceof ImageCropTask crop) {
+                ipe.removeTask(crop);
+                return crop;
+
+            } else if (task != null) {
+                break;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Look ahead in the tasks of an event for the size the image read is resized to.
+     * @param ipe event, with this task already taken from it
+     * @return largest size needed, or null if the whole image may be needed
+     */
+    static Dimension sizeNeeded(final ImageProcessEvent ipe) {
+        //empty slots in the task list do nothing, skip them
+        List<AbstractImageTask> tasks = ipe.getTasks().stream().filter(Objects::nonNull).toList();
+
+        if (! tasks.isEmpty()) {
+            return tasks.get(0) instanceof ImageResizeTask resize ? resize.getNewDimension() : null;
+
+        } else if (! ipe.hasBranches()) {
+            return null;
+        }
+
+        //every branch must start with a resize, the image read has to do for the largest
+        Dimension needed = new Dimension();
+
+        for (TaskBranch branch : ipe.getBranches()) {
+            if (branch.getTasks().isEmpty() || ! (branch.getTasks().get(0) instanceof ImageResizeTask resize)) {
+                return null;
+            }
+
+            needed.width = Math.max(needed.width, resize.getNewWidth());
+            needed.height = Math.max(needed.height, resize.getNewHeight());
+        }
+
+        return needed;
+    }
+
+    /**
+     * Get how many pixels each way can be skipped for every pixel read, so that an image of the
+     * given size still has SUBSAMPLING_MARGIN pixels per pixel of the size it is resized to.
+     * @param width stored width
+     * @param height stored height
+     * @param needed size the image is resized to fit
+     * @return 1 or more
+     */
+    static int subsampling(final int width, final int height, final Dimension needed) {
+        //the resize fits the image inside the size, so the smaller scale wins
+        double scale = Math.min((double) needed.width / width, (double) needed.height / height);
+
+        return Math.max(1, (int) (1.0 / (scale * SUBSAMPLING_MARGIN)));
+    }
+
     /**
      * Gets the requested image file.
      * @param file file to load that contains the image requested
+     * @param crop crop to do while reading, or null
+     * @param needed size the image is resized to next, or null for the whole image
      * @return image once loaded we return the image
      * @throws ImageTaskException invalid arguments
      * @throws ImageProcessorException processor error
      */
-    private BufferedImage readImage(final File file) throws ImageTaskException, ImageProcessorException {
+    private BufferedImage readImage(final File file, final ImageCropTask crop, final Dimension needed)
+            throws ImageTaskException, ImageProcessorException {
+
         //make sure we have an input file
         if (file == null) {
             throw new ImageTaskException("you must provide an input file");
         }
         
         //try and get the file
-        try {                                             
-            return ImageIO.read(file);
-        
+        try {
+            if ((crop == null && needed == null) || ! file.canRead()) {
+                return crop == null ? ImageIO.read(file) : crop.cropImage(ImageIO.read(file));
+            }
+
+            try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+                Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+
+                if (readers == null || ! readers.hasNext()) {
+                    //same as ImageIO.read(), which returns null for unknown formats
+                    return null;
+                }
+
+                ImageReader reader = readers.next();
+
+                try {
+                    reader.setInput(iis, true, true);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    Rectangle region = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+
+                    if (crop != null) {
+                        //only the rows (and tiles) of the region are decoded
+                        region = crop.clip(region.width, region.height);
+                        param.setSourceRegion(region);
+                    }
+
+                    int factor = needed == null ? 1 : subsampling(region.width, region.height, needed);
+
+                    if (factor > 1) {
+                        LOGGER.debug("reading every {} pixels of {}", factor, file.getName());
+                        param.setSourceSubsampling(factor, factor, 0, 0);
+                    }
+
+                    return reader.read(0, param);
+
+                } finally {
+                    reader.dispose();
+                }
+            }
+
         } catch (IOException ioe) {
             throw new ImageProcessorException(ioe.getMessage());           
         }
@@ -2,6 +2,8 @@ package ca.mikegabelmann.imageprocessor.tasks;
 
 import java.awt.image.Kernel;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
 
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
 import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
@@ -19,9 +21,9 @@ public final class ImageKernelTask extends AbstractImageTask {
             3,
             3,
             new float[] {
-                    1/9, 1/9, 1/9,
-                    1/9, 1/9, 1/9,
-                    1/9, 1/9, 1/9}
+                    1f/9, 1f/9, 1f/9,
+                    1f/9, 1f/9, 1f/9,
+                    1f/9, 1f/9, 1f/9}
     );
     
     /** Basic low pass kernel (blurring). */
@@ -29,19 +31,19 @@ public final class ImageKernelTask extends AbstractImageTask {
             3,
             3,
             new float[] {
-                    1/16, 2/16, 1/16,
-                    2/16, 4/16, 2/16,
-                    1/16, 2/16, 1/16}
+                    1f/16, 2f/16, 1f/16,
+                    2f/16, 4f/16, 2f/16,
+                    1f/16, 2f/16, 1f/16}
     );
                                                                         
-    /** Basic high pass kernel (sharpen). */
+    /** Basic high pass kernel (sharpen), weights add up to 1 so the brightness is kept. */
     public static final Kernel SHARPEN_3x3_10 = new Kernel(
             3,
             3,
             new float[] {
-                    0, -1, 0,
-                    -1, 10, -1,
-                    0, -1, 0}
+                    0, -1f/6, 0,
+                    -1f/6, 10f/6, -1f/6,
+                    0, -1f/6, 0}
     );
 
     /** Kernel to use on image. */
@@ -78,6 +80,17 @@ public final class ImageKernelTask extends AbstractImageTask {
         this.kernel = kernel;
     }
 
+    @Override
+    public boolean isCpuBound() {
+        return true;
+    }
+
+    @Override
+    public Object getSignature() {
+        return List.of(taskName, kernel.getWidth(), kernel.getHeight(), kernel.getXOrigin(),
+                kernel.getYOrigin(), Arrays.toString(kernel.getKernelData(null)));
+    }
+
     @Override
     public void processTask(final ImageProcessEvent ipe) throws ImageProcessorException {
         //we must have an image to process
@@ -90,14 +103,19 @@ public final class ImageKernelTask extends AbstractImageTask {
     }
 
     /**
-     * Transform the given image with the provided kernel.
+     * Transform the given image with the provided kernel. Edge pixels are extended beyond the
+     * edges, so the whole image is transformed.
      * @param image image to transform
      * @param kernel kernel to transform image with
-     * @return transformed image
+     * @return transformed image, null if there is no image
+     * @see Convolver#convolve(BufferedImage, Kernel)
      */
     public BufferedImage transformImage(final BufferedImage image, final Kernel kernel) {
-        //TODO:
-        return null;
+        if (image == null) {
+            return null;
+        }
+
+        return Convolver.convolve(image, kernel);
     }
 
     @Override
@@ -1,5 +1,7 @@
 package ca.mikegabelmann.imageprocessor.tasks;
 
+import java.util.List;
+
 import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
 import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
@@ -53,6 +55,11 @@ public class ImageNullTask extends AbstractImageTask {
         return sleeptime;
     }
 
+    @Override
+    public Object getSignature() {
+        return List.of(taskName, sleeptime);
+    }
+
     @Override
     public void processTask(final ImageProcessEvent ipe) throws ImageTaskException, ImageProcessorException {
         //does absolutely nothing to the image
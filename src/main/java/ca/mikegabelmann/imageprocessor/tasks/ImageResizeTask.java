@@ -2,8 +2,7 @@ package ca.mikegabelmann.imageprocessor.tasks;
 
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
-import java.awt.image.AffineTransformOp;
-import java.awt.geom.AffineTransform;
+import java.util.List;
 
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
 import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
@@ -14,14 +13,20 @@ import org.slf4j.LoggerFactory;
 
 /**
  * This Task allows the resizing of an image. It will be scaled to fit into the dimension
- * provided.
+ * provided, with the given ResampleFilter (bilinear by default).
  */
 public final class ImageResizeTask extends AbstractImageTask {
     private static final Logger LOGGER = LoggerFactory.getLogger(ImageResizeTask.class);
 
+    /** Filter used unless another is given. */
+    public static final ResampleFilter DEFAULT_FILTER = ResampleFilter.BILINEAR;
+
     /** The new dimensions for this image. */
     private final Dimension d;
 
+    /** How the new pixels are worked out. */
+    private final ResampleFilter filter;
+
 
     /**
      * Creates a new instance of Class.
@@ -29,8 +34,23 @@ public final class ImageResizeTask extends AbstractImageTask {
      * @throws ImageTaskException task is incorrectly formatted
      */
     public ImageResizeTask(final Dimension d) throws ImageTaskException {
+        this(d, DEFAULT_FILTER);
+    }
+
+    /**
+     * Creates a new instance of Class.
+     * @param d size to make image
+     * @param filter how the new pixels are worked out
+     * @throws ImageTaskException task is incorrectly formatted
+     */
+    public ImageResizeTask(final Dimension d, final ResampleFilter filter) throws ImageTaskException {
         super("PROCESS_IMAGE_RESIZE");
         this.d = d;
+        this.filter = filter;
+
+        if (filter == null) {
+            throw new ImageTaskException("the filter cannot be null");
+        }
         
         //the new size must be set
         if (d == null) {
@@ -61,6 +81,22 @@ public final class ImageResizeTask extends AbstractImageTask {
      */
     public int getNewHeight() { return d.height; }
 
+    /**
+     * Get how the new pixels are worked out.
+     * @return filter
+     */
+    public ResampleFilter getFilter() { return filter; }
+
+    @Override
+    public boolean isCpuBound() {
+        return true;
+    }
+
+    @Override
+    public Object getSignature() {
+        return List.of(taskName, d.width, d.height, filter);
+    }
+
     @Override
     public void processTask(final ImageProcessEvent ipe) throws ImageProcessorException {
         //make sure there is an image to resize
@@ -86,29 +122,34 @@ public final class ImageResizeTask extends AbstractImageTask {
             return null;
         }
         
-        //determine scaling factor
-        double xScale = Math.abs((double) scaledwidth  / (double) image.getWidth());
-        double yScale = Math.abs((double) scaledheight / (double) image.getHeight());
-        
+        Dimension size = fit(image.getWidth(), image.getHeight(), scaledwidth, scaledheight);
+
         //if same size just return the original image
-        if (Double.compare(xScale, 1.0) == 0 || Double.compare(yScale, 1.0) == 0) { 
+        if (size.width == image.getWidth() && size.height == image.getHeight()) {
             LOGGER.debug("no scaling to do, equal");
             return image; 
         }
-        
-        AffineTransform tx = new AffineTransform();
-                
-        //determine the best scaling orientation to maximize either height | width
-        if (xScale < yScale) {
-            tx.scale(xScale, xScale);
-
-        } else {
-            tx.scale(yScale, yScale);
-        }
 
-        //scale the image
-        AffineTransformOp ato = new AffineTransformOp(tx, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);                
-        return ato.filter(image, null);
+        return Resampler.resample(image, size.width, size.height, filter);
+    }
+
+    /**
+     * Work out the size of an image scaled to fit inside another size, keeping its shape.
+     * @param width image width
+     * @param height image height
+     * @param scaledwidth width to fit in
+     * @param scaledheight height to fit in
+     * @return new size
+     */
+    static Dimension fit(final int width, final int height, final int scaledwidth, final int scaledheight) {
+        //determine scaling factor
+        double xScale = Math.abs((double) scaledwidth  / (double) width);
+        double yScale = Math.abs((double) scaledheight / (double) height);
+
+        //use the smaller factor so the image fits both ways
+        double scale = Math.min(xScale, yScale);
+
+        return new Dimension(Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)));
     }
 
     @Override
@@ -116,6 +157,7 @@ public final class ImageResizeTask extends AbstractImageTask {
         return "ImageResizeTask{" +
                 "taskName='" + taskName + '\'' +
                 ", d=" + d +
+                ", filter=" + filter +
                 '}';
     }
 
@@ -0,0 +1,262 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
+import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <P>Reads a file, performs crops, resizes and kernels on it and writes it to another file, a
+ * strip of rows at a time. The whole image is never held, so images larger than the heap can be
+ * processed: memory use depends on the width of the image and the strip height only.</P>
+ *
+ * <P>The file is read through source regions of an ImageReader. Formats that can be read from
+ * anywhere (TIFF) read each strip once, others (PNG, JPEG) decode from the start of the file up
+ * to each strip, so use tall strips for them. The output is written as the writer asks for rows,
+ * which PNG and TIFF writers do from the top down. Other writers fail with an
+ * ImageTaskException.</P>
+ */
+public final class ImageStreamTask extends AbstractImageTask {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageStreamTask.class);
+
+    //CONSTANTS
+    /** Rows read (and written) at a time, unless another number is given. */
+    public static final int DEFAULT_STRIP_ROWS = 256;
+
+    //VARIABLES
+    /** File to read. */
+    private final File inputfile;
+
+    /** File to write. */
+    private final File outputfile;
+
+    /** Rows read at a time. */
+    private final int stripRows;
+
+    /** Tasks performed on each strip, in order. */
+    private final List<AbstractImageTask> tasks;
+
+
+    /**
+     * Creates a new instance of ImageStreamTask.
+     * @param inputfile file to read
+     * @param outputfile file to write, its extension is the format
+     * @param tasks crops, resizes and kernels to perform
+     * @throws ImageTaskException task is incorrectly formatted
+     */
+    public ImageStreamTask(final File inputfile, final File outputfile, final AbstractImageTask... tasks) throws ImageTaskException {
+        this(inputfile, outputfile, DEFAULT_STRIP_ROWS, tasks);
+    }
+
+    /**
+     * Creates a new instance of ImageStreamTask.
+     * @param inputfile file to read
+     * @param outputfile file to write, its extension is the format
+     * @param stripRows rows read at a time
+     * @param tasks crops, resizes and kernels to perform
+     * @throws ImageTaskException task is incorrectly formatted
+     */
+    public ImageStreamTask(final File inputfile, final File outputfile, final int stripRows, final AbstractImageTask... tasks)
+            throws ImageTaskException {
+
+        super("PROCESS_IMAGE_STREAM");
+        this.inputfile = inputfile;
+        this.outputfile = outputfile;
+        this.stripRows = stripRows;
+
+        if (inputfile == null || outputfile == null) {
+            throw new ImageTaskException("both input and output files must be given");
+        }
+
+        if (stripRows <= 0) {
+            throw new ImageTaskException("strip rows MUST be greater than 0");
+        }
+
+        List<AbstractImageTask> list = new ArrayList<>();
+
+        for (AbstractImageTask task : tasks == null ? new AbstractImageTask[0] : tasks) {
+            if (task == null) {
+                continue;
+
+            } else if (! (task instanceof ImageCropTask || task instanceof ImageResizeTask || task instanceof ImageKernelTask)) {
+                throw new ImageTaskException("task " + task + " cannot be performed a strip at a time");
+            }
+
+            list.add(task);
+        }
+
+        this.tasks = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Get the file read.
+     * @return inputfile
+     */
+    public File getInputfile() {
+        return inputfile;
+    }
+
+    /**
+     * Get the file written.
+     * @return outputfile
+     */
+    public File getOutputfile() {
+        return outputfile;
+    }
+
+    /**
+     * Get the number of rows read at a time.
+     * @return rows
+     */
+    public int getStripRows() {
+        return stripRows;
+    }
+
+    /**
+     * Get the tasks performed on each strip.
+     * @return read-only list of tasks
+     */
+    public List<AbstractImageTask> getTasks() {
+        return tasks;
+    }
+
+    @Override
+    public boolean isCpuBound() {
+        return true;
+    }
+
+    /**
+     * The same file written the same way can be shared by identical events.
+     * @return signature or null
+     */
+    @Override
+    public Object getSignature() {
+        List<Object> signatures = tasks.stream().map(AbstractImageTask::getSignature).toList();
+
+        if (signatures.stream().anyMatch(Objects::isNull)) {
+            return null;
+        }
+
+        return List.of(taskName, inputfile.getAbsoluteFile(), outputfile.getAbsoluteFile(), signatures);
+    }
+
+    @Override
+    public void processTask(final ImageProcessEvent ipe) throws ImageTaskException, ImageProcessorException {
+        String filename = outputfile.getName();
+        String suffix = filename.substring(filename.lastIndexOf(".") + 1);
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(suffix);
+
+        if (! writers.hasNext()) {
+            throw new ImageProcessorException("file type " + suffix + " not supported");
+        }
+
+        ImageWriter writer = writers.next();
+        Path target = outputfile.toPath().toAbsolutePath();
+        Path partial = null;
+
+        try {
+            //write next to the output and only replace it once the image is complete, so a
+            //failure keeps the old file and the input can be the output
+            partial = Files.createTempFile(target.getParent(), filename, ".part");
+
+            try (ImageInputStream iis = ImageIO.createImageInputStream(inputfile)) {
+                Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+
+                if (readers == null || ! readers.hasNext()) {
+                    throw new ImageProcessorException("could not read image " + inputfile.getName());
+                }
+
+                ImageReader reader = readers.next();
+
+                try {
+                    //strips are read with source regions, which may go back to the start of the file
+                    reader.setInput(iis, false, true);
+                    RenderedImage image = StripStream.open(reader, tasks, stripRows);
+
+                    try (ImageOutputStream ios = ImageIO.createImageOutputStream(partial.toFile())) {
+                        writer.setOutput(ios);
+                        writer.write(image);
+                    }
+
+                } finally {
+                    reader.dispose();
+                }
+            }
+
+            replace(partial, target);
+            partial = null;
+
+        } catch (IOException ioe) {
+            throw new ImageProcessorException(ioe.getMessage());
+
+        } catch (UncheckedIOException uioe) {
+            throw new ImageProcessorException(uioe.getCause().getMessage());
+
+        } catch (IllegalStateException | UnsupportedOperationException e) {
+            throw new ImageTaskException("file type " + suffix + " cannot be written a strip at a time");
+
+        } finally {
+            writer.dispose();
+
+            //do not leave half an image behind
+            if (partial != null) {
+                try {
+                    Files.deleteIfExists(partial);
+
+                } catch (IOException ioe) {
+                    LOGGER.debug("ImageStreamTask: could not remove {}", partial.getFileName());
+                }
+            }
+        }
+
+        LOGGER.info("streamed image {} to {}", inputfile.getName(), filename);
+    }
+
+    /**
+     * Move a finished file over the output, atomically where the file system allows it.
+     * @param partial finished file
+     * @param target output file
+     * @throws IOException if the file cannot be moved
+     */
+    private static void replace(final Path partial, final Path target) throws IOException {
+        try {
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ImageStreamTask{" +
+                "taskName='" + taskName + '\'' +
+                ", inputfile=" + inputfile.getAbsolutePath() +
+                ", outputfile=" + outputfile.getAbsolutePath() +
+                ", stripRows=" + stripRows +
+                ", tasks=" + tasks +
+                '}';
+    }
+
+}
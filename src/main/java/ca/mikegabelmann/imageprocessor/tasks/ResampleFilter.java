@@ -0,0 +1,76 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+/**
+ * <P>How the pixels of a resized image are worked out from the pixels around them, from fastest
+ * to sharpest.</P>
+ * @see Resampler
+ */
+public enum ResampleFilter {
+    /** Linear between the two nearest pixels (a tent). */
+    BILINEAR(1.0) {
+        @Override
+        double weight(final double x) {
+            double ax = Math.abs(x);
+            return ax < 1.0 ? 1.0 - ax : 0.0;
+        }
+    },
+
+    /** Cubic through the four nearest pixels (Keys, a = -0.5). */
+    BICUBIC(2.0) {
+        @Override
+        double weight(final double x) {
+            double ax = Math.abs(x);
+
+            if (ax < 1.0) {
+                return (1.5 * ax - 2.5) * ax * ax + 1.0;
+
+            } else if (ax < 2.0) {
+                return ((-0.5 * ax + 2.5) * ax - 4.0) * ax + 2.0;
+            }
+
+            return 0.0;
+        }
+    },
+
+    /** Windowed sinc over the six nearest pixels, sharpest but may ring around hard edges. */
+    LANCZOS3(3.0) {
+        @Override
+        double weight(final double x) {
+            double ax = Math.abs(x);
+
+            if (ax < 1.0e-8) {
+                return 1.0;
+
+            } else if (ax >= 3.0) {
+                return 0.0;
+            }
+
+            double px = Math.PI * ax;
+            return 3.0 * Math.sin(px) * Math.sin(px / 3.0) / (px * px);
+        }
+    };
+
+    /** Distance (in source pixels, when not shrinking) beyond which the weight is 0. */
+    private final double radius;
+
+
+    ResampleFilter(final double radius) {
+        this.radius = radius;
+    }
+
+    /**
+     * Get the distance beyond which the weight is 0.
+     * @return radius in pixels
+     */
+    public double getRadius() {
+        return radius;
+    }
+
+    /**
+     * Weight of a pixel at the given distance.
+     * @param x distance in pixels
+     * @return weight
+     */
+    abstract double weight(double x);
+
+}
@@ -0,0 +1,496 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+
+/**
+ * <P>Resizes images with a ResampleFilter, as a horizontal pass and a vertical pass. When
+ * shrinking, the filter is widened to cover every source pixel that falls in a target pixel, so
+ * large reductions do not alias the way nearest neighbour or a plain bilinear transform does.</P>
+ *
+ * <P>The weights of each target pixel are worked out once per source size, target size and filter
+ * and kept for the next image of the same size, in fixed point so the passes only use integer
+ * arithmetic. The passes are fused over bands of target rows, run in parallel for large images:
+ * each band is resized through a small buffer of channels, which stays in cache and keeps
+ * MIDDLE_BITS fraction bits, so pixels are only rounded to 8 bits once. The vertical
+ * pass runs over whole rows in a loop the JIT can vectorize, so it goes first when shrinking
+ * down and last otherwise. Pixels beyond the edges are never read: their weights are given to the
+ * pixels inside the image.</P>
+ */
+public final class Resampler {
+    //CONSTANTS
+    /** Rows per band. */
+    static final int BAND_ROWS = 32;
+
+    /** Images with fewer pixels (source or target) are resized on the caller's thread. */
+    static final int PARALLEL_THRESHOLD = 256 * 256;
+
+    /** Most sets of weights kept. */
+    static final int MAX_CACHED = 64;
+
+    /** Fraction bits of the fixed point weights, which add up to 1 &lt;&lt; PRECISION. */
+    static final int PRECISION = 14;
+
+    /** Fraction bits of the channels kept between the passes. */
+    static final int MIDDLE_BITS = 7;
+
+    /** Shift from the first pass to the buffer between the passes. */
+    private static final int FIRST_SHIFT = PRECISION - MIDDLE_BITS;
+
+    /** Shift from the second pass to 8 bit channels. */
+    private static final int SECOND_SHIFT = PRECISION + MIDDLE_BITS;
+
+    /** Weights by source size, target size and filter. */
+    private static final Map<List<Object>, Weights> CACHE = new ConcurrentHashMap<>();
+
+
+    private Resampler() {}
+
+    /**
+     * Resize an image to exactly the given size.
+     * @param image image to resize
+     * @param width new width
+     * @param height new height
+     * @param filter filter to use
+     * @return new image, TYPE_INT_ARGB if the image has alpha, otherwise TYPE_INT_RGB
+     */
+    public static BufferedImage resample(final BufferedImage image, final int width, final int height, final ResampleFilter filter) {
+        if (image == null) {
+            throw new IllegalArgumentException("image cannot be null");
+
+        } else if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width and height must be greater than 0");
+
+        } else if (filter == null) {
+            throw new IllegalArgumentException("filter cannot be null");
+        }
+
+        boolean alpha = image.getColorModel().hasAlpha();
+        boolean parallel = Math.max((long) image.getWidth() * image.getHeight(), (long) width * height) >= PARALLEL_THRESHOLD;
+
+        Pass pass = new Pass(
+            weights(image.getWidth(), width, filter), weights(image.getHeight(), height, filter), image.getWidth(), alpha);
+
+        BufferedImage result = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        pass.resize(Convolver.pixels(image), 0, Convolver.pixels(result), 0, height, parallel);
+
+        return result;
+    }
+
+    /**
+     * Get the weights for resizing one dimension, from the cache if they were worked out before.
+     * @param in source size
+     * @param out target size
+     * @param filter filter
+     * @return weights
+     */
+    static Weights weights(final int in, final int out, final ResampleFilter filter) {
+        List<Object> key = List.of(in, out, filter);
+        Weights weights = CACHE.get(key);
+
+        if (weights == null) {
+            if (CACHE.size() >= MAX_CACHED) {
+                CACHE.clear();
+            }
+
+            weights = new Weights(in, out, filter);
+            CACHE.put(key, weights);
+        }
+
+        return weights;
+    }
+
+    /**
+     * Convert a rounded channel of the second pass, clamped to 0..255.
+     * @param value value
+     * @return 0..255
+     */
+    private static int clamp(final int value) {
+        return Math.max(0, Math.min(255, value >> SECOND_SHIFT));
+    }
+
+
+    /**
+     * <P>Both passes of one resize, from source rows to target rows. Between the passes the
+     * channels (blue, green, red and alpha if there is one) are kept apart, so the vertical pass
+     * is a plain loop over arrays. Its loops index every array the same way, otherwise the JIT does
+     * not vectorize them, so source rows are copied out and resized rows are arrays of their own.</P>
+     */
+    static final class Pass {
+        /** Weights across. */
+        private final Weights columns;
+
+        /** Weights down. */
+        private final Weights rows;
+
+        /** Source width. */
+        private final int sourceWidth;
+
+        /** Target width. */
+        private final int width;
+
+        /** Channels, 4 with alpha, otherwise 3. */
+        private final int channels;
+
+        /** Bits or'ed into every pixel, to make images without alpha opaque. */
+        private final int opaque;
+
+
+        Pass(final Weights columns, final Weights rows, final int sourceWidth, final boolean alpha) {
+            this.columns = columns;
+            this.rows = rows;
+            this.sourceWidth = sourceWidth;
+            this.width = columns.starts.length;
+            this.channels = alpha ? 4 : 3;
+            this.opaque = alpha ? 0 : 0xff000000;
+        }
+
+        /**
+         * Resize target rows, in bands on the common pool when parallel. Each row is worked out
+         * the same way whatever the band, so rows made a few at a time match a whole image.
+         * @param source source rows, from the first read by the target rows on
+         * @param first source row at the start of source
+         * @param destination target rows
+         * @param from first target row, at the start of destination
+         * @param to target row after the last
+         * @param parallel use more than one thread
+         */
+        void resize(final int[] source, final int first, final int[] destination, final int from, final int to, final boolean parallel) {
+            IntStream bands = IntStream.range(0, (to - from + BAND_ROWS - 1) / BAND_ROWS);
+
+            if (parallel) {
+                bands = bands.parallel();
+            }
+
+            bands.forEach(band -> {
+                int start = from + band * BAND_ROWS;
+                int end = Math.min(to, start + BAND_ROWS);
+
+                if (rows.reducing) {
+                    this.downAcross(source, first, destination, from, start, end);
+
+                } else {
+                    this.acrossDown(source, first, destination, from, start, end);
+                }
+            });
+        }
+
+        /**
+         * Resize a band down each row, then across.
+         */
+        private void downAcross(final int[] source, final int first, final int[] destination, final int from, final int start, final int end) {
+            int[] row = new int[sourceWidth];
+            int[][] middle = new int[channels][sourceWidth];
+
+            for (int y = start; y < end; y++) {
+                this.down(source, (rows.starts[y] - first) * sourceWidth, y, row, middle);
+                this.across(middle, destination, (y - from) * width);
+            }
+        }
+
+        /**
+         * Resize the source rows a band reads across, then the band down.
+         */
+        private void acrossDown(final int[] source, final int first, final int[] destination, final int from, final int start, final int end) {
+            int top = rows.starts[start];
+            int[][] middle = new int[rows.starts[end - 1] + rows.taps - top][channels * width];
+            int[] sums = new int[channels * width];
+
+            for (int r = 0; r < middle.length; r++) {
+                this.across(source, (top - first + r) * sourceWidth, middle[r]);
+            }
+
+            for (int y = start; y < end; y++) {
+                this.down(middle, rows.starts[y] - top, y, sums);
+                this.pack(sums, destination, (y - from) * width);
+            }
+        }
+
+        /**
+         * Resize packed rows down into channels, in MIDDLE_BITS fixed point.
+         * @param source packed pixels
+         * @param from first pixel of the first row read
+         * @param y target row
+         * @param row a source row
+         * @param middle channels
+         */
+        private void down(final int[] source, final int from, final int y, final int[] row, final int[][] middle) {
+            int taps = rows.taps;
+            int[] w = rows.weights;
+            int half = 1 << (FIRST_SHIFT - 1);
+
+            for (int k = 0; k < taps; k++) {
+                int weight = w[y * taps + k];
+
+                if (k > 0 && weight == 0) {
+                    continue;
+                }
+
+                System.arraycopy(source, from + k * sourceWidth, row, 0, sourceWidth);
+
+                for (int c = 0; c < channels; c++) {
+                    int[] sums = middle[c];
+                    int shift = c * 8;
+
+                    if (k == 0) {
+                        for (int x = 0; x < sums.length; x++) {
+                            sums[x] = half + weight * ((row[x] >>> shift) & 0xff);
+                        }
+
+                    } else {
+                        for (int x = 0; x < sums.length; x++) {
+                            sums[x] += weight * ((row[x] >>> shift) & 0xff);
+                        }
+                    }
+                }
+            }
+
+            for (int[] sums : middle) {
+                for (int x = 0; x < sums.length; x++) {
+                    sums[x] >>= FIRST_SHIFT;
+                }
+            }
+        }
+
+        /**
+         * Resize rows of channels down, rounded and in PRECISION + MIDDLE_BITS fixed point.
+         * @param middle channels of each row
+         * @param from first row read
+         * @param y target row
+         * @param sums channels
+         */
+        private void down(final int[][] middle, final int from, final int y, final int[] sums) {
+            int taps = rows.taps;
+            int[] w = rows.weights;
+            int half = 1 << (SECOND_SHIFT - 1);
+            int weight = w[y * taps];
+            int[] row = middle[from];
+
+            for (int x = 0; x < sums.length; x++) {
+                sums[x] = half + weight * row[x];
+            }
+
+            for (int k = 1; k < taps; k++) {
+                weight = w[y * taps + k];
+                row = middle[from + k];
+
+                if (weight != 0) {
+                    for (int x = 0; x < sums.length; x++) {
+                        sums[x] += weight * row[x];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Resize one packed row across into channels, in MIDDLE_BITS fixed point.
+         * @param source packed pixels
+         * @param from first pixel of the row
+         * @param middle channels, width of each
+         */
+        private void across(final int[] source, final int from, final int[] middle) {
+            int taps = columns.taps;
+            int[] w = columns.weights;
+            int half = 1 << (FIRST_SHIFT - 1);
+
+            for (int x = 0; x < width; x++) {
+                int s = from + columns.starts[x];
+                int base = x * taps;
+                int a = half;
+                int r = half;
+                int g = half;
+                int b = half;
+
+                for (int k = 0; k < taps; k++) {
+                    int p = source[s + k];
+                    int weight = w[base + k];
+                    a += weight * (p >>> 24);
+                    r += weight * ((p >> 16) & 0xff);
+                    g += weight * ((p >> 8) & 0xff);
+                    b += weight * (p & 0xff);
+                }
+
+                middle[x] = b >> FIRST_SHIFT;
+                middle[width + x] = g >> FIRST_SHIFT;
+                middle[2 * width + x] = r >> FIRST_SHIFT;
+
+                if (channels == 4) {
+                    middle[3 * width + x] = a >> FIRST_SHIFT;
+                }
+            }
+        }
+
+        /**
+         * Resize one row of channels across into packed target pixels.
+         * @param middle channels
+         * @param destination target pixels
+         * @param to first pixel of the target row
+         */
+        private void across(final int[][] middle, final int[] destination, final int to) {
+            int taps = columns.taps;
+            int[] w = columns.weights;
+            int half = 1 << (SECOND_SHIFT - 1);
+
+            for (int x = 0; x < width; x++) {
+                int s = columns.starts[x];
+                int base = x * taps;
+                int pixel = opaque;
+
+                for (int c = 0; c < channels; c++) {
+                    int[] channel = middle[c];
+                    int sum = half;
+
+                    for (int k = 0; k < taps; k++) {
+                        sum += w[base + k] * channel[s + k];
+                    }
+
+                    pixel |= clamp(sum) << (c * 8);
+                }
+
+                destination[to + x] = pixel;
+            }
+        }
+
+        /**
+         * Clamp and pack the channels of one target row.
+         * @param sums channels, width of each
+         * @param destination target pixels
+         * @param to first pixel of the target row
+         */
+        private void pack(final int[] sums, final int[] destination, final int to) {
+            for (int x = 0; x < width; x++) {
+                int pixel = opaque | clamp(sums[2 * width + x]) << 16 | clamp(sums[width + x]) << 8 | clamp(sums[x]);
+
+                if (channels == 4) {
+                    pixel |= clamp(sums[3 * width + x]) << 24;
+                }
+
+                destination[to + x] = pixel;
+            }
+        }
+    }
+
+
+    /**
+     * <P>The weights of the source pixels for each target pixel of one dimension. Every target
+     * pixel reads the same number of source pixels (taps), starting from its own start, so the
+     * passes have no edge checks; weights beyond what a pixel needs are 0.</P>
+     */
+    static final class Weights {
+        /** First source pixel of each target pixel. */
+        final int[] starts;
+
+        /** Source pixels read per target pixel. */
+        final int taps;
+
+        /** Fixed point weights, taps per target pixel. */
+        final int[] weights;
+
+        /** Fewer target pixels than source pixels. */
+        final boolean reducing;
+
+
+        Weights(final int in, final int out, final ResampleFilter filter) {
+            double scale = (double) in / out;
+
+            //when shrinking, widen the filter to cover every source pixel in a target pixel
+            double stretch = Math.max(1.0, scale);
+            double support = filter.getRadius() * stretch;
+            int window = (int) Math.ceil(support) * 2 + 1;
+
+            //weights of every pixel the filter may touch, pixels outside the image get none
+            double[][] w = new double[out][window];
+            int[] lows = new int[out];
+            int taps = 1;
+
+            for (int i = 0; i < out; i++) {
+                double centre = (i + 0.5) * scale;
+                int lo = Math.max(0, (int) Math.floor(centre - support + 0.5));
+                int hi = Math.min(in, Math.min(lo + window, (int) Math.floor(centre + support + 0.5)));
+                int first = -1;
+                int last = -1;
+
+                for (int x = lo; x < hi; x++) {
+                    double weight = filter.weight((x + 0.5 - centre) / stretch);
+                    w[i][x - lo] = weight;
+
+                    if (weight != 0.0) {
+                        first = first < 0 ? x : first;
+                        last = x;
+                    }
+                }
+
+                if (first < 0) {
+                    //the filter missed every pixel, use the nearest
+                    first = Math.min(in - 1, (int) centre);
+                    last = first;
+                    Arrays.fill(w[i], 0.0);
+                    lo = first;
+                    w[i][0] = 1.0;
+                }
+
+                //only the pixels from the first to the last with a weight are read
+                System.arraycopy(w[i], first - lo, w[i], 0, last - first + 1);
+                Arrays.fill(w[i], last - first + 1, window, 0.0);
+                lows[i] = first;
+                taps = Math.max(taps, last - first + 1);
+            }
+
+            this.taps = taps;
+            this.reducing = out < in;
+            this.starts = new int[out];
+            this.weights = new int[out * taps];
+
+            for (int i = 0; i < out; i++) {
+                //near the far edge start earlier, so every target pixel can read taps pixels
+                int start = Math.max(0, Math.min(lows[i], in - taps));
+                int shift = lows[i] - start;
+                double sum = 0.0;
+
+                for (int j = 0; j + shift < taps; j++) {
+                    sum += w[i][j];
+                }
+
+                starts[i] = start;
+
+                //round each weight, the largest takes the rounding error so they add up exactly
+                int total = 0;
+                int largest = i * taps + shift;
+
+                for (int j = 0; j + shift < taps; j++) {
+                    int k = i * taps + j + shift;
+                    weights[k] = (int) Math.round(w[i][j] / sum * (1 << PRECISION));
+                    total += weights[k];
+
+                    if (Math.abs(weights[k]) > Math.abs(weights[largest])) {
+                        largest = k;
+                    }
+                }
+
+                weights[largest] += (1 << PRECISION) - total;
+            }
+        }
+
+        /**
+         * Get the first source pixel read.
+         * @return index
+         */
+        int first() {
+            return starts[0];
+        }
+
+        /**
+         * Get the source pixel after the last one read.
+         * @return index
+         */
+        int last() {
+            return starts[starts.length - 1] + taps;
+        }
+    }
+
+}
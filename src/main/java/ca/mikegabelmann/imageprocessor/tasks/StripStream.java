@@ -0,0 +1,491 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.Dimension;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Kernel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Vector;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+
+import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
+
+
+/**
+ * <P>Runs tasks over an image a strip of rows at a time, so an image far larger than the heap can
+ * be read, changed and written. Each task is a Stage that asks the stage before it for rows from
+ * the top down. A stage that needs rows around the ones it makes (a resize, or a kernel's halo)
+ * keeps them in a Window, which lets go of rows once they are passed. Each stage holds about a
+ * strip of its own rows, whatever the height of the image.</P>
+ *
+ * <P>The last stage is handed to an ImageWriter as a RenderedImage that makes its rows when the
+ * writer asks for them. That only works for writers that ask for rows in order (PNG, TIFF).</P>
+ */
+final class StripStream {
+
+    private StripStream() {}
+
+    /**
+     * Set up the stages for tasks over an image being read.
+     * @param reader reader, with its input set
+     * @param tasks crops, resizes and kernels, in order
+     * @param stripRows rows read, and made, at a time
+     * @return image that makes its rows as they are asked for
+     * @throws IOException error reading the image
+     * @throws ImageProcessorException a crop is outside the image
+     */
+    static RenderedImage open(final ImageReader reader, final List<AbstractImageTask> tasks, final int stripRows)
+            throws IOException, ImageProcessorException {
+
+        Rectangle region = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+        boolean alpha = reader.getImageTypes(0).next().getColorModel().hasAlpha();
+        int skip = 0;
+
+        //a crop first is done by the reader
+        if (! tasks.isEmpty() && tasks.get(0) instanceof ImageCropTask crop) {
+            region = crop.clip(region.width, region.height);
+            skip = 1;
+        }
+
+        Stage stage = new Source(reader, region, alpha);
+
+        for (AbstractImageTask task : tasks.subList(skip, tasks.size())) {
+            if (task instanceof ImageCropTask crop) {
+                stage = new Crop(stage, crop.clip(stage.width, stage.height));
+
+            } else if (task instanceof ImageResizeTask resize) {
+                Dimension size = ImageResizeTask.fit(stage.width, stage.height, resize.getNewWidth(), resize.getNewHeight());
+
+                if (size.width != stage.width || size.height != stage.height) {
+                    stage = new Resize(stage, size, resize.getFilter(), stripRows);
+                }
+
+            } else if (task instanceof ImageKernelTask kernel) {
+                stage = new Filter(stage, kernel.getKernel(), stripRows);
+
+            } else {
+                throw new IllegalArgumentException("cannot stream " + task);
+            }
+        }
+
+        return new Output(stage, stripRows);
+    }
+
+    /**
+     * Is a strip large enough to be worked on by more than one thread.
+     * @param width row width
+     * @param rows number of rows
+     * @return true if parallel
+     */
+    private static boolean isParallel(final int width, final int rows) {
+        return (long) width * rows >= Resampler.PARALLEL_THRESHOLD;
+    }
+
+
+    /**
+     * <P>One step of the stream, giving rows of packed ARGB pixels.</P>
+     */
+    abstract static class Stage {
+        /** Width in pixels. */
+        final int width;
+
+        /** Height in pixels. */
+        final int height;
+
+        /** Do the pixels have alpha. */
+        final boolean alpha;
+
+
+        Stage(final int width, final int height, final boolean alpha) {
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+        }
+
+        /**
+         * Get rows. Rows are asked for from the top down, from is never less than the from of
+         * the call before.
+         * @param from first row
+         * @param to row after the last
+         * @return pixels, width per row
+         * @throws IOException error reading the image
+         */
+        abstract int[] rows(int from, int to) throws IOException;
+
+        /**
+         * Get the bits or'ed into every pixel made, to keep images without alpha opaque.
+         * @return bits
+         */
+        int opaque() {
+            return alpha ? 0 : 0xff000000;
+        }
+    }
+
+
+    /**
+     * <P>The rows of the stage before that are still needed. More rows are asked for a strip at a
+     * time, and rows above the ones needed are let go when they are.</P>
+     */
+    static final class Window {
+        /** Stage the rows come from. */
+        private final Stage upstream;
+
+        /** Fewest rows asked for at once. */
+        private final int chunk;
+
+        /** Rows held. */
+        int[] pixels = new int[0];
+
+        /** First row held. */
+        int first;
+
+        /** Row after the last held. */
+        int last;
+
+
+        Window(final Stage upstream, final int chunk) {
+            this.upstream = upstream;
+            this.chunk = chunk;
+        }
+
+        /**
+         * Make sure rows are held.
+         * @param from first row needed, rows above it may be let go
+         * @param to row after the last needed
+         * @throws IOException error reading the image
+         */
+        void fill(final int from, final int to) throws IOException {
+            if (from < first) {
+                throw new IllegalStateException("row " + from + " was already let go, rows must be asked for from the top down");
+
+            } else if (to <= last) {
+                return;
+            }
+
+            int width = upstream.width;
+            int start = Math.max(from, last);
+            int end = Math.min(upstream.height, Math.max(to, start + chunk));
+
+            //rows from the first needed to the last held are kept
+            int keep = Math.max(0, last - from);
+            int[] fresh = upstream.rows(start, end);
+
+            int[] held = new int[(keep + end - start) * width];
+            System.arraycopy(pixels, (last - keep - first) * width, held, 0, keep * width);
+            System.arraycopy(fresh, 0, held, keep * width, fresh.length);
+
+            this.pixels = held;
+            this.first = start - keep;
+            this.last = end;
+        }
+
+        /**
+         * Get where a row starts in the pixels held.
+         * @param y row
+         * @return index of its first pixel
+         */
+        int offset(final int y) {
+            return (y - first) * upstream.width;
+        }
+    }
+
+
+    /**
+     * <P>Reads rows of a region of the image, through a source region of the reader.</P>
+     */
+    static final class Source extends Stage {
+        private final ImageReader reader;
+        private final Rectangle region;
+
+
+        Source(final ImageReader reader, final Rectangle region, final boolean alpha) {
+            super(region.width, region.height, alpha);
+            this.reader = reader;
+            this.region = region;
+        }
+
+        @Override
+        int[] rows(final int from, final int to) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(region.x, region.y + from, region.width, to - from));
+
+            BufferedImage strip = reader.read(0, param);
+            return strip.getRGB(0, 0, width, to - from, null, 0, width);
+        }
+    }
+
+
+    /**
+     * <P>Keeps a region of the rows before.</P>
+     */
+    static final class Crop extends Stage {
+        private final Stage upstream;
+        private final Rectangle region;
+
+
+        Crop(final Stage upstream, final Rectangle region) {
+            super(region.width, region.height, upstream.alpha);
+            this.upstream = upstream;
+            this.region = region;
+        }
+
+        @Override
+        int[] rows(final int from, final int to) throws IOException {
+            int[] source = upstream.rows(region.y + from, region.y + to);
+            int[] pixels = new int[(to - from) * width];
+
+            for (int y = 0; y < to - from; y++) {
+                System.arraycopy(source, y * upstream.width + region.x, pixels, y * width, width);
+            }
+
+            return pixels;
+        }
+    }
+
+
+    /**
+     * <P>Resizes with a Resampler filter, from a window of the rows before. Each row is made the
+     * same way as in a whole image, so the result matches resizing the image whole.</P>
+     */
+    static final class Resize extends Stage {
+        private final Resampler.Weights rows;
+        private final Resampler.Pass pass;
+        private final int sourceWidth;
+        private final Window window;
+        private final int chunk;
+
+
+        Resize(final Stage upstream, final Dimension size, final ResampleFilter filter, final int chunk) {
+            super(size.width, size.height, upstream.alpha);
+            this.rows = Resampler.weights(upstream.height, size.height, filter);
+            this.pass = new Resampler.Pass(Resampler.weights(upstream.width, size.width, filter), rows, upstream.width, upstream.alpha);
+            this.sourceWidth = upstream.width;
+            this.window = new Window(upstream, chunk);
+            this.chunk = Math.max(chunk, rows.taps);
+        }
+
+        @Override
+        int[] rows(final int from, final int to) throws IOException {
+            int[] pixels = new int[(to - from) * width];
+            int y = from;
+
+            while (y < to) {
+                //as many rows as can be made from about a strip of rows before
+                int end = y + 1;
+
+                while (end < to && rows.starts[end] + rows.taps - rows.starts[y] <= chunk) {
+                    end++;
+                }
+
+                window.fill(rows.starts[y], rows.starts[end - 1] + rows.taps);
+
+                int[] made = new int[(end - y) * width];
+                pass.resize(window.pixels, window.first, made, y, end, isParallel(Math.max(sourceWidth, width), end - y));
+                System.arraycopy(made, 0, pixels, (y - from) * width, made.length);
+
+                y = end;
+            }
+
+            return pixels;
+        }
+    }
+
+
+    /**
+     * <P>Convolves with a kernel, each strip together with the rows around it the kernel reads
+     * (its halo), so strips join up without seams.</P>
+     */
+    static final class Filter extends Stage {
+        private final Kernel kernel;
+        private final int halo;
+        private final Window window;
+
+
+        Filter(final Stage upstream, final Kernel kernel, final int chunk) {
+            super(upstream.width, upstream.height, upstream.alpha);
+            this.kernel = kernel;
+            this.halo = kernel.getHeight() - 1;
+            this.window = new Window(upstream, chunk);
+        }
+
+        @Override
+        int[] rows(final int from, final int to) throws IOException {
+            int top = Math.max(0, from - halo);
+            int bottom = Math.min(height, to + halo);
+            window.fill(top, bottom);
+
+            //the edges of the image are extended by the Convolver, as for a whole image
+            BufferedImage block = new BufferedImage(width, bottom - top, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            System.arraycopy(window.pixels, window.offset(top), Convolver.pixels(block), 0, (bottom - top) * width);
+
+            int[] result = Convolver.pixels(Convolver.convolve(block, kernel));
+            int[] pixels = new int[(to - from) * width];
+            int opaque = this.opaque();
+
+            for (int i = 0, j = (from - top) * width; i < pixels.length; i++, j++) {
+                pixels[i] = opaque | result[j];
+            }
+
+            return pixels;
+        }
+    }
+
+
+    /**
+     * <P>The last stage as an image for an ImageWriter, one tile per strip. Rows are made when
+     * the writer asks for them, which it must do from the top down.</P>
+     */
+    static final class Output implements RenderedImage {
+        private final Stage stage;
+        private final Window window;
+        private final int tileHeight;
+        private final int type;
+        private final ColorModel colorModel;
+
+
+        Output(final Stage stage, final int tileHeight) {
+            this.stage = stage;
+            this.window = new Window(stage, tileHeight);
+            this.tileHeight = Math.min(tileHeight, stage.height);
+            this.type = stage.alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            this.colorModel = new BufferedImage(1, 1, type).getColorModel();
+        }
+
+        @Override
+        public Raster getData(final Rectangle rect) {
+            try {
+                window.fill(rect.y, rect.y + rect.height);
+
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+
+            BufferedImage part = new BufferedImage(rect.width, rect.height, type);
+            int[] pixels = Convolver.pixels(part);
+
+            for (int y = 0; y < rect.height; y++) {
+                System.arraycopy(window.pixels, window.offset(rect.y + y) + rect.x, pixels, y * rect.width, rect.width);
+            }
+
+            return part.getRaster().createTranslatedChild(rect.x, rect.y);
+        }
+
+        @Override
+        public Raster getData() {
+            //only allowed when it is all one strip anyway
+            if (stage.height > tileHeight) {
+                throw new UnsupportedOperationException("the whole image cannot be held, the writer must ask for rows in order");
+            }
+
+            return this.getData(new Rectangle(stage.width, stage.height));
+        }
+
+        @Override
+        public WritableRaster copyData(final WritableRaster raster) {
+            WritableRaster result = raster == null ? colorModel.createCompatibleWritableRaster(stage.width, stage.height) : raster;
+            result.setRect(this.getData(result.getBounds()));
+            return result;
+        }
+
+        @Override
+        public Raster getTile(final int tileX, final int tileY) {
+            int y = tileY * tileHeight;
+            return this.getData(new Rectangle(0, y, stage.width, Math.min(tileHeight, stage.height - y)));
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(final String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return colorModel.createCompatibleSampleModel(stage.width, tileHeight);
+        }
+
+        @Override
+        public int getWidth() {
+            return stage.width;
+        }
+
+        @Override
+        public int getHeight() {
+            return stage.height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (stage.height + tileHeight - 1) / tileHeight;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return stage.width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return tileHeight;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
+import ca.mikegabelmann.imageprocessor.tasks.ImageNullTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+class ImageBatchTest {
+
+    @TempDir
+    File directory;
+
+    private ImageProcessorPool pool;
+
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.pool = new ImageProcessorPool(new Queue(), 4, 4);
+
+        for (int i = 0; i < 20; i++) {
+            new File(directory, "image" + i + ".jpg").createNewFile();
+        }
+
+        new File(directory, "notes.txt").createNewFile();
+
+        File sub = new File(directory, "sub");
+        sub.mkdir();
+        new File(sub, "image.jpg").createNewFile();
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.stop();
+    }
+
+    @Test
+    void test1_constructor() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ImageBatch(null, directory, "*", file -> List.of()));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ImageBatch(pool.getQueue(), new File(directory, "missing"), "*", file -> List.of()));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ImageBatch(pool.getQueue(), directory, "", file -> List.of()));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ImageBatch(pool.getQueue(), directory, "*", null));
+    }
+
+    @Test
+    @DisplayName("every matching file in the directory is processed and summarized")
+    void test1_start() throws Exception {
+        pool.start();
+
+        ImageBatch batch = new ImageBatch(pool.getQueue(), directory, "*.jpg", file -> List.of(new ImageNullTask()));
+        BatchSummary summary = batch.start().get(10L, TimeUnit.SECONDS);
+
+        Assertions.assertEquals(20, summary.getTotal());
+        Assertions.assertEquals(20, summary.getSucceeded());
+        Assertions.assertTrue(summary.isSuccessful());
+        Assertions.assertTrue(batch.isExpanded());
+        Assertions.assertEquals(20, batch.getCompleted());
+        Assertions.assertThrows(IllegalStateException.class, batch::start);
+    }
+
+    @Test
+    @DisplayName("subdirectories are included by the glob, files the template rejects fail")
+    void test2_start() throws Exception {
+        pool.start();
+
+        ImageBatch batch = new ImageBatch(pool.getQueue(), directory, "**.jpg", file -> {
+            if (file.getName().equals("image0.jpg")) {
+                throw new ImageTaskException("bad file");
+            }
+
+            return List.of(new ImageNullTask());
+        });
+
+        BatchSummary summary = batch.start().get(10L, TimeUnit.SECONDS);
+
+        Assertions.assertEquals(21, summary.getTotal());
+        Assertions.assertEquals(20, summary.getSucceeded());
+        Assertions.assertEquals(1, summary.getFailed());
+        Assertions.assertTrue(summary.getFailures().get(0).endsWith("bad file"));
+        Assertions.assertFalse(summary.isSuccessful());
+    }
+
+    @Test
+    @DisplayName("only a window of files is queued, cancelling stops the rest")
+    void test1_cancel() throws Exception {
+        ImageBatch batch = new ImageBatch(pool.getQueue(), directory, "*.jpg", file -> List.of(new ImageNullTask()));
+        batch.setWindow(5);
+        batch.start();
+
+        Thread.sleep(200L);
+        Assertions.assertEquals(5, batch.getSubmitted());
+        Assertions.assertEquals(5, pool.getQueue().numElements());
+
+        batch.cancel();
+        pool.start();
+
+        BatchSummary summary = batch.getResult().get(10L, TimeUnit.SECONDS);
+        Assertions.assertEquals(5, summary.getTotal());
+        Assertions.assertEquals(5, summary.getCancelled());
+    }
+
+    @Test
+    @DisplayName("files flushed from the queue without a message fail and make room for the rest")
+    void test2_cancel() throws Exception {
+        ImageBatch batch = new ImageBatch(pool.getQueue(), directory, "*.jpg", file -> List.of(new ImageNullTask()));
+        batch.setWindow(5);
+        batch.start();
+
+        long deadline = System.currentTimeMillis() + 10_000L;
+
+        while (! batch.isDone() && System.currentTimeMillis() < deadline) {
+            pool.getQueue().flushAll();
+            Thread.sleep(10L);
+        }
+
+        BatchSummary summary = batch.getResult().get(1L, TimeUnit.SECONDS);
+        Assertions.assertEquals(20, summary.getTotal());
+        Assertions.assertEquals(20, summary.getFailed());
+    }
+
+}
@@ -0,0 +1,191 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+import ca.mikegabelmann.imageprocessor.ImagePipeline.Stage;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
+import ca.mikegabelmann.imageprocessor.tasks.ErrorTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageCropTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageFileTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageFileTaskType;
+import ca.mikegabelmann.imageprocessor.tasks.ImageKernelTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageNullTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageResizeTask;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+class ImagePipelineTest implements ImageMessageEventListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImagePipelineTest.class);
+
+    @TempDir
+    File directory;
+
+
+    @Test
+    void test1_constructor() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ImagePipeline(null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ImagePipeline(new Queue(), 0, 1, 1, 1));
+    }
+
+    @Test
+    @DisplayName("tasks are split between the stages in order")
+    void test1_plan() throws Exception {
+        File in = new File(directory, "in.png");
+        File out = new File(directory, "out.png");
+        ImageFileTask read = new ImageFileTask(ImageFileTaskType.PROCESS_GET_IMAGE, in, null);
+        ImageFileTask write = new ImageFileTask(ImageFileTaskType.PROCESS_WRITE_IMAGE, null, out);
+        ImageResizeTask resize = new ImageResizeTask(new Dimension(10, 10));
+        ImageKernelTask kernel = new ImageKernelTask(ImageKernelTask.SHARPEN_3x3_10);
+
+        Assertions.assertArrayEquals(new int[] {1, 2, 1}, ImagePipeline.plan(event(read, resize, kernel, write)));
+        Assertions.assertArrayEquals(new int[] {2, 0, 1}, ImagePipeline.plan(event(read, new ImageNullTask(), write)));
+        Assertions.assertArrayEquals(new int[] {0, 2, 0}, ImagePipeline.plan(event(resize, read)));
+        Assertions.assertArrayEquals(new int[] {0, 0, 0}, ImagePipeline.plan(event()));
+
+        //the read does a crop straight after it
+        ImageCropTask crop = new ImageCropTask(new Rectangle(0, 0, 5, 5));
+        Assertions.assertArrayEquals(new int[] {1, 1, 1}, ImagePipeline.plan(event(read, crop, resize, write)));
+        Assertions.assertArrayEquals(new int[] {1, 2, 1}, ImagePipeline.plan(event(read, resize, crop, write)));
+    }
+
+    @Test
+    @DisplayName("images are read, resized and written by the pipeline")
+    void test1_run() throws Exception {
+        File in = new File(directory, "in.png");
+        ImageIO.write(new BufferedImage(40, 20, BufferedImage.TYPE_INT_RGB), "png", in);
+
+        Queue queue = new Queue();
+        ImagePipeline pipeline = new ImagePipeline(queue, 1, 2, 1, 2);
+        ImageMessageStatusCounter counter = new ImageMessageStatusCounter();
+
+        for (int i = 0; i < 10; i++) {
+            queue.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, counter, null,
+                    new ImageFileTask(ImageFileTaskType.PROCESS_GET_IMAGE, in, null),
+                    new ImageResizeTask(new Dimension(20, 10)),
+                    new ImageFileTask(ImageFileTaskType.PROCESS_WRITE_IMAGE, null, new File(directory, "out" + i + ".png"))));
+        }
+
+        Thread t = new Thread(pipeline);
+        t.start();
+
+        long end = System.currentTimeMillis() + 10000L;
+
+        while (counter.getCount(ImageMessageEventType.OK) < 10 && System.currentTimeMillis() < end) {
+            Thread.sleep(10L);
+        }
+
+        pipeline.stopRunning();
+        t.join(5000L);
+
+        Assertions.assertEquals(10, counter.getCount(ImageMessageEventType.OK));
+        Assertions.assertFalse(t.isAlive());
+        Assertions.assertEquals(20, ImageIO.read(new File(directory, "out9.png")).getWidth());
+    }
+
+    @Test
+    @DisplayName("a failing task ends the event with an error")
+    void test2_run() throws Exception {
+        Queue queue = new Queue();
+        ImagePipeline pipeline = new ImagePipeline(queue);
+        ImageMessageStatusCounter counter = new ImageMessageStatusCounter();
+
+        queue.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, counter, null,
+                new ErrorTask(new ImageProcessorException("failed")), new ImageNullTask()));
+
+        Thread t = new Thread(pipeline);
+        t.start();
+
+        long end = System.currentTimeMillis() + 5000L;
+
+        while (counter.getCount(ImageMessageEventType.ERROR) == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10L);
+        }
+
+        pipeline.stopRunning();
+        t.join(5000L);
+
+        Assertions.assertEquals(1, counter.getCount(ImageMessageEventType.ERROR));
+        Assertions.assertEquals(0, pipeline.getEvents(Stage.DECODE));
+    }
+
+    @Test
+    @DisplayName("a source that throws does not keep the result from combined events, listeners or later events")
+    void test3_run() throws Exception {
+        Queue queue = new Queue();
+        queue.setCoalescing(true);
+
+        ImagePipeline pipeline = new ImagePipeline(queue, 1, 1, 1, 1);
+        ImageMessageStatusCounter follower = new ImageMessageStatusCounter();
+        ImageMessageStatusCounter listener = new ImageMessageStatusCounter();
+        pipeline.addEventListener(listener);
+
+        ImageProcessEvent failing = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, ime -> {
+            throw new IllegalStateException("listener failed");
+        }, null, new ImageNullTask(10L));
+        ImageProcessEvent combined = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, follower, null, new ImageNullTask(10L));
+        queue.eventPerformed(failing);
+        queue.eventPerformed(combined);
+        Assertions.assertEquals(1, queue.getCoalesced());
+
+        Thread t = new Thread(pipeline);
+        t.start();
+
+        Assertions.assertEquals(ImageMessageEventType.OK, failing.getResult().get(5L, TimeUnit.SECONDS).getStatus());
+        Assertions.assertEquals(ImageMessageEventType.OK, combined.getResult().get(5L, TimeUnit.SECONDS).getStatus());
+
+        //the stage thread is still there for the next event
+        ImageProcessEvent later = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, follower, null, new ImageNullTask(20L));
+        queue.eventPerformed(later);
+        Assertions.assertEquals(ImageMessageEventType.OK, later.getResult().get(5L, TimeUnit.SECONDS).getStatus());
+
+        pipeline.stopRunning();
+        t.join(5000L);
+
+        Assertions.assertEquals(2, follower.getCount(ImageMessageEventType.OK));
+        Assertions.assertEquals(3, listener.getCount(ImageMessageEventType.OK));
+        Assertions.assertFalse(t.isAlive());
+    }
+
+    @Override
+    public void eventPerformed(final ImageMessageEvent ime) {
+        LOGGER.debug("received event {}", ime);
+    }
+
+    private ImageProcessEvent event(final AbstractImageTask... tasks) {
+        return new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, tasks);
+    }
+
+
+    static class ImageMessageStatusCounter implements ImageMessageEventListener {
+        private final Map<ImageMessageEventType, Integer> counts = new EnumMap<>(ImageMessageEventType.class);
+
+        @Override
+        public synchronized void eventPerformed(ImageMessageEvent event) {
+            LOGGER.debug("received event {}", event);
+            counts.merge(event.getStatus(), 1, Integer::sum);
+        }
+
+        public synchronized int getCount(final ImageMessageEventType type) {
+            return counts.getOrDefault(type, 0);
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+package ca.mikegabelmann.imageprocessor;
+
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import ca.mikegabelmann.imageprocessor.tasks.ExitTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageNullTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+class ImageProcessorPoolTest implements ImageMessageEventListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageProcessorPoolTest.class);
+
+    private ImageProcessorPool pool;
+
+
+    @BeforeEach
+    void setUp() {
+        this.pool = new ImageProcessorPool(new Queue(), 1, 3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.stop();
+    }
+
+    @Test
+    void test1_constructor() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ImageProcessorPool(null, 1, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ImageProcessorPool(new Queue(), 0, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ImageProcessorPool(new Queue(), 2, 1));
+    }
+
+    @Test
+    void test1_start() {
+        Assertions.assertFalse(pool.isRunning());
+        pool.start();
+
+        Assertions.assertTrue(pool.isRunning());
+        Assertions.assertEquals(1, pool.getSize());
+
+        pool.stop();
+        Assertions.assertFalse(pool.isRunning());
+        Assertions.assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    @DisplayName("a processor is added while the backlog is too large, up to the maximum")
+    void test1_scale() {
+        pool.setBacklog(1);
+        pool.start();
+
+        for (int i = 0; i < 50; i++) {
+            pool.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask(200L)));
+        }
+
+        pool.scale();
+        Assertions.assertTrue(pool.getSize() >= 2);
+
+        pool.scale();
+        pool.scale();
+        Assertions.assertEquals(3, pool.getSize());
+    }
+
+    @Test
+    @DisplayName("a processor that dies is replaced")
+    void test2_scale() throws InterruptedException {
+        pool.start();
+        pool.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, this, null, new ExitTask()));
+
+        //the processor exits once it has taken the exit task
+        Thread.sleep(100L);
+
+        pool.scale();
+        Assertions.assertEquals(1, pool.getSize());
+
+        //the replacement does the work
+        ImageMessageEventCounter counter = new ImageMessageEventCounter();
+        pool.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, counter, null, new ImageNullTask()));
+
+        long end = System.currentTimeMillis() + 5000L;
+
+        while (counter.getCount() == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10L);
+        }
+
+        Assertions.assertEquals(1, counter.getCount());
+    }
+
+    @Test
+    @DisplayName("idle processors are retired down to the minimum")
+    void test3_scale() throws InterruptedException {
+        pool.setBacklog(1);
+        pool.start();
+
+        pool.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask()));
+        pool.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask()));
+        pool.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask()));
+        pool.scale();
+
+        pool.getQueue().flushAll();
+        pool.setIdleTimeout(0L);
+
+        //let the processors finish the events they already took
+        Thread.sleep(500L);
+
+        for (int i = 0; i < 5; i++) {
+            pool.scale();
+        }
+
+        Assertions.assertEquals(1, pool.getSize());
+    }
+
+    @Test
+    @DisplayName("a processor stuck in an abandoned task is replaced")
+    void test4_scale() throws InterruptedException {
+        Watchdog watchdog = new Watchdog();
+        watchdog.setGrace(50L);
+        pool.setWatchdog(watchdog);
+        pool.start();
+
+        ImageProcessEvent stuck = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, this, null, new WatchdogTest.StuckTask(3000L));
+        stuck.setBudget(50L);
+        pool.getQueue().eventPerformed(stuck);
+
+        Thread.sleep(500L);
+        pool.scale();
+
+        //the replacement does the work while the stuck thread is still busy
+        ImageMessageEventCounter counter = new ImageMessageEventCounter();
+        pool.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, counter, null, new ImageNullTask()));
+
+        long end = System.currentTimeMillis() + 2000L;
+
+        while (counter.getCount() == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10L);
+        }
+
+        Assertions.assertEquals(1, counter.getCount());
+        Assertions.assertEquals(1, pool.getSize());
+    }
+
+    @Test
+    @DisplayName("draining processes the backlog, then new events are rejected")
+    void test1_shutdown() {
+        pool.start();
+
+        for (int i = 0; i < 10; i++) {
+            pool.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask()));
+        }
+
+        ShutdownReport report = pool.shutdown(ShutdownMode.DRAIN, 10000L);
+
+        Assertions.assertFalse(pool.isRunning());
+        Assertions.assertTrue(report.isTerminated());
+        Assertions.assertEquals(10, report.getCompleted());
+        Assertions.assertEquals(0, report.getAbandoned());
+        Assertions.assertEquals(0, report.getRemaining());
+        Assertions.assertFalse(pool.getQueue().offer(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask())));
+    }
+
+    @Test
+    @DisplayName("persisting finishes the running event and leaves the rest in the queue")
+    void test2_shutdown() throws InterruptedException {
+        pool.start();
+
+        for (int i = 0; i < 10; i++) {
+            pool.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask(200L)));
+        }
+
+        Thread.sleep(50L);
+        ShutdownReport report = pool.shutdown(ShutdownMode.PERSIST, 10000L);
+
+        Assertions.assertTrue(report.isTerminated());
+        Assertions.assertEquals(0, report.getAbandoned());
+        Assertions.assertTrue(report.getCompleted() >= 1 && report.getCompleted() < 10);
+        Assertions.assertEquals(10 - report.getCompleted(), report.getRemaining());
+        Assertions.assertEquals(report.getRemaining(), pool.getQueue().numElements());
+    }
+
+    @Test
+    @DisplayName("an event still running at the deadline is interrupted")
+    void test3_shutdown() throws InterruptedException {
+        pool.start();
+        pool.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask(30000L)));
+
+        Thread.sleep(100L);
+        ShutdownReport report = pool.shutdown(ShutdownMode.PERSIST, 100L);
+
+        Assertions.assertTrue(report.isTerminated());
+        Assertions.assertEquals(1, report.getAbandoned());
+        Assertions.assertEquals(0, report.getCompleted());
+    }
+
+    @Override
+    public void eventPerformed(final ImageMessageEvent ime) {
+        LOGGER.debug("received event {}", ime);
+    }
+
+
+    static class ImageMessageEventCounter implements ImageMessageEventListener {
+        private int count = 0;
+
+        @Override
+        public synchronized void eventPerformed(ImageMessageEvent event) {
+            LOGGER.debug("received event {}", event);
+            count += 1;
+        }
+
+        public synchronized int getCount() {
+            return count;
+        }
+    }
+
+}
@@ -1,5 +1,14 @@
 package ca.mikegabelmann.imageprocessor;
 
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ca.mikegabelmann.imageprocessor.events.CancellationToken;
 import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
 import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
@@ -7,9 +16,11 @@ import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
 import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
 import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
 import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
 import ca.mikegabelmann.imageprocessor.tasks.ErrorTask;
 import ca.mikegabelmann.imageprocessor.tasks.ExitTask;
 import ca.mikegabelmann.imageprocessor.tasks.ImageNullTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageResizeTask;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -85,6 +96,13 @@ class ImageProcessorTest implements ImageMessageEventListener {
         Assertions.assertNotNull(ip.getQueue());
     }
 
+    @Test
+    public void test2_getQueue() {
+        Queue queue = new Queue();
+        Assertions.assertSame(queue, new ImageProcessor(queue).getQueue());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ImageProcessor(null));
+    }
+
     @Test
     @DisplayName("process an event and ensure response received")
     void test1_processEvent() {
@@ -184,6 +202,315 @@ class ImageProcessorTest implements ImageMessageEventListener {
         Assertions.assertEquals(2, counter.getCount());
     }
 
+    @Test
+    @DisplayName("events taken in a batch but not processed are returned when the processor stops")
+    void test8_processEvent() {
+        ImageMessageEventCounter counter = Mockito.spy(ImageMessageEventCounter.class);
+
+        ip.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, counter, null, new ExitTask()));
+        ip.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, counter, null, new ImageNullTask()));
+        ip.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, null, new ImageNullTask()));
+
+        ip.run();
+
+        Assertions.assertEquals(1, counter.getCount());
+        Assertions.assertEquals(2, ip.getQueue().numElements());
+    }
+
+    @Test
+    @DisplayName("a task throwing an unchecked exception is answered with an error and the processor keeps going")
+    void test13_processEvent() throws Exception {
+        AbstractImageTask boom = new AbstractImageTask("boom") {
+            @Override
+            public void processTask(final ImageProcessEvent ipe) {
+                throw new IllegalStateException("boom");
+            }
+        };
+
+        CompletableFuture<ImageMessageEvent> failed = ip.getQueue().submit(ImageProcessEventType.PRIORITY_HIGH, null, boom);
+        CompletableFuture<ImageMessageEvent> next = ip.getQueue().submit(ImageProcessEventType.PRIORITY_LOW, null, new ImageNullTask());
+
+        Thread t = ImageProcessor.getRunningInstance(ip);
+
+        try {
+            ImageMessageEvent ime = failed.get(5L, TimeUnit.SECONDS);
+            Assertions.assertEquals(ImageMessageEventType.ERROR, ime.getStatus());
+            Assertions.assertTrue(ime.getMessage().contains("boom"));
+            Assertions.assertEquals(ImageMessageEventType.OK, next.get(5L, TimeUnit.SECONDS).getStatus());
+
+        } finally {
+            ip.stopRunning();
+            t.join(1000L);
+        }
+    }
+
+    @Test
+    void test1_getBatchSize() {
+        Assertions.assertEquals(1, ip.getBatchSize());
+
+        for (int i = 0; i < 100; i++) {
+            ip.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null));
+        }
+
+        Assertions.assertEquals(ImageProcessor.MAX_BATCH_SIZE, ip.getBatchSize());
+
+        //the backlog is shared between the consumers of this queue only
+        for (int i = 0; i < 10; i++) {
+            ip.getQueue().enter();
+        }
+
+        Assertions.assertEquals(10, ip.getBatchSize());
+        new ImageProcessor().getQueue().enter();
+        Assertions.assertEquals(10, ip.getBatchSize());
+    }
+
+    @Test
+    @DisplayName("a cancelled event is answered with a cancelled message and its tasks are not run")
+    void test9_processEvent() {
+        ImageMessageStatusRecorder recorder = new ImageMessageStatusRecorder();
+        ErrorTask e1 = new ErrorTask(new ImageProcessorException("should not run"));
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, recorder, null, e1);
+
+        CancellationToken token = new CancellationToken();
+        ipe.setCancellationToken(token);
+        token.cancel();
+
+        ip.processEvent(ipe);
+
+        Assertions.assertEquals(ImageMessageEventType.CANCELLED, recorder.getStatus());
+        Assertions.assertEquals(1, ipe.getSize());
+    }
+
+    @Test
+    @DisplayName("an event cancelled while in flight stops at the next task")
+    void test10_processEvent() {
+        ImageMessageStatusRecorder recorder = new ImageMessageStatusRecorder();
+        CancellationToken token = new CancellationToken();
+
+        AbstractImageTask cancel = new AbstractImageTask("cancel") {
+            @Override
+            public void processTask(final ImageProcessEvent ipe) {
+                token.cancel();
+            }
+        };
+
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, recorder, null, cancel, new ImageNullTask());
+        ipe.setCancellationToken(token);
+
+        ip.processEvent(ipe);
+
+        Assertions.assertEquals(ImageMessageEventType.CANCELLED, recorder.getStatus());
+        Assertions.assertEquals(1, ipe.getSize());
+    }
+
+    @Test
+    @DisplayName("an event whose deadline passes while in flight stops at the next task")
+    void test11_processEvent() {
+        ImageMessageStatusRecorder recorder = new ImageMessageStatusRecorder();
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, recorder, null, new ImageNullTask(200L), new ImageNullTask());
+        ipe.setTimeToLive(100L);
+
+        ip.processEvent(ipe);
+
+        Assertions.assertEquals(ImageMessageEventType.EXPIRED, recorder.getStatus());
+        Assertions.assertEquals(1, ipe.getSize());
+        Assertions.assertEquals(1L, ip.getQueue().getDeadlineMisses());
+    }
+
+    @Test
+    @DisplayName("identical events combined by the queue each get the result")
+    void test12_processEvent() {
+        ImageMessageStatusRecorder r1 = new ImageMessageStatusRecorder();
+        ImageMessageStatusRecorder r2 = new ImageMessageStatusRecorder();
+        ip.getQueue().setCoalescing(true);
+
+        ip.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, r1, null, new ImageNullTask()));
+        ip.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, r2, null, new ImageNullTask()));
+
+        ImageProcessEvent ipe = ip.getQueue().getWork();
+        ip.processEvent(ipe);
+
+        Assertions.assertEquals(ImageMessageEventType.OK, r1.getStatus());
+        Assertions.assertEquals(ImageMessageEventType.OK, r2.getStatus());
+        Assertions.assertFalse(ip.getQueue().hasElements());
+        Assertions.assertTrue(ip.getQueue().getFollowers(ipe).isEmpty());
+    }
+
+    @Test
+    @DisplayName("in VIRTUAL mode events that wait run side by side")
+    void test1_virtual() throws InterruptedException {
+        ImageProcessor vip = new ImageProcessor(new Queue(), ExecutionMode.VIRTUAL);
+        ImageMessageEventCounter counter = new ImageMessageEventCounter();
+
+        for (int i = 0; i < 50; i++) {
+            vip.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, null, new ImageNullTask(200L)));
+        }
+
+        long start = System.currentTimeMillis();
+        Thread t = ImageProcessor.getRunningInstance(vip);
+
+        while (counter.getCount() < 50 && System.currentTimeMillis() - start < 5000L) {
+            Thread.sleep(10L);
+        }
+
+        //one at a time this would take 10 seconds
+        Assertions.assertEquals(50, counter.getCount());
+        Assertions.assertTrue(System.currentTimeMillis() - start < 5000L);
+
+        //busy follows the events running, the counter hears of an event just before it ends
+        while (vip.getInFlight() > 0 && System.currentTimeMillis() - start < 5000L) {
+            Thread.sleep(10L);
+        }
+
+        Assertions.assertFalse(vip.isBusy());
+
+        vip.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, counter, null, new ExitTask()));
+        t.join(5000L);
+        Assertions.assertFalse(t.isAlive());
+    }
+
+    @Test
+    @DisplayName("in VIRTUAL mode no more than maxInFlight events run at once")
+    void test2_virtual() throws InterruptedException {
+        ImageProcessor vip = new ImageProcessor(new Queue(), ExecutionMode.VIRTUAL);
+        vip.setMaxInFlight(2);
+        vip.setPollTimeout(50L);
+
+        for (int i = 0; i < 10; i++) {
+            vip.getQueue().eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask(200L)));
+        }
+
+        Thread t = ImageProcessor.getRunningInstance(vip);
+        Thread.sleep(100L);
+
+        Assertions.assertEquals(2, vip.getInFlight());
+        Assertions.assertEquals(8, vip.getQueue().numElements());
+        Assertions.assertTrue(vip.isBusy());
+        Assertions.assertEquals(0L, vip.getIdleTime());
+
+        vip.stopRunning();
+        t.join(5000L);
+        Assertions.assertFalse(t.isAlive());
+    }
+
+    @Test
+    @DisplayName("branches share the decoded image and all outputs come back in one result")
+    void test1_branches() throws Exception {
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB));
+        ipe.addBranch(new ImageResizeTask(new Dimension(100, 75)));
+        ipe.addBranch(new ImageResizeTask(new Dimension(200, 150))).addBranch(new ImageNullTask());
+
+        ip.processEvent(ipe);
+
+        ImageMessageEvent ime = ipe.getResult().get();
+        Assertions.assertEquals(ImageMessageEventType.OK, ime.getStatus());
+        Assertions.assertEquals(2, ime.getOutputs().size());
+        Assertions.assertEquals(100, ime.getOutputs().get(0).getWidth());
+        Assertions.assertEquals(200, ime.getOutputs().get(1).getWidth());
+        Assertions.assertEquals(400, ime.getImage().getWidth());
+    }
+
+    @Test
+    @DisplayName("branches run in parallel")
+    void test2_branches() throws Exception {
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, null);
+
+        for (int i = 0; i < 4; i++) {
+            ipe.addBranch(new ImageNullTask(400L));
+        }
+
+        long start = System.nanoTime();
+        ip.processEvent(ipe);
+
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1200L);
+        Assertions.assertEquals(4, ipe.getResult().get().getOutputs().size());
+    }
+
+    @Test
+    @DisplayName("a branch that fails fails the event")
+    void test3_branches() throws Exception {
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, null);
+        ipe.addBranch(new ImageNullTask());
+        ipe.addBranch(new ImageNullTask()).addBranch(new ErrorTask(new ImageProcessorException("failed")));
+
+        ip.processEvent(ipe);
+
+        ImageMessageEvent ime = ipe.getResult().get();
+        Assertions.assertEquals(ImageMessageEventType.ERROR, ime.getStatus());
+        Assertions.assertTrue(ime.getOutputs().isEmpty());
+    }
+
+    @Test
+    @DisplayName("listeners move to a new dispatcher")
+    void test1_setDispatcher() {
+        MessageDispatcher dispatcher = new MessageDispatcher(16);
+        ip.addEventListener(this);
+        ip.setDispatcher(dispatcher);
+
+        Assertions.assertEquals(dispatcher, ip.getDispatcher());
+        Assertions.assertTrue(dispatcher.hasEventListener(this));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ip.setDispatcher(null));
+
+        dispatcher.close();
+    }
+
+    @Test
+    @DisplayName("progress listeners are told about each task, the source only gets the result")
+    void test1_addProgressListener() {
+        List<ImageMessageEvent> progress = new ArrayList<>();
+        ImageMessageEventCounter counter = new ImageMessageEventCounter();
+
+        Assertions.assertFalse(ip.addProgressListener(null));
+        Assertions.assertTrue(ip.addProgressListener(progress::add));
+        ip.setProgressInterval(0L);
+
+        ip.processEvent(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, counter, null, new ImageNullTask(), new ImageNullTask(50L)));
+
+        Assertions.assertEquals(1, counter.getCount());
+        Assertions.assertEquals(3, progress.size());
+
+        ImageMessageEvent second = progress.get(1);
+        Assertions.assertEquals(ImageMessageEventType.PROGRESS, second.getStatus());
+        Assertions.assertEquals("ImageNullTask", second.getStage());
+        Assertions.assertEquals(2, second.getStep());
+        Assertions.assertEquals(2, second.getSteps());
+        Assertions.assertTrue(second.getElapsed() >= 50L);
+        Assertions.assertEquals(ImageMessageEventType.OK, progress.get(2).getStatus());
+    }
+
+    @Test
+    @DisplayName("tasks quicker than the progress interval are not reported")
+    void test2_addProgressListener() {
+        List<ImageMessageEvent> progress = new ArrayList<>();
+        ip.addProgressListener(progress::add);
+
+        ip.processEvent(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, null, new ImageNullTask(), new ImageNullTask()));
+
+        Assertions.assertEquals(1, progress.size());
+        Assertions.assertEquals(ImageMessageEventType.OK, progress.get(0).getStatus());
+    }
+
+    @Test
+    @DisplayName("a processor waiting for work stops as soon as it is asked to")
+    void test1_stopRunning() throws InterruptedException {
+        Thread t = new Thread(ip);
+        t.start();
+
+        Thread.sleep(SLEEP_TIME);
+        ip.stopRunning();
+        t.join(1000L);
+
+        Assertions.assertFalse(t.isAlive());
+        Assertions.assertEquals(0, ip.getProcessed());
+    }
+
+    @Test
+    void test1_newEventExecutor() throws Exception {
+        ExecutorService executor = ImageProcessor.newEventExecutor();
+        Assertions.assertEquals("done", executor.submit(() -> "done").get());
+        executor.shutdown();
+    }
+
     @Test
     void test1_getRunningInstance() {
         Thread t = ImageProcessor.getRunningInstance(ip);
@@ -209,11 +536,25 @@ class ImageProcessorTest implements ImageMessageEventListener {
             count += 1;
         }
 
-        public int getCount() {
+        public synchronized int getCount() {
             return count;
         }
     }
 
+    static class ImageMessageStatusRecorder implements ImageMessageEventListener {
+        private ImageMessageEventType status;
+
+        @Override
+        public synchronized void eventPerformed(ImageMessageEvent event) {
+            LOGGER.debug("received event {}", event);
+            status = event.getStatus();
+        }
+
+        public synchronized ImageMessageEventType getStatus() {
+            return status;
+        }
+    }
+
     static class ImageMessageExceptionCounter implements ImageMessageEventListener {
         private int count = 0;
 
@@ -225,7 +566,7 @@ class ImageProcessorTest implements ImageMessageEventListener {
             }
         }
 
-        public int getCount() {
+        public synchronized int getCount() {
             return count;
         }
     }
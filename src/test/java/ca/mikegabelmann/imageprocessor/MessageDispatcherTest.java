@@ -0,0 +1,256 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+class MessageDispatcherTest implements ImageMessageEventListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageDispatcherTest.class);
+
+
+    @Test
+    void test1_constructor() {
+        Assertions.assertFalse(new MessageDispatcher().isAsynchronous());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new MessageDispatcher(0));
+    }
+
+    @Test
+    void test1_addEventListener() {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+
+        Assertions.assertFalse(dispatcher.addEventListener(null));
+        Assertions.assertTrue(dispatcher.addEventListener(this));
+        Assertions.assertFalse(dispatcher.addEventListener(this));
+        Assertions.assertTrue(dispatcher.hasEventListener(this));
+
+        Assertions.assertTrue(dispatcher.removeEventListener(this));
+        Assertions.assertFalse(dispatcher.hasEventListener(this));
+    }
+
+    @Test
+    @DisplayName("listeners registered and removed from many threads at once are neither lost nor registered twice")
+    void test2_addEventListener() throws InterruptedException {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        List<MessageRecorder> listeners = new ArrayList<>();
+        AtomicInteger added = new AtomicInteger();
+        AtomicInteger removed = new AtomicInteger();
+        CountDownLatch registered = new CountDownLatch(4);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            listeners.add(new MessageRecorder(0L));
+        }
+
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                for (MessageRecorder listener : listeners) {
+                    if (dispatcher.addProgressListener(listener)) {
+                        added.incrementAndGet();
+                    }
+                }
+
+                registered.countDown();
+
+                try {
+                    registered.await();
+
+                } catch (InterruptedException ie) {
+                    return;
+                }
+
+                for (int j = 0; j < listeners.size(); j += 2) {
+                    if (dispatcher.removeEventListener(listeners.get(j))) {
+                        removed.incrementAndGet();
+                    }
+                }
+            });
+
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Assertions.assertEquals(100, added.get());
+        Assertions.assertEquals(50, removed.get());
+        Assertions.assertEquals(50, dispatcher.getEventListeners().size());
+        Assertions.assertEquals(50, dispatcher.getProgressListeners().size());
+        Assertions.assertTrue(dispatcher.hasProgressListeners());
+    }
+
+    @Test
+    @DisplayName("a synchronous dispatcher delivers on the caller's thread, once to a source that is also a listener")
+    void test1_dispatch() {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        MessageRecorder source = new MessageRecorder(0L);
+        MessageRecorder listener = new MessageRecorder(0L);
+
+        dispatcher.addEventListener(source);
+        dispatcher.addEventListener(listener);
+        dispatcher.dispatch(newEvent(source), newMessage(source));
+
+        Assertions.assertEquals(1, source.getThreads().size());
+        Assertions.assertEquals(Thread.currentThread(), listener.getThreads().get(0));
+    }
+
+    @Test
+    @DisplayName("an asynchronous dispatcher is not held up by a slow listener, which drops the newest messages")
+    void test2_dispatch() throws InterruptedException {
+        MessageDispatcher dispatcher = new MessageDispatcher(2);
+        MessageRecorder slow = new MessageRecorder(200L);
+        MessageRecorder source = new MessageRecorder(0L);
+
+        dispatcher.addEventListener(slow, DeliveryPolicy.DROP_NEWEST);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(newEvent(source), newMessage(source));
+        }
+
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200L);
+        Assertions.assertTrue(dispatcher.getDropped() >= 7);
+
+        //every source still gets its message
+        Assertions.assertTrue(source.await(10, 5000L));
+        Assertions.assertNotEquals(Thread.currentThread(), source.getThreads().get(0));
+
+        dispatcher.close();
+    }
+
+    @Test
+    @DisplayName("a listener that drops the oldest messages gets the latest one")
+    void test3_dispatch() throws InterruptedException {
+        MessageDispatcher dispatcher = new MessageDispatcher(1);
+        MessageRecorder slow = new MessageRecorder(200L);
+
+        dispatcher.addEventListener(slow, DeliveryPolicy.DROP_OLDEST);
+        List<ImageMessageEvent> sent = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            ImageMessageEvent ime = newMessage(this);
+            sent.add(ime);
+            dispatcher.dispatch(newEvent(this), ime);
+        }
+
+        dispatcher.close();
+
+        Thread.sleep(1000L);
+        Assertions.assertEquals(sent.get(4), slow.getMessages().get(slow.getMessages().size() - 1));
+    }
+
+    @Test
+    @DisplayName("after closing messages are delivered on the caller's thread")
+    void test1_close() {
+        MessageDispatcher dispatcher = new MessageDispatcher(16);
+        MessageRecorder listener = new MessageRecorder(0L);
+
+        dispatcher.addEventListener(listener);
+        dispatcher.close();
+        Assertions.assertFalse(dispatcher.isAsynchronous());
+
+        dispatcher.dispatch(newEvent(this), newMessage(this));
+        Assertions.assertEquals(Thread.currentThread(), listener.getThreads().get(0));
+    }
+
+    @Test
+    @DisplayName("closing waits for buffered messages, later ones follow them in order")
+    void test2_close() {
+        MessageDispatcher dispatcher = new MessageDispatcher(8);
+        MessageRecorder slow = new MessageRecorder(50L);
+        List<ImageMessageEvent> sent = new ArrayList<>();
+
+        dispatcher.addEventListener(slow);
+
+        for (int i = 0; i < 5; i++) {
+            ImageMessageEvent ime = newMessage(this);
+            sent.add(ime);
+            dispatcher.dispatch(newEvent(this), ime);
+        }
+
+        dispatcher.close();
+        Assertions.assertEquals(sent, slow.getMessages());
+
+        ImageMessageEvent last = newMessage(this);
+        sent.add(last);
+        dispatcher.dispatch(newEvent(this), last);
+
+        Assertions.assertEquals(sent, slow.getMessages());
+        Assertions.assertEquals(Thread.currentThread(), slow.getThreads().get(5));
+        Assertions.assertNotEquals(Thread.currentThread(), slow.getThreads().get(4));
+    }
+
+    @Override
+    public void eventPerformed(final ImageMessageEvent ime) {
+        LOGGER.debug("received event {}", ime);
+    }
+
+    private static ImageProcessEvent newEvent(final ImageMessageEventListener source) {
+        return new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, source, null);
+    }
+
+    private static ImageMessageEvent newMessage(final ImageMessageEventListener source) {
+        return new ImageMessageEvent(source, ImageMessageEventType.OK, null, null);
+    }
+
+
+    static class MessageRecorder implements ImageMessageEventListener {
+        private final long delay;
+        private final List<ImageMessageEvent> messages = new ArrayList<>();
+        private final List<Thread> threads = new ArrayList<>();
+
+        MessageRecorder(final long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public void eventPerformed(final ImageMessageEvent event) {
+            try {
+                Thread.sleep(delay);
+
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+
+            synchronized (this) {
+                messages.add(event);
+                threads.add(Thread.currentThread());
+                notifyAll();
+            }
+        }
+
+        synchronized boolean await(final int count, final long timeout) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+
+            while (messages.size() < count && System.currentTimeMillis() < end) {
+                wait(10L);
+            }
+
+            return messages.size() >= count;
+        }
+
+        synchronized List<ImageMessageEvent> getMessages() {
+            return new ArrayList<>(messages);
+        }
+
+        synchronized List<Thread> getThreads() {
+            return new ArrayList<>(threads);
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.List;
+
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageCropTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageFileTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageFileTaskType;
+import ca.mikegabelmann.imageprocessor.tasks.ImageNullTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageResizeTask;
+import ca.mikegabelmann.imageprocessor.tasks.ResampleFilter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+class QueueJournalTest implements ImageMessageEventListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueueJournalTest.class);
+
+    @TempDir
+    File directory;
+
+
+    @Test
+    @DisplayName("waiting file events are replayed after a restart")
+    void test1_replay() throws Exception {
+        File in = new File(directory, "in.png");
+        File out = new File(directory, "out.png");
+        long deadline = System.currentTimeMillis() + 3_600_000L;
+
+        try (QueueJournal journal = new QueueJournal(directory)) {
+            Queue queue = new Queue();
+            queue.setJournal(journal);
+
+            ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, this, null,
+                    new ImageFileTask(ImageFileTaskType.PROCESS_GET_IMAGE, in, null),
+                    new ImageCropTask(new Rectangle(10, 20, 300, 400)),
+                    new ImageResizeTask(new Dimension(200, 100), ResampleFilter.LANCZOS3),
+                    new ImageFileTask(ImageFileTaskType.PROCESS_WRITE_IMAGE, null, out));
+            ipe.setDeadline(deadline);
+            queue.eventPerformed(ipe);
+
+            //holds an image so it cannot be replayed
+            queue.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, new BufferedImage(5, 5, BufferedImage.TYPE_INT_RGB)));
+
+            Assertions.assertEquals(1, journal.size());
+        }
+
+        try (QueueJournal journal = new QueueJournal(directory)) {
+            Queue queue = new Queue();
+            Assertions.assertEquals(1, journal.replay(queue, this));
+            Assertions.assertSame(journal, queue.getJournal());
+
+            ImageProcessEvent ipe = queue.getWork();
+            List<AbstractImageTask> tasks = ipe.getTasks();
+
+            Assertions.assertEquals(ImageProcessEventType.PRIORITY_HIGH, ipe.getPriority());
+            Assertions.assertEquals(deadline, ipe.getDeadline());
+            Assertions.assertEquals(4, tasks.size());
+            Assertions.assertEquals(in.getPath(), ((ImageFileTask) tasks.get(0)).getInputfile().getPath());
+            Assertions.assertEquals(new Rectangle(10, 20, 300, 400), ((ImageCropTask) tasks.get(1)).getRegion());
+            Assertions.assertEquals(200, ((ImageResizeTask) tasks.get(2)).getNewWidth());
+            Assertions.assertEquals(ResampleFilter.LANCZOS3, ((ImageResizeTask) tasks.get(2)).getFilter());
+            Assertions.assertEquals(out.getPath(), ((ImageFileTask) tasks.get(3)).getOutputfile().getPath());
+
+            //still waiting until it has been processed
+            Assertions.assertEquals(1, journal.size());
+            queue.completed(ipe);
+            Assertions.assertEquals(0, journal.size());
+        }
+
+        try (QueueJournal journal = new QueueJournal(directory)) {
+            Assertions.assertEquals(0, journal.replay(new Queue(), this));
+        }
+    }
+
+    @Test
+    @DisplayName("flushed events are not replayed")
+    void test2_replay() throws Exception {
+        try (QueueJournal journal = new QueueJournal(directory)) {
+            Queue queue = new Queue();
+            queue.setJournal(journal);
+
+            queue.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask()));
+            queue.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask()));
+            queue.flush(this);
+        }
+
+        try (QueueJournal journal = new QueueJournal(directory)) {
+            Assertions.assertEquals(0, journal.replay(new Queue(), this));
+        }
+    }
+
+    @Test
+    @DisplayName("events a full or closed queue refuses stay in the journal")
+    void test3_replay() throws Exception {
+        try (QueueJournal journal = new QueueJournal(directory)) {
+            Queue queue = new Queue();
+            queue.setJournal(journal);
+
+            for (int i = 0; i < 3; i++) {
+                queue.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask()));
+            }
+        }
+
+        try (QueueJournal journal = new QueueJournal(directory)) {
+            Queue full = new Queue(1, Long.MAX_VALUE, OverflowPolicy.REJECT);
+            Assertions.assertEquals(1, journal.replay(full, this));
+            Assertions.assertEquals(3, journal.size());
+
+            Queue closed = new Queue();
+            closed.close();
+            Assertions.assertEquals(0, journal.replay(closed, this));
+            Assertions.assertEquals(3, journal.size());
+        }
+
+        //the refused events are replayed again after a restart
+        try (QueueJournal journal = new QueueJournal(directory)) {
+            Assertions.assertEquals(3, journal.replay(new Queue(), this));
+        }
+    }
+
+    @Test
+    @DisplayName("segments are removed once their events are done")
+    void test1_compact() throws Exception {
+        try (QueueJournal journal = new QueueJournal(directory, 4096)) {
+            Queue queue = new Queue();
+            queue.setJournal(journal);
+
+            //keep one event waiting in the first segment
+            ImageProcessEvent first = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask(500L));
+            queue.eventPerformed(first);
+
+            for (int i = 0; i < 2000; i++) {
+                ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, this, null, new ImageNullTask());
+                queue.eventPerformed(ipe);
+                queue.completed(queue.getWork());
+            }
+
+            Assertions.assertTrue(journal.getSegments() <= 2, "segments " + journal.getSegments());
+            Assertions.assertEquals(1, journal.size());
+
+            //the files of removed segments are gone too
+            Assertions.assertEquals(journal.getSegments(), directory.list().length);
+        }
+
+        try (QueueJournal journal = new QueueJournal(directory, 4096)) {
+            Queue queue = new Queue();
+            Assertions.assertEquals(1, journal.replay(queue, this));
+            Assertions.assertEquals(500L, ((ImageNullTask) queue.getWork().getTasks().get(0)).getSleeptime());
+        }
+    }
+
+    @Override
+    public void eventPerformed(final ImageMessageEvent event) {
+        LOGGER.debug("received event {}", event);
+    }
+
+}
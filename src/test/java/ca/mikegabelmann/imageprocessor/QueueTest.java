@@ -1,12 +1,24 @@
 package ca.mikegabelmann.imageprocessor;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
 
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
 import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import ca.mikegabelmann.imageprocessor.tasks.ImageNullTask;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -47,6 +59,42 @@ class QueueTest implements ImageMessageEventListener {
         Assertions.assertNotNull(work);
     }
 
+    @Test
+    @DisplayName("drain several events at once in priority order")
+    void test1_drainTo() {
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, image);
+        ImageProcessEvent ipe3 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, this, image);
+        queue.eventPerformed(ipe2);
+        queue.eventPerformed(ipe3);
+
+        List<ImageProcessEvent> batch = new ArrayList<>();
+        Assertions.assertEquals(2, queue.drainTo(batch, 2));
+        Assertions.assertEquals(List.of(ipe3, ipe), batch);
+        Assertions.assertEquals(1, queue.numElements());
+
+        Assertions.assertEquals(1, queue.drainTo(batch, 10));
+        Assertions.assertEquals(ipe2, batch.get(2));
+        Assertions.assertFalse(queue.hasElements());
+    }
+
+    @Test
+    @DisplayName("returned events go back to the front of their lanes")
+    void test1_returnWork() {
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, image);
+        ImageProcessEvent ipe3 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, image);
+        queue.eventPerformed(ipe2);
+        queue.eventPerformed(ipe3);
+
+        List<ImageProcessEvent> batch = new ArrayList<>();
+        queue.drainTo(batch, 2);
+        queue.returnWork(batch);
+
+        Assertions.assertEquals(3, queue.numElements());
+        Assertions.assertEquals(ipe, queue.getWork());
+        Assertions.assertEquals(ipe2, queue.getWork());
+        Assertions.assertEquals(ipe3, queue.getWork());
+    }
+
     @Test
     void test1_flushAll() {
         this.addEvents();
@@ -71,6 +119,99 @@ class QueueTest implements ImageMessageEventListener {
         Assertions.assertEquals(1, queue.numElements());
     }
 
+    @Test
+    @DisplayName("flush keeps the order of the remaining events")
+    void test3_flush() {
+        ImageMessageEventListener tmpListener = event -> {};
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, tmpListener, image);
+        ImageProcessEvent ipe3 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, image);
+        ImageProcessEvent ipe4 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, tmpListener, image);
+
+        queue.eventPerformed(ipe2);
+        queue.eventPerformed(ipe3);
+        queue.eventPerformed(ipe4);
+
+        queue.flush(this);
+        Assertions.assertEquals(2, queue.numElements());
+        Assertions.assertEquals(ipe2, queue.getWork());
+        Assertions.assertEquals(ipe4, queue.getWork());
+    }
+
+    @Test
+    @DisplayName("flushed events are skipped by processors without disturbing other events")
+    void test4_flush() {
+        ImageMessageEventListener tmpListener = event -> {};
+        List<ImageProcessEvent> others = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            queue.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, image));
+
+            if (i % 100 == 0) {
+                ImageProcessEvent other = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, tmpListener, image);
+                others.add(other);
+                queue.eventPerformed(other);
+            }
+        }
+
+        queue.flush(this);
+        Assertions.assertEquals(others.size(), queue.numElements());
+        Assertions.assertEquals(others.size() * 50L * 50 * 4, queue.numBytes());
+
+        List<ImageProcessEvent> batch = new ArrayList<>();
+
+        while (queue.hasElements()) {
+            queue.drainTo(batch, 4);
+        }
+
+        Assertions.assertEquals(others, batch);
+    }
+
+    @Test
+    @DisplayName("events of one source added and taken at the same time can all still be flushed")
+    void test5_flush() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 2500;
+        final ConcurrentLinkedQueue<ImageProcessEvent> added = new ConcurrentLinkedQueue<>();
+        final Set<ImageProcessEvent> seen = ConcurrentHashMap.newKeySet();
+
+        queue.flushAll();
+
+        Thread[] threads = new Thread[producers * 2];
+
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < perProducer; j++) {
+                    ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null);
+                    added.add(ipe);
+                    queue.eventPerformed(ipe);
+                }
+            });
+
+            //take half, so the source keeps running out of waiting events
+            threads[producers + i] = new Thread(() -> {
+                for (int j = 0; j < perProducer / 2; j++) {
+                    seen.add(queue.getWork());
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join(10000L);
+        }
+
+        queue.flush(this);
+
+        Assertions.assertEquals(0, queue.numElements());
+
+        for (ImageProcessEvent ipe : added) {
+            Assertions.assertTrue(seen.contains(ipe) != ipe.getResult().isCancelled());
+        }
+    }
+
     @Test
     @DisplayName("flushing null should not do anything")
     void test2_flush() {
@@ -109,6 +250,532 @@ class QueueTest implements ImageMessageEventListener {
         Assertions.assertEquals(ipe4, queue.getWork());
     }
 
+    @Test
+    @DisplayName("events with the same priority are handed out in the order they were added")
+    void test3_eventPerformed() {
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, this, image);
+        ImageProcessEvent ipe3 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, this, image);
+        ImageProcessEvent ipe4 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, image);
+        ImageProcessEvent ipe5 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, image);
+
+        queue.eventPerformed(ipe2);
+        queue.eventPerformed(ipe3);
+        queue.eventPerformed(ipe4);
+        queue.eventPerformed(ipe5);
+
+        Assertions.assertEquals(ipe2, queue.getWork());
+        Assertions.assertEquals(ipe3, queue.getWork());
+        Assertions.assertEquals(ipe, queue.getWork());
+        Assertions.assertEquals(ipe5, queue.getWork());
+        Assertions.assertEquals(ipe4, queue.getWork());
+        Assertions.assertFalse(queue.hasElements());
+    }
+
+    @Test
+    @DisplayName("many producers and consumers do not lose or duplicate events")
+    void test4_eventPerformed() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 2500;
+        final Set<ImageProcessEvent> seen = ConcurrentHashMap.newKeySet();
+
+        queue.flushAll();
+
+        Thread[] threads = new Thread[producers * 2];
+
+        for (int i = 0; i < producers; i++) {
+            final ImageProcessEventType type = ImageProcessEventType.values()[i % ImageProcessEventType.values().length];
+
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < perProducer; j++) {
+                    queue.eventPerformed(new ImageProcessEvent(type, this, null));
+                }
+            });
+
+            threads[producers + i] = new Thread(() -> {
+                for (int j = 0; j < perProducer; j++) {
+                    seen.add(queue.getWork());
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join(10000L);
+        }
+
+        Assertions.assertEquals(producers * perProducer, seen.size());
+        Assertions.assertEquals(0, queue.numElements());
+    }
+
+    @Test
+    @DisplayName("a full queue rejects new events with an error message")
+    void test1_overflow() {
+        ImageMessageEventCounter counter = new ImageMessageEventCounter();
+        Queue bounded = new Queue(2, Long.MAX_VALUE, OverflowPolicy.REJECT);
+
+        Assertions.assertTrue(bounded.offer(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, null)));
+        Assertions.assertTrue(bounded.offer(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, null)));
+        Assertions.assertFalse(bounded.offer(new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, counter, null)));
+
+        Assertions.assertEquals(2, bounded.numElements());
+        Assertions.assertEquals(1, counter.getCount());
+    }
+
+    @Test
+    @DisplayName("a full queue evicts the oldest low priority event")
+    void test2_overflow() {
+        ImageMessageEventCounter counter = new ImageMessageEventCounter();
+        Queue bounded = new Queue(2, Long.MAX_VALUE, OverflowPolicy.EVICT_OLDEST_LOW);
+        ImageProcessEvent low1 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, null);
+        ImageProcessEvent low2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, null);
+        ImageProcessEvent high = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, counter, null);
+
+        bounded.eventPerformed(low1);
+        bounded.eventPerformed(low2);
+        Assertions.assertTrue(bounded.offer(high));
+
+        Assertions.assertEquals(1, counter.getCount());
+        Assertions.assertEquals(2, bounded.numElements());
+        Assertions.assertEquals(high, bounded.getWork());
+        Assertions.assertEquals(low2, bounded.getWork());
+        Assertions.assertFalse(bounded.hasElements());
+    }
+
+    @Test
+    @DisplayName("a full queue blocks producers until the timeout elapses")
+    void test3_overflow() {
+        ImageMessageEventCounter counter = new ImageMessageEventCounter();
+        Queue bounded = new Queue(1, Long.MAX_VALUE, OverflowPolicy.BLOCK);
+        bounded.setBlockTimeout(200L);
+
+        bounded.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, null));
+
+        long t = System.currentTimeMillis();
+        Assertions.assertFalse(bounded.offer(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, null)));
+        Assertions.assertTrue(System.currentTimeMillis() - t >= 200L);
+        Assertions.assertEquals(1, counter.getCount());
+    }
+
+    @Test
+    @DisplayName("a blocked producer continues once a consumer frees space")
+    void test4_overflow() throws InterruptedException {
+        ImageMessageEventCounter counter = new ImageMessageEventCounter();
+        Queue bounded = new Queue(1, Long.MAX_VALUE, OverflowPolicy.BLOCK);
+        bounded.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, null));
+
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(100L);
+            } catch (InterruptedException ie) {
+                //ignore
+            }
+
+            bounded.getWork();
+        });
+        consumer.start();
+
+        Assertions.assertTrue(bounded.offer(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, null)));
+        consumer.join();
+
+        Assertions.assertEquals(0, counter.getCount());
+        Assertions.assertEquals(1, bounded.numElements());
+    }
+
+    @Test
+    @DisplayName("the byte capacity counts image memory")
+    void test5_overflow() {
+        ImageMessageEventCounter counter = new ImageMessageEventCounter();
+        Queue bounded = new Queue(100, 50L * 50 * 4, OverflowPolicy.REJECT);
+
+        Assertions.assertTrue(bounded.offer(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, image)));
+        Assertions.assertEquals(50L * 50 * 4, bounded.numBytes());
+        Assertions.assertFalse(bounded.offer(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, image)));
+
+        bounded.getWork();
+        Assertions.assertEquals(0L, bounded.numBytes());
+    }
+
+    @Test
+    @DisplayName("work stealing keeps priority order")
+    void test1_workStealing() {
+        Queue stealing = new Queue(QueueMode.WORK_STEALING);
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, image);
+        ImageProcessEvent ipe3 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, this, image);
+        ImageProcessEvent ipe4 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, image);
+
+        stealing.eventPerformed(ipe2);
+        stealing.eventPerformed(ipe3);
+        stealing.eventPerformed(ipe4);
+
+        Assertions.assertEquals(QueueMode.WORK_STEALING, stealing.getMode());
+        Assertions.assertEquals(ipe3, stealing.getWork());
+        Assertions.assertEquals(ipe4, stealing.getWork());
+        Assertions.assertEquals(ipe2, stealing.getWork());
+    }
+
+    @Test
+    @DisplayName("work stealing processors share all the work")
+    void test2_workStealing() throws InterruptedException {
+        final int workers = 4;
+        final int events = 10000;
+        final Queue stealing = new Queue(QueueMode.WORK_STEALING);
+        final Set<ImageProcessEvent> seen = ConcurrentHashMap.newKeySet();
+        final AtomicInteger remaining = new AtomicInteger(events);
+
+        Thread[] threads = new Thread[workers];
+
+        for (int i = 0; i < workers; i++) {
+            threads[i] = new Thread(() -> {
+                List<ImageProcessEvent> batch = new ArrayList<>();
+
+                while (remaining.get() > 0) {
+                    batch.clear();
+                    int n = stealing.drainTo(batch, 8);
+                    seen.addAll(batch);
+                    remaining.addAndGet(-n);
+                }
+            });
+            threads[i].start();
+        }
+
+        for (int i = 0; i < events; i++) {
+            stealing.eventPerformed(new ImageProcessEvent(ImageProcessEventType.values()[i % 3], this, null));
+        }
+
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        while (remaining.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+
+        //workers left waiting on an empty queue
+        for (Thread t : threads) {
+            t.interrupt();
+            t.join(1000L);
+        }
+
+        Assertions.assertEquals(events, seen.size());
+        Assertions.assertEquals(0, stealing.numElements());
+    }
+
+    @Test
+    @DisplayName("a worker that leaves has its lanes dropped and its work handed on")
+    void test3_workStealing() throws Exception {
+        final Queue stealing = new Queue(QueueMode.WORK_STEALING);
+        final WorkStealingStore store = (WorkStealingStore) stealing.getStore();
+        ImageProcessEvent ipe1 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, image);
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, image);
+        ImageProcessEvent ipe3 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, image);
+        stealing.eventPerformed(ipe1);
+
+        //the worker adds work to its own lanes, then leaves
+        Thread worker = new Thread(() -> {
+            stealing.enter();
+            stealing.getWork();
+            stealing.eventPerformed(ipe2);
+            stealing.eventPerformed(ipe3);
+            stealing.leave();
+        });
+        worker.start();
+        worker.join(5000L);
+
+        Assertions.assertEquals(0, store.getWorkers());
+        Assertions.assertEquals(0, stealing.getConsumers());
+        stealing.enter();
+        Assertions.assertEquals(1, stealing.getConsumers());
+        Assertions.assertEquals(ipe2, stealing.getWork());
+        Assertions.assertEquals(ipe3, stealing.getWork());
+        stealing.leave();
+
+        //a parked worker is woken by new work
+        List<ImageProcessEvent> taken = new ArrayList<>();
+        Thread parked = new Thread(() -> taken.add(stealing.getWork()));
+        parked.start();
+        Thread.sleep(100L);
+        stealing.eventPerformed(ipe1);
+        parked.join(5000L);
+
+        Assertions.assertFalse(parked.isAlive());
+        Assertions.assertEquals(List.of(ipe1), taken);
+    }
+
+    @Test
+    @DisplayName("flushing a work stealing queue does not give the caller lanes of its own")
+    void test4_workStealing() {
+        final Queue stealing = new Queue(QueueMode.WORK_STEALING);
+        final WorkStealingStore store = (WorkStealingStore) stealing.getStore();
+        ImageProcessEvent ipe1 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, image);
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, this, image);
+        ImageProcessEvent ipe3 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, image);
+        stealing.eventPerformed(ipe1);
+        stealing.eventPerformed(ipe2);
+
+        stealing.flushAll();
+
+        Assertions.assertEquals(0, store.getWorkers());
+        Assertions.assertEquals(0, stealing.numElements());
+        Assertions.assertTrue(ipe1.getResult().isCancelled());
+        Assertions.assertTrue(ipe2.getResult().isCancelled());
+
+        //the placeholders left behind are skipped
+        stealing.eventPerformed(ipe3);
+        Assertions.assertEquals(ipe3, stealing.getWork());
+        stealing.leave();
+    }
+
+    @Test
+    @DisplayName("deadline mode hands out the earliest deadline first")
+    void test1_deadline() {
+        Queue edf = new Queue(QueueMode.DEADLINE);
+        long now = System.currentTimeMillis();
+
+        ImageProcessEvent none = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, this, image);
+        ImageProcessEvent later = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, image);
+        later.setDeadline(now + 20000L);
+        ImageProcessEvent sooner = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, image);
+        sooner.setDeadline(now + 10000L);
+
+        edf.eventPerformed(none);
+        edf.eventPerformed(later);
+        edf.eventPerformed(sooner);
+
+        Assertions.assertEquals(sooner, edf.getWork());
+        Assertions.assertEquals(later, edf.getWork());
+        Assertions.assertEquals(none, edf.getWork());
+    }
+
+    @Test
+    @DisplayName("expired events are dropped with an expired message and counted")
+    void test2_deadline() {
+        ImageMessageEventCounter counter = new ImageMessageEventCounter();
+        Queue edf = new Queue(QueueMode.DEADLINE);
+
+        ImageProcessEvent expired = new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, counter, image);
+        expired.setDeadline(System.currentTimeMillis() - 1L);
+        ImageProcessEvent live = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, counter, image);
+        live.setTimeToLive(10000L);
+
+        edf.eventPerformed(expired);
+        edf.eventPerformed(live);
+
+        Assertions.assertEquals(live, edf.getWork());
+        Assertions.assertEquals(1, counter.getCount());
+        Assertions.assertEquals(1L, edf.getDeadlineMisses());
+        Assertions.assertFalse(edf.hasElements());
+    }
+
+    @Test
+    @DisplayName("fair share lets a quiet source through ahead of a noisy one")
+    void test1_fairShare() {
+        ImageMessageEventListener noisy = event -> {};
+        ImageMessageEventListener quiet = event -> {};
+        Queue fair = new Queue(QueueMode.FAIR_SHARE);
+
+        for (int i = 0; i < 100; i++) {
+            fair.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_HIGH, noisy, null));
+        }
+
+        ImageProcessEvent q1 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, quiet, null);
+        fair.eventPerformed(q1);
+
+        //the quiet source must not wait for all 100 noisy events
+        int position = 0;
+
+        while (fair.getWork() != q1) {
+            position++;
+        }
+
+        Assertions.assertTrue(position <= 2, "quiet event handed out at position " + position);
+    }
+
+    @Test
+    @DisplayName("fair share hands out work in proportion to the weights")
+    void test2_fairShare() {
+        ImageMessageEventListener heavy = event -> {};
+        ImageMessageEventListener light = event -> {};
+        Queue fair = new Queue(QueueMode.FAIR_SHARE);
+        fair.setMaxWait(60000L);
+        fair.setSourceWeight(heavy, 3);
+
+        for (int i = 0; i < 100; i++) {
+            fair.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, heavy, null));
+            fair.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, light, null));
+        }
+
+        int heavyCount = 0;
+
+        for (int i = 0; i < 40; i++) {
+            if (fair.getWork().getSource() == heavy) {
+                heavyCount++;
+            }
+        }
+
+        Assertions.assertEquals(30, heavyCount);
+    }
+
+    @Test
+    @DisplayName("fair share serves a source that waited too long")
+    void test3_fairShare() throws InterruptedException {
+        ImageMessageEventListener heavy = event -> {};
+        ImageMessageEventListener light = event -> {};
+        Queue fair = new Queue(QueueMode.FAIR_SHARE);
+        fair.setSourceWeight(heavy, 1000);
+        fair.setMaxWait(50L);
+
+        for (int i = 0; i < 2000; i++) {
+            fair.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, heavy, null));
+        }
+
+        fair.eventPerformed(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, light, null));
+        ImageProcessEvent aged = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, light, null);
+        fair.eventPerformed(aged);
+
+        //both sources start level, after that light has used up its share for a long time
+        Assertions.assertEquals(heavy, fair.getWork().getSource());
+        Assertions.assertEquals(light, fair.getWork().getSource());
+        Assertions.assertEquals(heavy, fair.getWork().getSource());
+
+        Thread.sleep(60L);
+        Assertions.assertEquals(aged, fair.getWork());
+    }
+
+    @Test
+    @DisplayName("identical events are processed once")
+    void test1_coalesce() throws Exception {
+        queue.setCoalescing(true);
+        queue.getWork();
+
+        ImageMessageEventCounter other = new ImageMessageEventCounter();
+        ImageProcessEvent ipe1 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask(200L));
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, other, null, new ImageNullTask(200L));
+        ImageProcessEvent ipe3 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask(300L));
+        queue.eventPerformed(ipe1);
+        queue.eventPerformed(ipe2);
+        queue.eventPerformed(ipe3);
+
+        Assertions.assertEquals(3, queue.numElements());
+        Assertions.assertEquals(1, queue.getCoalesced());
+
+        List<ImageProcessEvent> batch = new ArrayList<>();
+        Assertions.assertEquals(2, queue.drainTo(batch, 10));
+        Assertions.assertEquals(List.of(ipe1, ipe3), batch);
+        Assertions.assertEquals(List.of(ipe2), queue.getFollowers(ipe1));
+        Assertions.assertFalse(queue.hasElements());
+
+        queue.completed(ipe1);
+        Assertions.assertTrue(queue.getFollowers(ipe1).isEmpty());
+    }
+
+    @Test
+    @DisplayName("events that hold an image or have a deadline are not combined")
+    void test2_coalesce() throws Exception {
+        queue.setCoalescing(true);
+
+        ImageProcessEvent ipe1 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, this, image);
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask());
+        ImageProcessEvent ipe3 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask());
+        ipe3.setTimeToLive(60000L);
+        queue.eventPerformed(ipe1);
+        queue.eventPerformed(ipe2);
+        queue.eventPerformed(ipe3);
+
+        Assertions.assertEquals(0, queue.getCoalesced());
+        Assertions.assertEquals(4, queue.numElements());
+    }
+
+    @Test
+    @DisplayName("empty task slots are skipped when combining events")
+    void test4_coalesce() throws Exception {
+        queue.setCoalescing(true);
+        queue.getWork();
+
+        ImageMessageEventCounter other = new ImageMessageEventCounter();
+        ImageProcessEvent ipe1 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null);
+        ipe1.addTask(new ImageNullTask(200L));
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, other, null, new ImageNullTask(200L));
+        queue.eventPerformed(ipe1);
+        queue.eventPerformed(ipe2);
+
+        Assertions.assertEquals(1, queue.getCoalesced());
+        Assertions.assertSame(ipe1, queue.getWork());
+        Assertions.assertEquals(List.of(ipe2), queue.getFollowers(ipe1));
+
+        //an event with nothing but empty slots is not combined
+        Assertions.assertNull(Queue.signature(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null)));
+    }
+
+    @Test
+    @DisplayName("flushing the first of identical events keeps the others")
+    void test3_coalesce() throws Exception {
+        queue.setCoalescing(true);
+        queue.getWork();
+
+        ImageMessageEventCounter other = new ImageMessageEventCounter();
+        ImageProcessEvent ipe1 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask());
+        ImageProcessEvent ipe2 = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, other, null, new ImageNullTask());
+        queue.eventPerformed(ipe1);
+        queue.eventPerformed(ipe2);
+
+        queue.flush(this);
+
+        Assertions.assertEquals(1, queue.numElements());
+        Assertions.assertSame(ipe2, queue.getWork());
+        Assertions.assertTrue(queue.getFollowers(ipe2).isEmpty());
+    }
+
+    @Test
+    @DisplayName("submitted events complete their result when processed")
+    void test1_submit() throws Exception {
+        ImageProcessor ip = new ImageProcessor(queue);
+        Thread t = ImageProcessor.getRunningInstance(ip);
+
+        List<CompletableFuture<ImageMessageEvent>> results = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            results.add(queue.submit(ImageProcessEventType.PRIORITY_LOW, null, new ImageNullTask()));
+        }
+
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(10L, TimeUnit.SECONDS);
+
+        for (CompletableFuture<ImageMessageEvent> result : results) {
+            Assertions.assertEquals(ImageMessageEventType.OK, result.get().getStatus());
+        }
+
+        ip.stopRunning();
+        t.interrupt();
+    }
+
+    @Test
+    @DisplayName("the result of a flushed event is cancelled, a rejected one fails")
+    void test2_submit() throws Exception {
+        CompletableFuture<ImageMessageEvent> result = queue.submit(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask()));
+        queue.flush(this);
+        Assertions.assertTrue(result.isCancelled());
+
+        queue.setMaxEvents(1);
+        queue.setOverflowPolicy(OverflowPolicy.REJECT);
+        queue.eventPerformed(ipe);
+
+        CompletableFuture<BufferedImage> image = queue.submitForImage(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask()));
+        ExecutionException ee = Assertions.assertThrows(ExecutionException.class, image::get);
+        Assertions.assertTrue(ee.getCause() instanceof ImageProcessorException);
+    }
+
+    @Test
+    @DisplayName("a closed queue rejects new events but still hands out the waiting ones")
+    void test1_close() throws Exception {
+        queue.close();
+        Assertions.assertTrue(queue.isClosed());
+
+        CompletableFuture<ImageMessageEvent> result = queue.submit(new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask()));
+        Assertions.assertEquals(ImageMessageEventType.ERROR, result.get(1L, TimeUnit.SECONDS).getStatus());
+        Assertions.assertEquals(1, queue.numElements());
+        Assertions.assertEquals(ipe, queue.getWork());
+    }
+
     @Test
     void test1_hasElements() {
         if (! queue.hasElements()) {
@@ -139,4 +806,19 @@ class QueueTest implements ImageMessageEventListener {
         LOGGER.debug("received event {}", ime);
     }
 
+
+    static class ImageMessageEventCounter implements ImageMessageEventListener {
+        private int count = 0;
+
+        @Override
+        public synchronized void eventPerformed(ImageMessageEvent event) {
+            LOGGER.debug("received event {}", event);
+            count += 1;
+        }
+
+        public synchronized int getCount() {
+            return count;
+        }
+    }
+
 }
@@ -0,0 +1,152 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.tasks.ImageNullTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+
+class ResultPublisherTest {
+    private ResultPublisher publisher;
+    private Queue queue;
+    private ImageProcessor processor;
+
+
+    @BeforeEach
+    void setUp() {
+        this.publisher = new ResultPublisher();
+        this.queue = new Queue();
+        this.processor = new ImageProcessor(queue);
+        this.processor.setPublisher(publisher);
+    }
+
+    @AfterEach
+    void tearDown() {
+        processor.stopRunning();
+        publisher.close();
+    }
+
+    @Test
+    void test1_subscribe() {
+        Assertions.assertThrows(NullPointerException.class, () -> publisher.subscribe(null));
+
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        Assertions.assertNotNull(recorder.subscription);
+        Assertions.assertEquals(1, publisher.getSubscribers());
+        Assertions.assertTrue(processor.hasEventListener(publisher));
+    }
+
+    @Test
+    @DisplayName("asking for nothing is an error and ends the subscription")
+    void test1_request() {
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.subscription.request(0L);
+
+        Assertions.assertTrue(recorder.error instanceof IllegalArgumentException);
+        Assertions.assertEquals(0, publisher.getSubscribers());
+    }
+
+    @Test
+    @DisplayName("events only leave the queue as fast as the subscriber asks for results")
+    void test2_request() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            queue.offer(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, ime -> {}, null, new ImageNullTask()));
+        }
+
+        Thread t = new Thread(processor);
+        t.start();
+
+        Thread.sleep(200L);
+        Assertions.assertEquals(10, queue.numElements());
+
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.subscription.request(3L);
+
+        Assertions.assertTrue(recorder.await(3, 5000L));
+        Thread.sleep(200L);
+        Assertions.assertEquals(3, recorder.messages.size());
+        Assertions.assertEquals(7, queue.numElements());
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        Assertions.assertTrue(recorder.await(10, 5000L));
+        Assertions.assertEquals(ImageMessageEventType.OK, recorder.messages.get(9).getStatus());
+    }
+
+    @Test
+    @DisplayName("closing sends what is buffered, then completes")
+    void test1_close() {
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        publisher.eventPerformed(ImageMessageEvent.createErrorEvent(ime -> {}, "one"));
+        publisher.close();
+
+        Assertions.assertTrue(recorder.messages.isEmpty());
+        Assertions.assertFalse(recorder.completed);
+
+        recorder.subscription.request(1L);
+        Assertions.assertEquals(1, recorder.messages.size());
+        Assertions.assertTrue(recorder.completed);
+
+        Recorder late = new Recorder();
+        publisher.subscribe(late);
+        Assertions.assertTrue(late.completed);
+    }
+
+
+    /**
+     * Records what it is sent.
+     */
+    private static final class Recorder implements Flow.Subscriber<ImageMessageEvent> {
+        private final List<ImageMessageEvent> messages = new CopyOnWriteArrayList<>();
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable error;
+        private volatile boolean completed;
+
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(final ImageMessageEvent item) {
+            messages.add(item);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            this.error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            this.completed = true;
+        }
+
+        boolean await(final int count, final long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+
+            while (messages.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+
+            return messages.size() >= count;
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package ca.mikegabelmann.imageprocessor;
+
+import java.util.concurrent.TimeUnit;
+
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageMessageEventType;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
+import ca.mikegabelmann.imageprocessor.tasks.ImageNullTask;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+class WatchdogTest implements ImageMessageEventListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WatchdogTest.class);
+
+    private Watchdog watchdog;
+
+    private ImageProcessor ip;
+
+
+    @BeforeEach
+    void setUp() {
+        this.watchdog = new Watchdog();
+        this.ip = new ImageProcessor();
+        this.ip.setWatchdog(watchdog);
+    }
+
+    @Test
+    void test1_setBudget() {
+        watchdog.setBudget(AbstractImageTask.class, 100L);
+        watchdog.setBudget(ImageNullTask.class, 200L);
+
+        Assertions.assertEquals(200L, watchdog.getBudget(new ImageNullTask()));
+        Assertions.assertEquals(100L, watchdog.getBudget(new StuckTask(0L)));
+
+        watchdog.setBudget(AbstractImageTask.class, Watchdog.NO_BUDGET);
+        Assertions.assertEquals(Watchdog.NO_BUDGET, watchdog.getBudget(new StuckTask(0L)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> watchdog.setBudget(null, 100L));
+    }
+
+    @Test
+    @DisplayName("an event that runs over its budget is interrupted and times out")
+    void test1_eventBudget() throws Exception {
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask(5000L), new ImageNullTask());
+        ipe.setBudget(200L);
+
+        long start = System.nanoTime();
+        ip.processEvent(ipe);
+
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000L);
+        Assertions.assertEquals(ImageMessageEventType.TIMEOUT, ipe.getResult().get().getStatus());
+        Assertions.assertEquals(1L, watchdog.getTimeouts());
+        Assertions.assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    @DisplayName("a task that runs over the budget of its type times out, others are unaffected")
+    void test1_taskBudget() throws Exception {
+        watchdog.setBudget(ImageNullTask.class, 150L);
+
+        ImageProcessEvent slow = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask(5000L));
+        ip.processEvent(slow);
+        Assertions.assertEquals(ImageMessageEventType.TIMEOUT, slow.getResult().get().getStatus());
+
+        ImageProcessEvent fast = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new ImageNullTask());
+        ip.processEvent(fast);
+        Assertions.assertEquals(ImageMessageEventType.OK, fast.getResult().get().getStatus());
+    }
+
+    @Test
+    @DisplayName("a task that ignores the interrupt is abandoned and the event answered straight away")
+    void test1_abandon() throws Exception {
+        watchdog.setGrace(100L);
+
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_LOW, this, null, new StuckTask(2000L));
+        ipe.setBudget(100L);
+
+        Thread t = new Thread(() -> ip.processEvent(ipe));
+        t.start();
+
+        ImageMessageEvent ime = ipe.getResult().get(1500L, TimeUnit.MILLISECONDS);
+
+        Assertions.assertEquals(ImageMessageEventType.TIMEOUT, ime.getStatus());
+        Assertions.assertTrue(t.isAlive());
+        Assertions.assertTrue(ip.isAbandoned());
+        Assertions.assertEquals(1L, watchdog.getAbandoned());
+
+        t.join(5000L);
+    }
+
+    @Override
+    public void eventPerformed(final ImageMessageEvent ime) {
+        LOGGER.debug("received event {}", ime);
+    }
+
+
+    /** Keeps working when interrupted, like a read of a corrupt file. */
+    static class StuckTask extends AbstractImageTask {
+        private final long time;
+
+        StuckTask(final long time) {
+            super("stuck");
+            this.time = time;
+        }
+
+        @Override
+        public void processTask(final ImageProcessEvent ipe) {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(time);
+
+            while (System.nanoTime() < end) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+}
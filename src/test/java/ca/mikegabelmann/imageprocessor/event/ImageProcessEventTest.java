@@ -2,9 +2,11 @@ package ca.mikegabelmann.imageprocessor.event;
 
 import java.awt.image.BufferedImage;
 
+import ca.mikegabelmann.imageprocessor.events.CancellationToken;
 import ca.mikegabelmann.imageprocessor.events.ImageMessageEvent;
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
 import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.events.TaskBranch;
 import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
 import ca.mikegabelmann.imageprocessor.tasks.AbstractImageTask;
 import ca.mikegabelmann.imageprocessor.tasks.ImageNullTask;
@@ -96,6 +98,57 @@ class ImageProcessEventTest implements ImageMessageEventListener {
     }
 
 
+    @Test
+    public void isCancelled() {
+        Assertions.assertFalse(event.isCancelled());
+
+        CancellationToken token = new CancellationToken();
+        event.setCancellationToken(token);
+        Assertions.assertFalse(event.isCancelled());
+
+        token.cancel();
+        Assertions.assertTrue(event.isCancelled());
+    }
+
+    @Test
+    public void isExpired() {
+        Assertions.assertFalse(event.hasDeadline());
+        Assertions.assertFalse(event.isExpired());
+
+        event.setTimeToLive(10000L);
+        Assertions.assertTrue(event.hasDeadline());
+        Assertions.assertFalse(event.isExpired());
+
+        event.setDeadline(System.currentTimeMillis() - 1L);
+        Assertions.assertTrue(event.isExpired());
+    }
+
+    @Test
+    public void reply() {
+        Assertions.assertFalse(event.getResult().isDone());
+
+        ImageMessageEvent ok = ImageMessageEvent.createOkEvent(this, null);
+        event.reply(ok);
+        event.reply(ImageMessageEvent.createErrorEvent(this, "second"));
+
+        Assertions.assertSame(ok, event.getResult().join());
+    }
+
+    @Test
+    public void addBranch() {
+        Assertions.assertFalse(event.hasBranches());
+
+        TaskBranch branch = event.addBranch(new ImageNullTask(), null);
+        branch.addBranch(new ImageNullTask());
+        branch.addBranch(new ImageNullTask());
+        event.addBranch(new ImageNullTask());
+
+        Assertions.assertTrue(event.hasBranches());
+        Assertions.assertEquals(2, event.getBranches().size());
+        Assertions.assertEquals(1, branch.getTasks().size());
+        Assertions.assertEquals(2, branch.getOutputs());
+    }
+
     @Override
     public void eventPerformed(ImageMessageEvent ime) {
         LOGGER.debug("received ImageMessageEvent: {}", ime);
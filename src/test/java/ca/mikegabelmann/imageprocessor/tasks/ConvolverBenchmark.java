@@ -0,0 +1,79 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+
+/**
+ * <P>Compares Convolver with ConvolveOp. Not a unit test, run it by hand on an idle machine:</P>
+ *
+ * <PRE>
+ *     java -cp target/classes:target/test-classes ca.mikegabelmann.imageprocessor.tasks.ConvolverBenchmark [width] [height]
+ * </PRE>
+ *
+ * <P>Each kernel is run a few times to warm up, then the median of the timed runs is reported.</P>
+ */
+public final class ConvolverBenchmark {
+    //CONSTANTS
+    /** Untimed runs of each case. */
+    private static final int WARMUP = 5;
+
+    /** Timed runs of each case. */
+    private static final int RUNS = 11;
+
+
+    private ConvolverBenchmark() {}
+
+    public static void main(final String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+
+        BufferedImage image = ConvolverTest.randomImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        System.out.printf("%dx%d TYPE_INT_RGB, %d cores%n", width, height, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-24s %12s %12s %8s%n", "kernel", "ConvolveOp", "Convolver", "speedup");
+
+        run("gaussian 3x3", image, ImageKernelTask.GAUSSIAN_3x3_16);
+        run("sharpen 3x3", image, ImageKernelTask.SHARPEN_3x3_10);
+        run("box 9x9 (separable)", image, box(9));
+        run("box 15x15 (separable)", image, box(15));
+        run("skewed 4x3", image, ConvolverTest.SKEWED);
+    }
+
+    private static void run(final String name, final BufferedImage image, final Kernel kernel) {
+        ConvolveOp op = new ConvolveOp(kernel, ConvolveOp.EDGE_NO_OP, null);
+
+        double baseline = median(() -> op.filter(image, null));
+        double convolver = median(() -> Convolver.convolve(image, kernel));
+
+        System.out.printf("%-24s %10.1fms %10.1fms %7.1fx%n", name, baseline, convolver, baseline / convolver);
+    }
+
+    private static double median(final Supplier<BufferedImage> work) {
+        for (int i = 0; i < WARMUP; i++) {
+            work.get();
+        }
+
+        double[] times = new double[RUNS];
+
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            work.get();
+            times[i] = (System.nanoTime() - start) / (double) TimeUnit.MILLISECONDS.toNanos(1L);
+        }
+
+        Arrays.sort(times);
+        return times[RUNS / 2];
+    }
+
+    private static Kernel box(final int size) {
+        float[] weights = new float[size * size];
+        Arrays.fill(weights, 1f / (size * size));
+        return new Kernel(size, size, weights);
+    }
+
+}
@@ -0,0 +1,133 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+
+class ConvolverTest {
+    /** Separable, but not symmetric, so a kernel that is not flipped gives a different result. */
+    static final Kernel SKEWED_SEPARABLE = new Kernel(3, 2, new float[] {
+            0.1f, 0.2f, 0.3f,
+            0.05f, 0.1f, 0.15f});
+
+    /** Neither separable nor symmetric, with its origin off centre. */
+    static final Kernel SKEWED = new Kernel(4, 3, new float[] {
+            0.1f, 0.0f, 0.2f, 0.05f,
+            0.0f, 0.3f, 0.0f, 0.1f,
+            0.05f, 0.1f, 0.0f, 0.1f});
+
+
+    @Test
+    void test1_isSeparable() {
+        Assertions.assertTrue(Convolver.isSeparable(ImageKernelTask.AVERAGE_3x3_9));
+        Assertions.assertTrue(Convolver.isSeparable(ImageKernelTask.GAUSSIAN_3x3_16));
+        Assertions.assertTrue(Convolver.isSeparable(SKEWED_SEPARABLE));
+        Assertions.assertFalse(Convolver.isSeparable(ImageKernelTask.SHARPEN_3x3_10));
+        Assertions.assertFalse(Convolver.isSeparable(SKEWED));
+        Assertions.assertFalse(Convolver.isSeparable(new Kernel(2, 2, new float[4])));
+    }
+
+    @Test
+    @DisplayName("the same as ConvolveOp away from the edges, for separable and other kernels")
+    void test1_convolve() {
+        BufferedImage image = randomImage(300, 280, BufferedImage.TYPE_INT_RGB);
+
+        for (Kernel kernel : new Kernel[] {ImageKernelTask.GAUSSIAN_3x3_16, ImageKernelTask.SHARPEN_3x3_10, SKEWED_SEPARABLE, SKEWED}) {
+            BufferedImage expected = new ConvolveOp(kernel, ConvolveOp.EDGE_NO_OP, null).filter(image, null);
+            BufferedImage actual = Convolver.convolve(image, kernel);
+
+            assertInteriorEquals(expected, actual, kernel);
+        }
+    }
+
+    @Test
+    @DisplayName("images that are not packed ints are read the same way")
+    void test2_convolve() {
+        BufferedImage image = randomImage(64, 48, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage expected = Convolver.convolve(copy(image, BufferedImage.TYPE_INT_RGB), SKEWED);
+
+        assertInteriorEquals(expected, Convolver.convolve(image, SKEWED), SKEWED);
+    }
+
+    @Test
+    @DisplayName("a blur leaves a flat image alone, edges and alpha included")
+    void test3_convolve() {
+        BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, 0x80336699);
+            }
+        }
+
+        BufferedImage result = Convolver.convolve(image, ImageKernelTask.GAUSSIAN_3x3_16);
+
+        Assertions.assertEquals(BufferedImage.TYPE_INT_ARGB, result.getType());
+        Assertions.assertEquals(0x80336699, result.getRGB(0, 0));
+        Assertions.assertEquals(0x80336699, result.getRGB(39, 29));
+        Assertions.assertEquals(0x80336699, result.getRGB(20, 15));
+    }
+
+    @Test
+    void test4_convolve() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Convolver.convolve(null, SKEWED));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Convolver.convolve(randomImage(2, 2, BufferedImage.TYPE_INT_RGB), null));
+    }
+
+    @Test
+    @DisplayName("the task replaces the image of the event with the filtered one")
+    void test1_transformImage() throws Exception {
+        BufferedImage image = randomImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        ImageKernelTask task = new ImageKernelTask(ImageKernelTask.AVERAGE_3x3_9);
+
+        Assertions.assertNull(task.transformImage(null, ImageKernelTask.AVERAGE_3x3_9));
+        Assertions.assertNotSame(image, task.transformImage(image, ImageKernelTask.AVERAGE_3x3_9));
+    }
+
+    static BufferedImage randomImage(final int width, final int height, final int type) {
+        Random random = new Random(42L);
+        BufferedImage image = new BufferedImage(width, height, type);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt() | 0xff000000);
+            }
+        }
+
+        return image;
+    }
+
+    private static BufferedImage copy(final BufferedImage image, final int type) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        copy.getGraphics().drawImage(image, 0, 0, null);
+        return copy;
+    }
+
+    /**
+     * Compare the pixels the kernel does not need the edges for, each channel may differ by
+     * one for rounding.
+     */
+    private static void assertInteriorEquals(final BufferedImage expected, final BufferedImage actual, final Kernel kernel) {
+        for (int y = kernel.getHeight(); y < expected.getHeight() - kernel.getHeight(); y++) {
+            for (int x = kernel.getWidth(); x < expected.getWidth() - kernel.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int difference = Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff));
+
+                    if (difference > 1) {
+                        Assertions.fail("pixel " + x + "," + y + " expected " + Integer.toHexString(e) + " was " + Integer.toHexString(a));
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
+import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+
+class ImageCropTaskTest {
+
+    @Test
+    @DisplayName("the region must be set and not empty")
+    void test1_constructor() {
+        Assertions.assertThrows(ImageTaskException.class, () -> new ImageCropTask(null));
+        Assertions.assertThrows(ImageTaskException.class, () -> new ImageCropTask(new Rectangle(0, 0, 0, 10)));
+        Assertions.assertThrows(ImageTaskException.class, () -> new ImageCropTask(new Rectangle(-1, 0, 10, 10)));
+    }
+
+    @Test
+    @DisplayName("the region is copied out, cut back to the image")
+    void test1_cropImage() throws Exception {
+        BufferedImage image = ConvolverTest.randomImage(60, 40, BufferedImage.TYPE_INT_ARGB);
+
+        BufferedImage result = new ImageCropTask(new Rectangle(50, 30, 20, 20)).cropImage(image);
+        Assertions.assertEquals(BufferedImage.TYPE_INT_ARGB, result.getType());
+        Assertions.assertEquals(10, result.getWidth());
+        Assertions.assertEquals(10, result.getHeight());
+        Assertions.assertEquals(image.getRGB(55, 35), result.getRGB(5, 5));
+
+        Assertions.assertSame(image, new ImageCropTask(new Rectangle(0, 0, 100, 100)).cropImage(image));
+        Assertions.assertThrows(ImageProcessorException.class, () -> new ImageCropTask(new Rectangle(60, 0, 5, 5)).cropImage(image));
+    }
+
+}
@@ -0,0 +1,109 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import javax.imageio.ImageIO;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.listeners.ImageMessageEventListener;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+class ImageFileTaskTest {
+    private static final ImageMessageEventListener LISTENER = ime -> {};
+
+    @TempDir
+    Path folder;
+
+
+    @Test
+    @DisplayName("skip as many pixels as possible while keeping the margin for the resize")
+    void test1_subsampling() {
+        Assertions.assertEquals(15, ImageFileTask.subsampling(6000, 4000, new Dimension(200, 200)));
+        Assertions.assertEquals(2, ImageFileTask.subsampling(6000, 4000, new Dimension(1500, 1500)));
+        Assertions.assertEquals(1, ImageFileTask.subsampling(6000, 4000, new Dimension(2000, 2000)));
+        Assertions.assertEquals(1, ImageFileTask.subsampling(100, 100, new Dimension(200, 200)));
+    }
+
+    @Test
+    @DisplayName("only a resize straight after the read, or at the start of every branch, counts")
+    void test1_sizeNeeded() throws Exception {
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, LISTENER, null);
+        Assertions.assertNull(ImageFileTask.sizeNeeded(ipe));
+
+        ipe.addTask(new ImageResizeTask(new Dimension(200, 100)));
+        Assertions.assertEquals(new Dimension(200, 100), ImageFileTask.sizeNeeded(ipe));
+
+        ipe.removeTasks();
+        ipe.addBranch(new ImageResizeTask(new Dimension(160, 120)));
+        ipe.addBranch(new ImageResizeTask(new Dimension(100, 300)), new ImageNullTask());
+        Assertions.assertEquals(new Dimension(160, 300), ImageFileTask.sizeNeeded(ipe));
+
+        ipe.addBranch(new ImageNullTask());
+        Assertions.assertNull(ImageFileTask.sizeNeeded(ipe));
+    }
+
+    @Test
+    @DisplayName("a read followed by a resize decodes a smaller image, with the same result size")
+    void test1_processTask() throws Exception {
+        File file = folder.resolve("large.png").toFile();
+        ImageIO.write(ConvolverTest.randomImage(1200, 800, BufferedImage.TYPE_INT_RGB), "png", file);
+
+        ImageResizeTask resize = new ImageResizeTask(new Dimension(100, 100));
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, LISTENER, null,
+            new ImageFileTask(ImageFileTaskType.PROCESS_GET_IMAGE, file, null), resize);
+
+        ipe.processNextTask().processTask(ipe);
+        Assertions.assertEquals(200, ipe.getImage().getWidth());
+        Assertions.assertEquals(134, ipe.getImage().getHeight());
+
+        ipe.processNextTask().processTask(ipe);
+        Assertions.assertEquals(100, ipe.getImage().getWidth());
+        Assertions.assertEquals(67, ipe.getImage().getHeight());
+
+        //without a resize next the whole image is read
+        ImageProcessEvent whole = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, LISTENER, null,
+            new ImageFileTask(ImageFileTaskType.PROCESS_GET_IMAGE, file, null));
+
+        whole.processNextTask().processTask(whole);
+        Assertions.assertEquals(1200, whole.getImage().getWidth());
+    }
+
+    @Test
+    @DisplayName("a crop after the read only decodes the region, and a resize after that subsamples it")
+    void test2_processTask() throws Exception {
+        File file = folder.resolve("scan.png").toFile();
+        BufferedImage image = ConvolverTest.randomImage(1200, 800, BufferedImage.TYPE_INT_RGB);
+        ImageIO.write(image, "png", file);
+
+        ImageProcessEvent ipe = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, LISTENER, null,
+            new ImageFileTask(ImageFileTaskType.PROCESS_GET_IMAGE, file, null), new ImageCropTask(new Rectangle(100, 50, 300, 200)));
+
+        ipe.processNextTask().processTask(ipe);
+        Assertions.assertEquals(0, ipe.getSize());
+        Assertions.assertEquals(300, ipe.getImage().getWidth());
+        Assertions.assertEquals(200, ipe.getImage().getHeight());
+        Assertions.assertEquals(image.getRGB(100, 50), ipe.getImage().getRGB(0, 0));
+        Assertions.assertEquals(image.getRGB(399, 249), ipe.getImage().getRGB(299, 199));
+
+        //the region is cut back to the image, then read every 3rd pixel for a 50x50 result
+        ImageProcessEvent both = new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, LISTENER, null,
+            new ImageFileTask(ImageFileTaskType.PROCESS_GET_IMAGE, file, null),
+            new ImageCropTask(new Rectangle(900, 500, 1000, 1000)),
+            new ImageResizeTask(new Dimension(50, 50)));
+
+        both.processNextTask().processTask(both);
+        Assertions.assertEquals(1, both.getSize());
+        Assertions.assertEquals(100, both.getImage().getWidth());
+        Assertions.assertEquals(100, both.getImage().getHeight());
+        Assertions.assertEquals(image.getRGB(900, 500), both.getImage().getRGB(0, 0));
+    }
+
+}
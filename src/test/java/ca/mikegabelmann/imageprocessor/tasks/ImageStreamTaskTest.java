@@ -0,0 +1,130 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEvent;
+import ca.mikegabelmann.imageprocessor.events.ImageProcessEventType;
+import ca.mikegabelmann.imageprocessor.exception.ImageProcessorException;
+import ca.mikegabelmann.imageprocessor.exception.ImageTaskException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+class ImageStreamTaskTest {
+
+    @TempDir
+    Path folder;
+
+
+    @Test
+    @DisplayName("only tasks that work a strip at a time are accepted")
+    void test1_constructor() throws Exception {
+        File in = new File("in.png");
+        File out = new File("out.png");
+
+        Assertions.assertThrows(ImageTaskException.class, () -> new ImageStreamTask(in, null));
+        Assertions.assertThrows(ImageTaskException.class, () -> new ImageStreamTask(in, out, 0));
+        Assertions.assertThrows(ImageTaskException.class, () -> new ImageStreamTask(in, out, new ImageNullTask()));
+        Assertions.assertEquals(1, new ImageStreamTask(in, out, null, new ImageKernelTask(ImageKernelTask.SHARPEN_3x3_10)).getTasks().size());
+    }
+
+    @Test
+    @DisplayName("streaming in strips gives the same image as processing it whole")
+    void test1_processTask() throws Exception {
+        BufferedImage image = ConvolverTest.randomImage(500, 390, BufferedImage.TYPE_INT_RGB);
+        File in = folder.resolve("in.png").toFile();
+        ImageIO.write(image, "png", in);
+
+        ImageCropTask crop = new ImageCropTask(new Rectangle(10, 5, 480, 380));
+        ImageResizeTask resize = new ImageResizeTask(new Dimension(200, 200), ResampleFilter.LANCZOS3);
+        ImageKernelTask kernel = new ImageKernelTask(ImageKernelTask.GAUSSIAN_3x3_16);
+
+        BufferedImage before = Convolver.convolve(crop.cropImage(image), ImageKernelTask.GAUSSIAN_3x3_16);
+        BufferedImage expected = Convolver.convolve(resize.resizeImage(before, 200, 200), ImageKernelTask.GAUSSIAN_3x3_16);
+
+        for (String format : new String[] {"png", "tif"}) {
+            File out = folder.resolve("out." + format).toFile();
+            ImageStreamTask task = new ImageStreamTask(in, out, 7, crop, kernel, resize, kernel, new ImageCropTask(new Rectangle(0, 0, 1000, 1000)));
+
+            task.processTask(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, ime -> {}, null));
+            BufferedImage result = ImageIO.read(out);
+
+            Assertions.assertEquals(expected.getWidth(), result.getWidth(), format);
+            Assertions.assertEquals(expected.getHeight(), result.getHeight(), format);
+
+            for (int y = 0; y < expected.getHeight(); y++) {
+                for (int x = 0; x < expected.getWidth(); x++) {
+                    Assertions.assertEquals(expected.getRGB(x, y), result.getRGB(x, y), format + " at " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("a file can be streamed onto itself, and a failure keeps the old output")
+    void test2_processTask() throws Exception {
+        BufferedImage image = ConvolverTest.randomImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        File file = folder.resolve("same.png").toFile();
+        ImageIO.write(image, "png", file);
+
+        ImageResizeTask resize = new ImageResizeTask(new Dimension(150, 100));
+        BufferedImage expected = resize.resizeImage(image, 150, 100);
+
+        new ImageStreamTask(file, file, 16, resize).processTask(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, ime -> {}, null));
+        BufferedImage result = ImageIO.read(file);
+
+        Assertions.assertEquals(150, result.getWidth());
+        Assertions.assertEquals(expected.getRGB(75, 50), result.getRGB(75, 50));
+
+        //the input is missing, the output is left alone and nothing is left behind
+        ImageStreamTask missing = new ImageStreamTask(folder.resolve("missing.png").toFile(), file, resize);
+        Assertions.assertThrows(ImageProcessorException.class,
+            () -> missing.processTask(new ImageProcessEvent(ImageProcessEventType.PRIORITY_MEDIUM, ime -> {}, null)));
+
+        Assertions.assertEquals(150, ImageIO.read(file).getWidth());
+        Assertions.assertEquals(List.of("same.png"), List.of(folder.toFile().list()));
+    }
+
+    @Test
+    @DisplayName("the stages only ever ask for rows from the top down, a strip at a time")
+    void test1_window() throws Exception {
+        int[] asked = new int[2];
+
+        StripStream.Stage rows = new StripStream.Stage(3, 1000, false) {
+            @Override
+            int[] rows(final int from, final int to) {
+                Assertions.assertTrue(from >= asked[0]);
+                asked[0] = to;
+                asked[1] = Math.max(asked[1], to - from);
+
+                int[] pixels = new int[(to - from) * width];
+
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = 0xff000000 | (from + i / width);
+                }
+
+                return pixels;
+            }
+        };
+
+        StripStream.Resize resize = new StripStream.Resize(rows, new Dimension(3, 100), ResampleFilter.BILINEAR, 16);
+        StripStream.Window window = new StripStream.Window(resize, 16);
+
+        for (int y = 0; y < 100; y++) {
+            window.fill(y, y + 1);
+        }
+
+        Assertions.assertEquals(1000, asked[0]);
+        Assertions.assertTrue(asked[1] <= 32, "asked for " + asked[1] + " rows at once");
+        Assertions.assertThrows(IllegalStateException.class, () -> window.fill(0, 1));
+    }
+
+}
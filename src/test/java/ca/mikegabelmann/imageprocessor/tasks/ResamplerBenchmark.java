@@ -0,0 +1,72 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+
+/**
+ * <P>Compares Resampler with AffineTransformOp. Not a unit test, run it by hand on an idle
+ * machine:</P>
+ *
+ * <PRE>
+ *     java -cp target/classes:target/test-classes ca.mikegabelmann.imageprocessor.tasks.ResamplerBenchmark [width] [height]
+ * </PRE>
+ *
+ * <P>Each case is run a few times to warm up, then the median of the timed runs is reported.</P>
+ */
+public final class ResamplerBenchmark {
+    //CONSTANTS
+    /** Untimed runs of each case. */
+    private static final int WARMUP = 3;
+
+    /** Timed runs of each case. */
+    private static final int RUNS = 7;
+
+
+    private ResamplerBenchmark() {}
+
+    public static void main(final String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 7680;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 5120;
+
+        BufferedImage image = ConvolverTest.randomImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        System.out.printf("%dx%d TYPE_INT_RGB, %d cores%n", width, height, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-16s %-10s %16s %12s %8s%n", "target", "filter", "AffineTransform", "Resampler", "speedup");
+
+        for (double scale : new double[] {0.1, 0.5, 1.5}) {
+            int w = (int) Math.round(width * scale);
+            int h = (int) Math.round(height * scale);
+
+            AffineTransformOp op = new AffineTransformOp(AffineTransform.getScaleInstance(scale, scale), AffineTransformOp.TYPE_BILINEAR);
+            double baseline = median(() -> op.filter(image, null));
+
+            for (ResampleFilter filter : ResampleFilter.values()) {
+                double resampler = median(() -> Resampler.resample(image, w, h, filter));
+                System.out.printf("%-16s %-10s %14.1fms %10.1fms %7.1fx%n", w + "x" + h, filter, baseline, resampler, baseline / resampler);
+            }
+        }
+    }
+
+    private static double median(final Supplier<BufferedImage> work) {
+        for (int i = 0; i < WARMUP; i++) {
+            work.get();
+        }
+
+        double[] times = new double[RUNS];
+
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            work.get();
+            times[i] = (System.nanoTime() - start) / (double) TimeUnit.MILLISECONDS.toNanos(1L);
+        }
+
+        Arrays.sort(times);
+        return times[RUNS / 2];
+    }
+
+}
@@ -0,0 +1,164 @@
+package ca.mikegabelmann.imageprocessor.tasks;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+
+class ResamplerTest {
+
+    @Test
+    @DisplayName("each target pixel's weights add up to 1 and are kept for the next image")
+    void test1_weights() {
+        for (ResampleFilter filter : ResampleFilter.values()) {
+            Resampler.Weights weights = Resampler.weights(1000, 137, filter);
+
+            for (int i = 0; i < weights.starts.length; i++) {
+                int sum = 0;
+
+                for (int k = 0; k < weights.taps; k++) {
+                    sum += weights.weights[i * weights.taps + k];
+                }
+
+                Assertions.assertEquals(1 << Resampler.PRECISION, sum);
+                Assertions.assertTrue(weights.starts[i] + weights.taps <= 1000);
+            }
+
+            Assertions.assertSame(weights, Resampler.weights(1000, 137, filter));
+        }
+    }
+
+    @Test
+    @DisplayName("a flat image stays flat, shrinking or growing, edges and alpha included")
+    void test1_resample() {
+        BufferedImage image = new BufferedImage(37, 23, BufferedImage.TYPE_INT_ARGB);
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, 0x80336699);
+            }
+        }
+
+        for (ResampleFilter filter : ResampleFilter.values()) {
+            for (Dimension size : new Dimension[] {new Dimension(5, 3), new Dimension(120, 90), new Dimension(1, 1)}) {
+                BufferedImage result = Resampler.resample(image, size.width, size.height, filter);
+
+                Assertions.assertEquals(size.width, result.getWidth());
+                Assertions.assertEquals(size.height, result.getHeight());
+                Assertions.assertEquals(0x80336699, result.getRGB(0, 0), filter + " " + size);
+                Assertions.assertEquals(0x80336699, result.getRGB(size.width - 1, size.height - 1), filter + " " + size);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("shrinking averages every source pixel rather than picking some")
+    void test2_resample() {
+        //one pixel wide black and white stripes, nearest neighbour would give a solid colour
+        BufferedImage image = new BufferedImage(400, 40, BufferedImage.TYPE_INT_RGB);
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, x % 2 == 0 ? 0xffffff : 0);
+            }
+        }
+
+        for (ResampleFilter filter : ResampleFilter.values()) {
+            BufferedImage result = Resampler.resample(image, 40, 4, filter);
+            int grey = result.getRGB(20, 2) & 0xff;
+
+            Assertions.assertEquals(0xff000000, result.getRGB(20, 2) & 0xff000000);
+            Assertions.assertTrue(Math.abs(grey - 128) <= 4, filter + " gave " + grey);
+        }
+    }
+
+    @Test
+    @DisplayName("parallel bands give the same result as one thread")
+    void test3_resample() {
+        BufferedImage image = ConvolverTest.randomImage(600, 500, BufferedImage.TYPE_INT_RGB);
+        BufferedImage small = image.getSubimage(0, 0, 200, 100);
+
+        BufferedImage large = Resampler.resample(image, 300, 250, ResampleFilter.LANCZOS3);
+        BufferedImage part = Resampler.resample(small, 100, 50, ResampleFilter.LANCZOS3);
+
+        //away from the right and bottom edges of the part, the two only differ by rounding
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 90; x++) {
+                int a = large.getRGB(x, y);
+                int b = part.getRGB(x, y);
+
+                for (int shift = 0; shift < 24; shift += 8) {
+                    Assertions.assertTrue(Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff)) <= 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("pixels are only rounded to 8 bits once, after both passes")
+    void test5_resample() {
+        BufferedImage image = ConvolverTest.randomImage(90, 70, BufferedImage.TYPE_INT_ARGB);
+        int[] sizes = {31, 23, 150, 110};
+
+        for (int i = 0; i < sizes.length; i += 2) {
+            BufferedImage result = Resampler.resample(image, sizes[i], sizes[i + 1], ResampleFilter.LANCZOS3);
+            Resampler.Weights columns = Resampler.weights(90, sizes[i], ResampleFilter.LANCZOS3);
+            Resampler.Weights rows = Resampler.weights(70, sizes[i + 1], ResampleFilter.LANCZOS3);
+            int exact = 0;
+            int count = 0;
+
+            for (int y = 0; y < sizes[i + 1]; y++) {
+                for (int x = 0; x < sizes[i]; x++) {
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        //the same weights, without rounding between the passes
+                        double sum = 0.0;
+
+                        for (int j = 0; j < rows.taps; j++) {
+                            for (int k = 0; k < columns.taps; k++) {
+                                int p = image.getRGB(columns.starts[x] + k, rows.starts[y] + j);
+                                sum += (double) rows.weights[y * rows.taps + j] * columns.weights[x * columns.taps + k] * ((p >>> shift) & 0xff);
+                            }
+                        }
+
+                        int expected = (int) Math.max(0, Math.min(255, Math.round(sum / (1 << (2 * Resampler.PRECISION)))));
+                        int actual = (result.getRGB(x, y) >>> shift) & 0xff;
+
+                        Assertions.assertTrue(Math.abs(expected - actual) <= 1, expected + " but was " + actual);
+                        exact += expected == actual ? 1 : 0;
+                        count++;
+                    }
+                }
+            }
+
+            Assertions.assertTrue(exact >= count * 99 / 100, exact + " of " + count + " exact");
+        }
+    }
+
+    @Test
+    void test4_resample() {
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Resampler.resample(null, 1, 1, ResampleFilter.BILINEAR));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Resampler.resample(image, 0, 1, ResampleFilter.BILINEAR));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Resampler.resample(image, 1, 1, null));
+    }
+
+    @Test
+    @DisplayName("the task fits the image in the size, keeping its shape")
+    void test1_resizeImage() throws Exception {
+        ImageResizeTask task = new ImageResizeTask(new Dimension(100, 100), ResampleFilter.BICUBIC);
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+
+        BufferedImage result = task.resizeImage(image, 100, 100);
+        Assertions.assertEquals(100, result.getWidth());
+        Assertions.assertEquals(75, result.getHeight());
+
+        Assertions.assertSame(image, task.resizeImage(image, 400, 500));
+        Assertions.assertEquals(ResampleFilter.BILINEAR, new ImageResizeTask(new Dimension(1, 1)).getFilter());
+        Assertions.assertNotEquals(task.getSignature(), new ImageResizeTask(new Dimension(100, 100)).getSignature());
+    }
+
+}